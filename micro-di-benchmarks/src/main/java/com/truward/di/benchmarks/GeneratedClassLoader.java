@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class loader, that produces any number of distinct bean classes out of the template classes.
+ * <p>
+ * The context does not allow two beans of the same class, so the large contexts need as many bean classes.
+ * Each generated class is a copy of the template class file, where the zero index in the class name
+ * is replaced with the index of the generated class. The index has the same width as the zero one,
+ * so the constant pool layout is retained and no bytecode library is needed.
+ * </p>
+ * <ul>
+ *   <li>{@code FlatBean<i>} is a copy of {@link FlatBean000000},</li>
+ *   <li>{@code ChainNode<i>} is a copy of {@link ChainNode000000}, that depends on {@code ChainNode<i+1>},
+ *   the last link is a copy of {@link ChainTail000000}.</li>
+ * </ul>
+ * Indexes start from 1, as the zero index refers to the template itself.
+ *
+ * @author Alexander Shabanov
+ */
+public final class GeneratedClassLoader extends ClassLoader {
+  private static final String PACKAGE_PREFIX = GeneratedClassLoader.class.getPackage().getName() + '.';
+  private static final String FLAT_BEAN = "FlatBean";
+  private static final String CHAIN_NODE = "ChainNode";
+  private static final String CHAIN_TAIL = "ChainTail";
+  private static final String ZERO_INDEX = "000000";
+  private static final int MAX_INDEX = 999999;
+
+  private final int chainLength;
+
+  /**
+   * @param chainLength Number of the links in the generated chain.
+   */
+  public GeneratedClassLoader(int chainLength) {
+    super(GeneratedClassLoader.class.getClassLoader());
+    if (chainLength < 1 || chainLength > MAX_INDEX) {
+      throw new IllegalArgumentException("Chain length is out of range: " + chainLength);
+    }
+    this.chainLength = chainLength;
+  }
+
+  public GeneratedClassLoader() {
+    this(1);
+  }
+
+  /**
+   * @param count Number of the classes.
+   * @return Distinct classes of the independent beans, that implement {@link Marker} and depend on
+   * {@link UniqueService}.
+   */
+  public List<Class<?>> getFlatBeanClasses(int count) {
+    if (count > MAX_INDEX) {
+      throw new IllegalArgumentException("Too many classes: " + count);
+    }
+
+    final List<Class<?>> result = new ArrayList<Class<?>>(count);
+    for (int i = 1; i <= count; ++i) {
+      result.add(load(FLAT_BEAN, i));
+    }
+    return result;
+  }
+
+  /**
+   * @return Classes of the chain links, starting from the head of the chain.
+   */
+  public List<Class<?>> getChainClasses() {
+    final List<Class<?>> result = new ArrayList<Class<?>>(chainLength);
+    for (int i = 1; i <= chainLength; ++i) {
+      result.add(load(CHAIN_NODE, i));
+    }
+    return result;
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    if (name.startsWith(PACKAGE_PREFIX)) {
+      final String simpleName = name.substring(PACKAGE_PREFIX.length());
+      if (simpleName.startsWith(FLAT_BEAN)) {
+        final int index = parseIndex(name, simpleName.substring(FLAT_BEAN.length()));
+        return define(name, rename(readTemplate(FLAT_BEAN), FLAT_BEAN, FLAT_BEAN, index));
+      }
+
+      if (simpleName.startsWith(CHAIN_NODE)) {
+        final int index = parseIndex(name, simpleName.substring(CHAIN_NODE.length()));
+        if (index > chainLength) {
+          throw new ClassNotFoundException(name);
+        }
+
+        if (index == chainLength) {
+          return define(name, rename(readTemplate(CHAIN_TAIL), CHAIN_TAIL, CHAIN_NODE, index));
+        }
+
+        // regular link, that refers to the next one
+        final byte[] bytes = rename(readTemplate(CHAIN_NODE), CHAIN_NODE, CHAIN_NODE, index);
+        return define(name, rename(bytes, CHAIN_TAIL, CHAIN_NODE, index + 1));
+      }
+    }
+
+    throw new ClassNotFoundException(name);
+  }
+
+  //
+  // Private
+  //
+
+  private Class<?> load(String prefix, int index) {
+    try {
+      return loadClass(PACKAGE_PREFIX + prefix + formatIndex(index));
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Class<?> define(String name, byte[] bytes) {
+    return defineClass(name, bytes, 0, bytes.length);
+  }
+
+  private static String formatIndex(int index) {
+    final String digits = Integer.toString(index);
+    return ZERO_INDEX.substring(digits.length()) + digits;
+  }
+
+  private static int parseIndex(String name, String index) throws ClassNotFoundException {
+    if (index.length() != ZERO_INDEX.length()) {
+      throw new ClassNotFoundException(name);
+    }
+
+    try {
+      final int result = Integer.parseInt(index);
+      if (result < 1) {
+        throw new ClassNotFoundException(name);
+      }
+      return result;
+    } catch (NumberFormatException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+  }
+
+  private static byte[] readTemplate(String prefix) throws ClassNotFoundException {
+    final String resourceName = prefix + ZERO_INDEX + ".class";
+    final InputStream inputStream = GeneratedClassLoader.class.getResourceAsStream(resourceName);
+    if (inputStream == null) {
+      throw new ClassNotFoundException("Missing template " + resourceName);
+    }
+
+    try {
+      try {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(1024);
+        final byte[] buffer = new byte[1024];
+        for (int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+          outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+      } finally {
+        inputStream.close();
+      }
+    } catch (IOException e) {
+      throw new ClassNotFoundException("Unable to read template " + resourceName, e);
+    }
+  }
+
+  // replaces all the occurrences of the zero-indexed name with the name of the same length
+  private static byte[] rename(byte[] bytes, String fromPrefix, String toPrefix, int index) {
+    final byte[] from = (fromPrefix + ZERO_INDEX).getBytes(StandardCharsets.US_ASCII);
+    final byte[] to = (toPrefix + formatIndex(index)).getBytes(StandardCharsets.US_ASCII);
+    if (from.length != to.length) {
+      throw new IllegalArgumentException("Class names should be of the same length");
+    }
+
+    final byte[] result = bytes.clone();
+    for (int i = 0; i <= result.length - from.length; ++i) {
+      if (matches(result, i, from)) {
+        System.arraycopy(to, 0, result, i, to.length);
+        i += to.length - 1;
+      }
+    }
+    return result;
+  }
+
+  private static boolean matches(byte[] bytes, int offset, byte[] pattern) {
+    for (int i = 0; i < pattern.length; ++i) {
+      if (bytes[offset + i] != pattern[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.benchmarks;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.support.DefaultInjectionContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures initialization of the chain of beans, where each bean has {@code @Resource} reference to the next one,
+ * so that the request of the head of the chain initializes the whole chain.
+ *
+ * @author Alexander Shabanov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InitializationBenchmark {
+  @Param({"10", "100", "1000", "10000"})
+  int chainLength;
+
+  private List<Class<?>> chainClasses;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    chainClasses = new GeneratedClassLoader(chainLength).getChainClasses();
+  }
+
+  @Benchmark
+  public Object initializeChain() {
+    final InjectionContext context = new DefaultInjectionContext();
+    context.registerBean(UniqueServiceImpl.class);
+    context.registerBeanClasses(chainClasses);
+    context.freeze();
+    return context.getBean(chainClasses.get(0));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.benchmarks;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.InjectionException;
+import com.truward.di.support.DefaultInjectionContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures bean lookups in the context with the given number of the beans.
+ * <p>
+ * Cached lookups go to the frozen context, that resolves the beans through the compacted type index, i.e. by
+ * a single probe of its identity table. Uncached lookups go to the context, that is not frozen, and request
+ * the concrete bean class, that is resolved through the type index maintained incrementally as the beans are
+ * registered, i.e. by a single hash map lookup.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+  @Param({"10", "1000", "100000"})
+  int beanCount;
+
+  private InjectionContext frozenContext;
+  private InjectionContext openContext;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    final List<Class<?>> beanClasses = new GeneratedClassLoader().getFlatBeanClasses(beanCount);
+    frozenContext = createContext(beanClasses);
+    frozenContext.freeze();
+    openContext = createContext(beanClasses);
+
+    // initialize all the beans, so that only the lookups are measured
+    frozenContext.getBeans(Marker.class);
+    openContext.getBeans(Marker.class);
+  }
+
+  @Benchmark
+  public UniqueService getBeanCached() {
+    return frozenContext.getBean(UniqueService.class);
+  }
+
+  @Benchmark
+  public UniqueServiceImpl getBeanUncached() {
+    return openContext.getBean(UniqueServiceImpl.class);
+  }
+
+  @Benchmark
+  public List<UniqueService> getBeansUnique() {
+    return frozenContext.getBeans(UniqueService.class);
+  }
+
+  @Benchmark
+  public List<Marker> getBeansAmbiguous() {
+    return frozenContext.getBeans(Marker.class);
+  }
+
+  @Benchmark
+  public Object getBeanMissing() {
+    try {
+      return frozenContext.getBean(Runnable.class);
+    } catch (InjectionException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object getBeanAmbiguous() {
+    try {
+      return frozenContext.getBean(Marker.class);
+    } catch (InjectionException e) {
+      return e;
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private static InjectionContext createContext(List<Class<?>> beanClasses) {
+    final InjectionContext context = new DefaultInjectionContext();
+    context.registerBean(UniqueServiceImpl.class);
+    context.registerBeanClasses(beanClasses);
+    return context;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.benchmarks;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.support.DefaultInjectionContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures registration of the bean instances and bean classes in the new context.
+ *
+ * @author Alexander Shabanov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationBenchmark {
+  @Param({"10", "1000", "100000"})
+  int beanCount;
+
+  private List<Class<?>> beanClasses;
+  private List<Object> beans;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    beanClasses = new GeneratedClassLoader().getFlatBeanClasses(beanCount);
+    beans = new ArrayList<Object>(beanCount);
+    for (final Class<?> beanClass : beanClasses) {
+      beans.add(beanClass.newInstance());
+    }
+  }
+
+  @Benchmark
+  public InjectionContext registerBeanInstances() {
+    final InjectionContext context = new DefaultInjectionContext();
+    for (final Object bean : beans) {
+      context.registerBean(bean);
+    }
+    return context;
+  }
+
+  @Benchmark
+  public InjectionContext registerBeansInBulk() {
+    final InjectionContext context = new DefaultInjectionContext();
+    context.registerBeans(beans);
+    return context;
+  }
+
+  @Benchmark
+  public InjectionContext registerBeanClasses() {
+    final InjectionContext context = new DefaultInjectionContext();
+    for (final Class<?> beanClass : beanClasses) {
+      context.registerBean(beanClass);
+    }
+    return context;
+  }
+}
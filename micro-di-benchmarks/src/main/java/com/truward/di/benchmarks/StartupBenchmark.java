@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.benchmarks;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.support.DefaultInjectionContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the whole startup: registration of the bean classes, freeze and initialization of all the beans.
+ *
+ * @author Alexander Shabanov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+  @Param({"10", "1000", "10000", "100000"})
+  int beanCount;
+
+  private List<Class<?>> beanClasses;
+  private ExecutorService executor;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    beanClasses = new GeneratedClassLoader().getFlatBeanClasses(beanCount);
+    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public List<Marker> startup() {
+    final InjectionContext context = createContext();
+    context.freeze();
+    return context.getBeans(Marker.class);
+  }
+
+  @Benchmark
+  public List<Marker> startupParallel() {
+    final InjectionContext context = createContext();
+    context.freeze(executor);
+    return context.getBeans(Marker.class);
+  }
+
+  //
+  // Private
+  //
+
+  private InjectionContext createContext() {
+    final InjectionContext context = new DefaultInjectionContext();
+    context.registerBean(UniqueServiceImpl.class);
+    context.registerBeanClasses(beanClasses);
+    return context;
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Annotation processor, that writes the bean index, i.e. the list of the classes annotated with
+ * {@code com.truward.di.Bean} along with their supertypes and dependencies, to be loaded by
+ * {@code com.truward.di.support.BeanIndexLoader} at runtime.
+ * <p>
+ * The index is written once, when the processing is over, each line describes one bean:
+ * </p>
+ * <pre>
+ * beanClass:supertype1,supertype2:fieldDependency1,fieldDependency2:constructorDependency1
+ * </pre>
+ * <p>
+ * The beans of the index, written by the previous compilation, are merged in, as long as their classes are still
+ * resolved and annotated, so that the partial compilation, e.g. the incremental build of the changed files only,
+ * does not drop the beans, that have not been recompiled.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+@SupportedAnnotationTypes(BeanIndexProcessor.BEAN)
+public final class BeanIndexProcessor extends AbstractProcessor {
+  static final String BEAN = "com.truward.di.Bean";
+  static final String INDEX_RESOURCE_NAME = "META-INF/micro-di/beans.idx";
+
+  /**
+   * Index lines, keyed by the binary name of the bean class.
+   */
+  private final Map<String, String> entries = new TreeMap<String, String>();
+  private final List<Element> originatingElements = new ArrayList<Element>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (final TypeElement annotation : annotations) {
+      for (final TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(annotation))) {
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+              "Only non-abstract classes can be annotated with " + BEAN, type);
+          continue;
+        }
+
+        final String binaryName = getBinaryName(type);
+        entries.put(binaryName, createEntry(type, binaryName));
+        originatingElements.add(type);
+      }
+    }
+
+    if (roundEnv.processingOver() && !entries.isEmpty()) {
+      writeIndex();
+    }
+
+    // annotations are not claimed, so that the other processors could use them as well
+    return false;
+  }
+
+  //
+  // Private
+  //
+
+  private String createEntry(TypeElement type, String binaryName) {
+    final Set<String> supertypes = new LinkedHashSet<String>();
+    addSupertypesToSink(supertypes, type);
+
+    final List<String> fieldDependencies = new ArrayList<String>();
+    for (TypeElement c = type; c != null; c = InjectorProcessor.getSuperclass(c)) {
+      for (final VariableElement field : ElementFilter.fieldsIn(c.getEnclosedElements())) {
+        if (InjectorProcessor.getAnnotation(field, InjectorProcessor.RESOURCE) != null) {
+          addTypeName(fieldDependencies, field.asType());
+        }
+      }
+    }
+
+    final List<String> constructorDependencies = new ArrayList<String>();
+    final ExecutableElement constructor = InjectorProcessor.findConstructor(type);
+    if (constructor != null) {
+      for (final VariableElement parameter : constructor.getParameters()) {
+        addTypeName(constructorDependencies, parameter.asType());
+      }
+    }
+
+    return binaryName + ':' + join(supertypes) + ':' + join(fieldDependencies) + ':' + join(constructorDependencies);
+  }
+
+  private void addSupertypesToSink(Set<String> sink, TypeElement type) {
+    for (final TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(type.asType())) {
+      if (supertype.getKind() != TypeKind.DECLARED) {
+        continue;
+      }
+
+      final TypeElement supertypeElement = (TypeElement) ((DeclaredType) supertype).asElement();
+      if (supertypeElement.getQualifiedName().contentEquals("java.lang.Object")) {
+        continue; // implied
+      }
+
+      if (sink.add(getBinaryName(supertypeElement))) {
+        addSupertypesToSink(sink, supertypeElement);
+      }
+    }
+  }
+
+  private void addTypeName(List<String> sink, TypeMirror type) {
+    final TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+    if (erasure.getKind() == TypeKind.DECLARED) {
+      sink.add(getBinaryName((TypeElement) ((DeclaredType) erasure).asElement()));
+    }
+  }
+
+  private String getBinaryName(TypeElement type) {
+    return processingEnv.getElementUtils().getBinaryName(type).toString();
+  }
+
+  private static String join(Collection<String> names) {
+    final StringBuilder result = new StringBuilder();
+    for (final String name : names) {
+      result.append(result.length() > 0 ? "," : "").append(name);
+    }
+    return result.toString();
+  }
+
+  // adds the beans of the existing index, that are not part of this compilation
+  private void mergeExistingIndex() throws IOException {
+    final BufferedReader reader;
+    try {
+      final FileObject resource = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "",
+          INDEX_RESOURCE_NAME);
+      reader = new BufferedReader(new InputStreamReader(resource.openInputStream(), "UTF-8"));
+    } catch (IOException ignored) {
+      return; // the index has not been written by the previous compilation
+    }
+
+    try {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        final int separator = line.indexOf(':');
+        if (line.startsWith("#") || separator <= 0) {
+          continue;
+        }
+
+        final String binaryName = line.substring(0, separator);
+        if (entries.containsKey(binaryName)) {
+          continue; // recompiled
+        }
+
+        // the entry is rebuilt, as the supertypes or the dependencies of the bean might have been recompiled
+        final TypeElement type = processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.'));
+        if (type != null && InjectorProcessor.getAnnotation(type, BEAN) != null) {
+          entries.put(binaryName, createEntry(type, binaryName));
+          originatingElements.add(type);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void writeIndex() {
+    try {
+      mergeExistingIndex();
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to read existing bean index: " + e);
+      return;
+    }
+
+    final PrintWriter out;
+    try {
+      out = new PrintWriter(new OutputStreamWriter(processingEnv.getFiler().createResource(
+          StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE_NAME,
+          originatingElements.toArray(new Element[originatingElements.size()])).openOutputStream(), "UTF-8"));
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to create bean index: " + e);
+      return;
+    }
+
+    try {
+      out.println("# micro-di bean index");
+      for (final String entry : entries.values()) {
+        out.println(entry);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
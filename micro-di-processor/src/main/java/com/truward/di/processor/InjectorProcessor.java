@@ -0,0 +1,356 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Annotation processor, that generates reflection-free {@code com.truward.di.Injector} implementations
+ * for the bean classes, that have fields annotated with {@code javax.annotation.Resource} or
+ * methods annotated with {@code javax.annotation.PostConstruct}.
+ * <p>
+ * The generated injector is placed to the package of the bean class, so it can only be generated if all
+ * the injected fields are accessible from that package, i.e. the injected fields should not be private.
+ * The bean classes, that do not meet this requirement, are skipped and the injection context falls back
+ * to reflection for them.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+@SupportedAnnotationTypes({InjectorProcessor.RESOURCE, InjectorProcessor.POST_CONSTRUCT})
+public final class InjectorProcessor extends AbstractProcessor {
+  static final String RESOURCE = "javax.annotation.Resource";
+  static final String POST_CONSTRUCT = "javax.annotation.PostConstruct";
+
+  private static final String INJECTOR_INTERFACE = "com.truward.di.Injector";
+  private static final String CLASS_NAME_SUFFIX = "$$Injector";
+
+  private final Set<String> generatedInjectors = new HashSet<String>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    final List<TypeElement> types = new ArrayList<TypeElement>();
+    for (final TypeElement rootType : ElementFilter.typesIn(roundEnv.getRootElements())) {
+      addTypesToSink(types, rootType);
+    }
+
+    for (final TypeElement type : types) {
+      final BeanModel model = createModel(type);
+      if (model == null) {
+        continue;
+      }
+
+      final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+      if (generatedInjectors.add(binaryName)) {
+        writeInjector(type, binaryName, model);
+      }
+    }
+
+    // annotations are not claimed, so that the other processors could use them as well
+    return false;
+  }
+
+  //
+  // Private
+  //
+
+  /**
+   * Injection points of the bean class.
+   */
+  private static final class BeanModel {
+    final List<VariableElement> fields = new ArrayList<VariableElement>();
+    final List<ExecutableElement> postConstructMethods = new ArrayList<ExecutableElement>();
+    ExecutableElement constructor;
+  }
+
+  private static void addTypesToSink(List<TypeElement> sink, TypeElement type) {
+    if (type.getKind() == ElementKind.CLASS) {
+      sink.add(type);
+    }
+
+    for (final TypeElement nestedType : ElementFilter.typesIn(type.getEnclosedElements())) {
+      addTypesToSink(sink, nestedType);
+    }
+  }
+
+  // returns null if injector can not or should not be generated for the given type
+  private BeanModel createModel(TypeElement type) {
+    if (type.getModifiers().contains(Modifier.ABSTRACT) || !isAccessibleFromPackage(type)) {
+      return null;
+    }
+
+    final PackageElement beanPackage = processingEnv.getElementUtils().getPackageOf(type);
+    final BeanModel model = new BeanModel();
+    final Set<String> visitedMethods = new HashSet<String>();
+
+    for (TypeElement c = type; c != null; c = getSuperclass(c)) {
+      for (final VariableElement field : ElementFilter.fieldsIn(c.getEnclosedElements())) {
+        if (getAnnotation(field, RESOURCE) == null) {
+          continue;
+        }
+
+        if (!isFieldInjectable(field, c, beanPackage)) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Injector is not generated, " +
+              "field " + c + "." + field.getSimpleName() + " is not accessible, reflection will be used", type);
+          return null;
+        }
+        model.fields.add(field);
+      }
+
+      // only the most derived declaration of the method is taken into an account, as in Class.getMethods()
+      for (final ExecutableElement method : ElementFilter.methodsIn(c.getEnclosedElements())) {
+        if (!method.getModifiers().contains(Modifier.PUBLIC) || !method.getParameters().isEmpty() ||
+            !visitedMethods.add(method.getSimpleName().toString())) {
+          continue;
+        }
+
+        if (getAnnotation(method, POST_CONSTRUCT) != null) {
+          model.postConstructMethods.add(method);
+        }
+      }
+    }
+
+    if (model.fields.isEmpty() && model.postConstructMethods.isEmpty()) {
+      return null;
+    }
+
+    model.constructor = findConstructor(type);
+    return model;
+  }
+
+  private boolean isFieldInjectable(VariableElement field, TypeElement declaringClass, PackageElement beanPackage) {
+    if (field.getModifiers().contains(Modifier.PRIVATE) || field.getModifiers().contains(Modifier.FINAL) ||
+        field.getModifiers().contains(Modifier.STATIC) || field.asType().getKind().isPrimitive()) {
+      return false;
+    }
+
+    if (!processingEnv.getElementUtils().getPackageOf(declaringClass).equals(beanPackage)) {
+      // field is declared in the other package
+      return field.getModifiers().contains(Modifier.PUBLIC) &&
+          declaringClass.getModifiers().contains(Modifier.PUBLIC);
+    }
+
+    return isAccessibleFromPackage(declaringClass);
+  }
+
+  // returns constructor, that matches the one chosen by the injection context or null if there is no such
+  static ExecutableElement findConstructor(TypeElement type) {
+    if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+      return null; // inner classes can not be instantiated without enclosing instance
+    }
+
+    final List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+    ExecutableElement publicConstructor = null;
+    for (final ExecutableElement constructor : constructors) {
+      if (constructor.getModifiers().contains(Modifier.PUBLIC)) {
+        if (publicConstructor != null) {
+          return null; // multiple public constructors are not supported
+        }
+        publicConstructor = constructor;
+      }
+    }
+
+    if (publicConstructor != null) {
+      return publicConstructor;
+    }
+
+    // fall back to the default constructor
+    for (final ExecutableElement constructor : constructors) {
+      if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+        return constructor;
+      }
+    }
+
+    return null;
+  }
+
+  static TypeElement getSuperclass(TypeElement type) {
+    final TypeMirror superclass = type.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+
+    final TypeElement result = (TypeElement) ((DeclaredType) superclass).asElement();
+    return result.getQualifiedName().contentEquals("java.lang.Object") ? null : result;
+  }
+
+  private static boolean isAccessibleFromPackage(TypeElement type) {
+    for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+      if (e.getModifiers().contains(Modifier.PRIVATE)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static AnnotationMirror getAnnotation(Element element, String annotationName) {
+    for (final AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      final TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+      if (annotationType.getQualifiedName().contentEquals(annotationName)) {
+        return annotation;
+      }
+    }
+    return null;
+  }
+
+  private String getTypeName(TypeMirror type) {
+    return processingEnv.getTypeUtils().erasure(type).toString();
+  }
+
+  private void writeInjector(TypeElement type, String binaryName, BeanModel model) {
+    final String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    final String injectorName = (packageName.isEmpty() ? binaryName :
+        binaryName.substring(packageName.length() + 1)) + CLASS_NAME_SUFFIX;
+    final String beanType = getTypeName(type.asType());
+
+    final PrintWriter out;
+    try {
+      out = new PrintWriter(processingEnv.getFiler().createSourceFile(binaryName + CLASS_NAME_SUFFIX, type)
+          .openWriter());
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to create injector: " + e, type);
+      return;
+    }
+
+    try {
+      if (!packageName.isEmpty()) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * Injector of {@link " + beanType + "}, generated by " + getClass().getName() + ".");
+      out.println(" */");
+      out.println("@SuppressWarnings(\"unchecked\")");
+      out.println("public final class " + injectorName + " implements " + INJECTOR_INTERFACE + "<" + beanType + "> {");
+
+      // metadata
+      out.print("  private static final String[] FIELD_NAMES = {");
+      for (int i = 0; i < model.fields.size(); ++i) {
+        final VariableElement field = model.fields.get(i);
+        final TypeElement declaringClass = (TypeElement) field.getEnclosingElement();
+        out.print((i > 0 ? ", " : "") + '"' + processingEnv.getElementUtils().getBinaryName(declaringClass) + '#' +
+            field.getSimpleName() + '"');
+      }
+      out.println("};");
+      out.print("  private static final String[] POST_CONSTRUCT_METHOD_NAMES = {");
+      for (int i = 0; i < model.postConstructMethods.size(); ++i) {
+        out.print((i > 0 ? ", " : "") + '"' + model.postConstructMethods.get(i).getSimpleName() + '"');
+      }
+      out.println("};");
+      out.println();
+      out.println("  public String[] getFieldNames() {");
+      out.println("    return FIELD_NAMES.clone();");
+      out.println("  }");
+      out.println();
+      out.println("  public String[] getPostConstructMethodNames() {");
+      out.println("    return POST_CONSTRUCT_METHOD_NAMES.clone();");
+      out.println("  }");
+      out.println();
+
+      // constructor
+      out.println("  public boolean canCreate() {");
+      out.println("    return " + (model.constructor != null) + ";");
+      out.println("  }");
+      out.println();
+      out.println("  public " + beanType + " create(Object[] arguments) {");
+      if (model.constructor != null) {
+        final StringBuilder call = new StringBuilder("return new " + beanType + "(");
+        final List<? extends VariableElement> parameters = model.constructor.getParameters();
+        for (int i = 0; i < parameters.size(); ++i) {
+          call.append(i > 0 ? ", " : "").append('(').append(getBoxedTypeName(parameters.get(i).asType()))
+              .append(") arguments[").append(i).append(']');
+        }
+        writeGuardedStatement(out, call.append(");").toString(), model.constructor);
+      } else {
+        out.println("    throw new UnsupportedOperationException(\"" + beanType + " can not be created\");");
+      }
+      out.println("  }");
+      out.println();
+
+      // fields
+      out.println("  public void inject(" + beanType + " bean, int fieldIndex, Object value) {");
+      out.println("    switch (fieldIndex) {");
+      for (int i = 0; i < model.fields.size(); ++i) {
+        final VariableElement field = model.fields.get(i);
+        final TypeElement declaringClass = (TypeElement) field.getEnclosingElement();
+        final String target = declaringClass.equals(type) ? "bean" :
+            "((" + getTypeName(declaringClass.asType()) + ") bean)";
+        out.println("      case " + i + ":");
+        out.println("        " + target + "." + field.getSimpleName() + " = (" + getTypeName(field.asType()) +
+            ") value;");
+        out.println("        break;");
+      }
+      out.println("      default:");
+      out.println("        throw new IndexOutOfBoundsException(\"fieldIndex=\" + fieldIndex);");
+      out.println("    }");
+      out.println("  }");
+      out.println();
+
+      // post-construct methods
+      out.println("  public void postConstruct(" + beanType + " bean) {");
+      for (final ExecutableElement method : model.postConstructMethods) {
+        writeGuardedStatement(out, "bean." + method.getSimpleName() + "();", method);
+      }
+      out.println("  }");
+      out.println("}");
+    } finally {
+      out.close();
+    }
+  }
+
+  private String getBoxedTypeName(TypeMirror type) {
+    if (type.getKind().isPrimitive()) {
+      return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type)
+          .getQualifiedName().toString();
+    }
+    return getTypeName(type);
+  }
+
+  // checked exceptions are wrapped into UndeclaredThrowableException
+  private static void writeGuardedStatement(PrintWriter out, String statement, ExecutableElement executable) {
+    if (executable.getThrownTypes().isEmpty()) {
+      out.println("    " + statement);
+      return;
+    }
+
+    out.println("    try {");
+    out.println("      " + statement);
+    out.println("    } catch (RuntimeException e) {");
+    out.println("      throw e;");
+    out.println("    } catch (Error e) {");
+    out.println("      throw e;");
+    out.println("    } catch (Throwable e) {");
+    out.println("      throw new java.lang.reflect.UndeclaredThrowableException(e);");
+    out.println("    }");
+  }
+}
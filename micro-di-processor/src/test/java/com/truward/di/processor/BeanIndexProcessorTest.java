@@ -0,0 +1,136 @@
+package com.truward.di.processor;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.support.BeanIndexLoader;
+import com.truward.di.support.DefaultInjectionContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link BeanIndexProcessor} and {@link BeanIndexLoader}.
+ */
+public class BeanIndexProcessorTest {
+
+  private TestCompiler compiler;
+
+  @Before
+  public void createCompiler() throws IOException {
+    compiler = new TestCompiler();
+  }
+
+  @Test
+  public void shouldWriteIndexLoadedByContext() throws Exception {
+    final ClassLoader classLoader = compiler.compile(BeanIndexProcessor.class,
+        "sample/Foo.java",
+        "package sample;\n" +
+        "public interface Foo { int foo(); }\n",
+
+        "sample/BaseFoo.java",
+        "package sample;\n" +
+        "public abstract class BaseFoo implements Foo, java.io.Serializable {}\n",
+
+        "sample/FooImpl.java",
+        "package sample;\n" +
+        "@com.truward.di.Bean\n" +
+        "public class FooImpl extends BaseFoo { public int foo() { return 1; } }\n",
+
+        "sample/Bar.java",
+        "package sample;\n" +
+        "import javax.annotation.*;\n" +
+        "@com.truward.di.Bean\n" +
+        "public class Bar {\n" +
+        "  public final Foo ctorFoo;\n" +
+        "  @Resource Runnable runnable;\n" +
+        "  public Bar(Foo ctorFoo) { this.ctorFoo = ctorFoo; }\n" +
+        "}\n",
+
+        "sample/Baz.java",
+        "package sample;\n" +
+        "@com.truward.di.Bean\n" +
+        "public class Baz implements Runnable {\n" +
+        "  public void run() {}\n" +
+        "}\n");
+
+    final String index = read(new File(compiler.getWorkDir(), BeanIndexLoader.INDEX_RESOURCE_NAME));
+    assertTrue(index, index.contains("\nsample.Bar::java.lang.Runnable:sample.Foo\n"));
+    assertTrue(index, index.contains("\nsample.Baz:java.lang.Runnable::\n"));
+    assertTrue(index, index.contains("\nsample.FooImpl:sample.BaseFoo,sample.Foo,java.io.Serializable::\n"));
+
+    // Bar is registered after Foo, that is required by its constructor
+    final InjectionContext context = new DefaultInjectionContext();
+    assertEquals(3, BeanIndexLoader.registerBeans(context, classLoader));
+    context.freeze();
+
+    final Class<?> fooClass = classLoader.loadClass("sample.Foo");
+    final Object foo = context.getBean(fooClass);
+    assertSame(foo, context.getBean(classLoader.loadClass("sample.BaseFoo")));
+    assertSame(foo, classLoader.loadClass("sample.Bar").getField("ctorFoo").get(
+        context.getBean(classLoader.loadClass("sample.Bar"))));
+    assertEquals(1, context.getBeans(Runnable.class).size());
+  }
+
+  @Test
+  public void shouldKeepBeansOfPreviousCompilationInIndex() throws Exception {
+    compiler.compile(BeanIndexProcessor.class,
+        "sample/Foo.java",
+        "package sample;\n" +
+        "@com.truward.di.Bean\n" +
+        "public class Foo {}\n",
+
+        "sample/Bar.java",
+        "package sample;\n" +
+        "@com.truward.di.Bean\n" +
+        "public class Bar {}\n",
+
+        "sample/Baz.java",
+        "package sample;\n" +
+        "@com.truward.di.Bean\n" +
+        "public class Baz { public static class Nested {} }\n");
+
+    // incremental compilation of the changed files only: Bar is no longer a bean, Baz.Nested has become one
+    final ClassLoader classLoader = compiler.compile(BeanIndexProcessor.class,
+        "sample/Bar.java",
+        "package sample;\n" +
+        "public class Bar {}\n",
+
+        "sample/Baz.java",
+        "package sample;\n" +
+        "@com.truward.di.Bean\n" +
+        "public class Baz { @com.truward.di.Bean public static class Nested {} }\n");
+
+    final String index = read(new File(compiler.getWorkDir(), BeanIndexLoader.INDEX_RESOURCE_NAME));
+    assertTrue(index, index.contains("\nsample.Foo:::\n"));
+    assertTrue(index, index.contains("\nsample.Baz:::\n"));
+    assertTrue(index, index.contains("\nsample.Baz$Nested:::\n"));
+    assertFalse(index, index.contains("sample.Bar"));
+
+    final InjectionContext context = new DefaultInjectionContext();
+    assertEquals(3, BeanIndexLoader.registerBeans(context, classLoader));
+  }
+
+  //
+  // Private
+  //
+
+  private static String read(File file) throws IOException {
+    final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      final StringBuilder result = new StringBuilder();
+      final char[] buffer = new char[1024];
+      for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+        result.append(buffer, 0, read);
+      }
+      return result.toString();
+    } finally {
+      reader.close();
+    }
+  }
+}
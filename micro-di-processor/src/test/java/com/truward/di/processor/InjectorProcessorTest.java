@@ -0,0 +1,96 @@
+package com.truward.di.processor;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.Injector;
+import com.truward.di.support.DefaultInjectionContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link InjectorProcessor}.
+ */
+public class InjectorProcessorTest {
+
+  private TestCompiler compiler;
+
+  @Before
+  public void createCompiler() throws IOException {
+    compiler = new TestCompiler();
+  }
+
+  @Test
+  public void shouldGenerateInjectorUsedByContext() throws Exception {
+    final ClassLoader classLoader = compiler.compile(InjectorProcessor.class,
+        "sample/Foo.java",
+        "package sample;\n" +
+        "public interface Foo { int foo(); }\n",
+
+        "sample/FooImpl.java",
+        "package sample;\n" +
+        "public class FooImpl implements Foo { public int foo() { return 1; } }\n",
+
+        "sample/Bar.java",
+        "package sample;\n" +
+        "import javax.annotation.*;\n" +
+        "public class Bar {\n" +
+        "  @Resource Foo foo;\n" +
+        "  public int value;\n" +
+        "  @PostConstruct public void init() throws Exception { value = 10 + foo.foo(); }\n" +
+        "}\n",
+
+        "sample/Baz.java",
+        "package sample;\n" +
+        "import javax.annotation.*;\n" +
+        "public class Baz extends Bar {\n" +
+        "  private final Foo ctorFoo;\n" +
+        "  @Resource protected Foo otherFoo;\n" +
+        "  public Baz(Foo ctorFoo) { this.ctorFoo = ctorFoo; }\n" +
+        "  public int baz() { return value + otherFoo.foo() + ctorFoo.foo(); }\n" +
+        "}\n");
+
+    final Class<?> barClass = classLoader.loadClass("sample.Bar");
+    final Class<?> bazClass = classLoader.loadClass("sample.Baz");
+    final Injector<?> barInjector = (Injector<?>) classLoader.loadClass("sample.Bar" + Injector.CLASS_NAME_SUFFIX)
+        .newInstance();
+    final Injector<?> bazInjector = (Injector<?>) classLoader.loadClass("sample.Baz" + Injector.CLASS_NAME_SUFFIX)
+        .newInstance();
+    assertEquals(Arrays.asList("sample.Bar#foo"), Arrays.asList(barInjector.getFieldNames()));
+    assertEquals(Arrays.asList("sample.Baz#otherFoo", "sample.Bar#foo"), Arrays.asList(bazInjector.getFieldNames()));
+    assertEquals(Arrays.asList("init"), Arrays.asList(bazInjector.getPostConstructMethodNames()));
+    assertTrue(bazInjector.canCreate());
+
+    final InjectionContext context = new DefaultInjectionContext();
+    context.registerBean(classLoader.loadClass("sample.FooImpl"));
+    context.registerBean(barClass);
+    context.registerBean(bazClass);
+    context.freeze();
+
+    final Object baz = context.getBean(bazClass);
+    assertEquals(13, bazClass.getMethod("baz").invoke(baz));
+    assertEquals(11, bazClass.getField("value").get(baz));
+  }
+
+  @Test
+  public void shouldNotGenerateInjectorForPrivateFields() throws Exception {
+    final ClassLoader classLoader = compiler.compile(InjectorProcessor.class,
+        "sample/PrivateBean.java",
+        "package sample;\n" +
+        "import javax.annotation.*;\n" +
+        "public class PrivateBean {\n" +
+        "  @Resource private Runnable runnable;\n" +
+        "}\n");
+
+    classLoader.loadClass("sample.PrivateBean");
+    try {
+      classLoader.loadClass("sample.PrivateBean" + Injector.CLASS_NAME_SUFFIX);
+      fail("Injector should not be generated for the bean with private fields");
+    } catch (ClassNotFoundException ignored) {
+      // expected
+    }
+  }
+}
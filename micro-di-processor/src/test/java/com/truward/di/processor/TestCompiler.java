@@ -0,0 +1,85 @@
+package com.truward.di.processor;
+
+import com.truward.di.InjectionContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Resource;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compiles test sources with the given annotation processors.
+ */
+final class TestCompiler {
+  private final File workDir;
+
+  TestCompiler() throws IOException {
+    workDir = File.createTempFile("micro-di-processor", "");
+    assertTrue(workDir.delete());
+    assertTrue(workDir.mkdirs());
+  }
+
+  @Nonnull
+  File getWorkDir() {
+    return workDir;
+  }
+
+  // compiles given sources, passed as pairs of the file name and the file content
+  @Nonnull
+  ClassLoader compile(@Nonnull Class<?> processor, String... sources) throws IOException {
+    final List<File> files = new ArrayList<File>();
+    for (int i = 0; i < sources.length; i += 2) {
+      final File file = new File(workDir, sources[i]);
+      assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+      final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try {
+        writer.write(sources[i + 1]);
+      } finally {
+        writer.close();
+      }
+      files.add(file);
+    }
+
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+    try {
+      // the output of the previous compilations is on the class path, as in the incremental build
+      final List<String> options = Arrays.asList("-classpath", getClassPath() + File.pathSeparator + workDir.getPath(),
+          "-d", workDir.getPath(),
+          "-processor", processor.getName());
+      final Boolean result = compiler.getTask(null, fileManager, null, options, null,
+          fileManager.getJavaFileObjectsFromFiles(files)).call();
+      assertTrue("Compilation failed", result);
+    } finally {
+      fileManager.close();
+    }
+
+    return new URLClassLoader(new URL[] { workDir.toURI().toURL() }, getClass().getClassLoader());
+  }
+
+  @Nonnull
+  private static String getClassPath() {
+    final StringBuilder result = new StringBuilder();
+    for (final Class<?> c : Arrays.asList(InjectionContext.class, Nonnull.class, Resource.class)) {
+      final CodeSource codeSource = c.getProtectionDomain().getCodeSource();
+      if (codeSource != null) {
+        result.append(result.length() > 0 ? File.pathSeparator : "").append(codeSource.getLocation().getPath());
+      }
+    }
+    return result.toString();
+  }
+}
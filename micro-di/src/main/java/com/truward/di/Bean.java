@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks the bean class, that should be listed in the bean index.
+ * The index is written at compile time by the micro-di annotation processor, so that the beans are registered
+ * by {@link com.truward.di.support.BeanIndexLoader} without classpath scanning and without walking the class
+ * hierarchies at runtime.
+ *
+ * @author Alexander Shabanov
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Bean {
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.Executor;
+
+/**
+ * Immutable options of {@link InjectionContext#freeze(FreezeOptions)}.
+ * <p>
+ * By default the beans are initialized lazily, on the first request, so the first request, that touches the bean,
+ * pays for the initialization of all of its uninitialized dependencies. The eager mode initializes all the beans
+ * when the context is frozen, so that the first request takes as long as any other one.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+public final class FreezeOptions {
+  /**
+   * Options of {@link InjectionContext#freeze()}: the beans are initialized on the first request.
+   */
+  public static final FreezeOptions LAZY = new FreezeOptions(false, false, null);
+
+  private final boolean eager;
+  private final boolean warmup;
+  private final Executor executor;
+
+  private FreezeOptions(boolean eager, boolean warmup, @Nullable Executor executor) {
+    this.eager = eager;
+    this.warmup = warmup;
+    this.executor = executor;
+  }
+
+  /**
+   * @return Options, that initialize all the beans and invoke their post-construct methods upfront.
+   */
+  @Nonnull
+  public static FreezeOptions eager() {
+    return new FreezeOptions(true, false, null);
+  }
+
+  /**
+   * @return Copy of these options, that also invokes the methods annotated with {@link Warmup}
+   * once all the beans are initialized. Implies the eager mode.
+   */
+  @Nonnull
+  public FreezeOptions withWarmup() {
+    return new FreezeOptions(true, true, executor);
+  }
+
+  /**
+   * @param executor Executor, that initializes the independent beans and invokes their warm-up methods in parallel,
+   *                 as {@link InjectionContext#freeze(Executor)} does.
+   * @return Copy of these options, that uses the given executor. Implies the eager mode.
+   */
+  @Nonnull
+  public FreezeOptions withExecutor(@Nonnull Executor executor) {
+    return new FreezeOptions(true, warmup, executor);
+  }
+
+  public boolean isEager() {
+    return eager;
+  }
+
+  public boolean isWarmup() {
+    return warmup;
+  }
+
+  @Nullable
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  @Override
+  public String toString() {
+    return "FreezeOptions{eager=" + eager + ", warmup=" + warmup + ", executor=" + executor + '}';
+  }
+}
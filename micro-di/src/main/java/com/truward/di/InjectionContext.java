@@ -16,6 +16,8 @@ package com.truward.di;
 
 import javax.annotation.Nonnull;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides very simple dependency injection support by
@@ -28,6 +30,18 @@ import java.util.List;
  * The methods annotated with the PostConstruct will be invoked when all these fields
  * will be initialized.
  *
+ * The fields and constructor parameters of type {@code List<Foo>}, {@code Set<Foo>} and {@code Map<String, Foo>}
+ * are injected with the immutable collections of all the beans of type {@code Foo}, the map is keyed by the bean
+ * names or by the class names of the unnamed beans. Once the context is frozen, each collection is built on its first
+ * request and shared afterwards, including the collections of the child contexts, that merge the beans of their
+ * parents.
+ *
+ * The PostConstruct method may return {@link java.util.concurrent.Future} to continue the initialization
+ * asynchronously, e.g. to load the data without blocking the initialization of the other beans.
+ * The context waits for the returned future before the PostConstruct methods of the dependent beans
+ * are invoked and before the bean is returned by {@link #getBean(Class)} or {@link #getBeans(Class)},
+ * and fails with {@link InjectionException} if the future completes exceptionally.
+ *
  * The implementations of this class are not thread safe unless otherwise specified.
  *
  * @see javax.annotation.Resource
@@ -55,6 +69,57 @@ public interface InjectionContext {
    */
   <T> void registerBean(@Nonnull Class<T> beanClass);
 
+  /**
+   * Puts bean instance with the given name to the context.
+   * Unlike the unnamed beans, several named beans may share the same class, e.g. one bean per shard,
+   * such beans are distinguished by {@link #getBean(String, Class)} and by the fields annotated with
+   * the Resource annotation, that specifies the name of the resource.
+   * Throws {@link InjectionException} if the given name is already used by the other bean.
+   *
+   * @param name Unique bean name.
+   * @param bean Bean instance.
+   * @param <T> Bean's class.
+   */
+  <T> void registerBean(@Nonnull String name, @Nonnull T bean);
+
+  /**
+   * Puts the definition of the bean of the given class and scope to the context.
+   * The beans, which scope is not {@link Scope#SINGLETON}, are created on demand, along with the injection of
+   * their fields and constructor parameters, and are not returned by {@link #getBeans(Class)}:
+   * <ul>
+   *   <li>{@link Scope#PROTOTYPE} - new bean is injected to each field or constructor parameter, returned by
+   *   each {@link Provider#get()} call and by each {@link #getBean(Class)} call;</li>
+   *   <li>{@link Scope#THREAD} - each thread gets its own bean through the injected {@link Provider}, lazy proxy
+   *   or {@link #getBean(Class)}, the bean can not be injected directly;</li>
+   *   <li>{@link Scope#pooled(int)} - the beans are borrowed from the injected {@link Pool}.</li>
+   * </ul>
+   * The thread-local and the pooled beans are destroyed along with the context.
+   * Throws {@link InjectionException} if the given bean class clashes with certain existing definition.
+   *
+   * @param beanClass Non-interface bean class.
+   * @param scope Bean scope.
+   * @param <T> Bean class type.
+   */
+  <T> void registerBean(@Nonnull Class<T> beanClass, @Nonnull Scope scope);
+
+  /**
+   * Puts all the given bean instances to the context.
+   * This is equivalent to calling {@link #registerBean(Object)} for each bean, but the cost of the
+   * registration does not depend on the number of the beans, that are already registered.
+   *
+   * @param beans Bean instances.
+   */
+  void registerBeans(@Nonnull Iterable<?> beans);
+
+  /**
+   * Puts beans of all the given classes to the context.
+   * This is equivalent to calling {@link #registerBean(Class)} for each class in the iteration order,
+   * so constructor dependencies of each bean should precede it or be registered before.
+   *
+   * @param beanClasses Non-interface bean classes.
+   */
+  void registerBeanClasses(@Nonnull Iterable<Class<?>> beanClasses);
+
   /**
    * Gets bean associated with the class given.
    * Returns current Context instance when beanClass equals to Context class itself.
@@ -68,8 +133,25 @@ public interface InjectionContext {
   @Nonnull
   <T> T getBean(@Nonnull Class<T> beanClass);
 
+  /**
+   * Gets bean with the given name.
+   * The fields annotated with the Resource annotation, that specifies either the name or the mapped name,
+   * are injected with the beans resolved by this method.
+   * Throws {@link InjectionException} in case of no bean with the given name or if the bean with the given
+   * name is not an instance of the given class.
+   *
+   * @param name Bean name.
+   * @param beanClass Class, that is expected to be implemented by the bean.
+   * @param <T> Bean type.
+   * @return Non-null bean instance.
+   */
+  @Nonnull
+  <T> T getBean(@Nonnull String name, @Nonnull Class<T> beanClass);
+
   /**
    * Returns all the beans that implement the given class.
+   * The beans registered with the scope other than {@link Scope#SINGLETON} are not included, as they are
+   * created on demand.
    *
    * @param beanClass Interface class, that is expected to be associated with the bean.
    * @param <T> Interface type.
@@ -84,6 +166,76 @@ public interface InjectionContext {
    */
   void freeze();
 
+  /**
+   * Freezes current context and eagerly initializes all the registered beans.
+   * The beans are initialized in topological order of their dependencies, declared by the fields annotated with
+   * the Resource annotation and by the constructor parameters. Each bean is submitted to the given executor
+   * as soon as all of its dependencies are initialized, so that the independent beans are initialized in parallel
+   * and PostConstruct methods run as soon as the dependencies of the corresponding bean are ready.
+   * This method returns when all the beans are initialized, including the asynchronous initialization.
+   * Throws {@link InjectionException} if any of the beans can not be initialized.
+   *
+   * @param executor Executor, that will be used to initialize the beans.
+   * @see #freeze()
+   */
+  void freeze(@Nonnull Executor executor);
+
+  /**
+   * Freezes current context with the given options.
+   * In the eager mode all the registered beans are initialized and their PostConstruct methods are invoked
+   * before this method returns, so that the first request does not pay for the initialization of the beans.
+   * If the warm-up is requested, the methods annotated with {@link Warmup} are invoked afterwards,
+   * the dependencies of each bean are warmed up before the bean itself.
+   * Throws {@link InjectionException} if any of the beans can not be initialized or warmed up.
+   *
+   * @param options Freeze options.
+   * @see #freeze()
+   * @see #freeze(Executor)
+   */
+  void freeze(@Nonnull FreezeOptions options);
+
+  /**
+   * Creates child context, that resolves the beans, which are not registered in the child context itself,
+   * through this context. The beans of this context are neither copied nor re-indexed, so the child context
+   * is cheap to create, e.g. to register a few request- or tenant-scoped beans.
+   * The beans of the child context take precedence over the beans of this context in
+   * {@link #getBean(Class)} and go first in {@link #getBeans(Class)}.
+   * This context should be frozen.
+   *
+   * @return New non-frozen child context.
+   */
+  @Nonnull
+  InjectionContext createChild();
+
+  /**
+   * Destroys the initialized beans of this context: invokes the methods annotated with the PreDestroy annotation
+   * and then closes the beans, that implement {@link java.io.Closeable} or {@code java.lang.AutoCloseable}.
+   * The beans are destroyed in the reverse order of their dependencies, so that each bean is destroyed
+   * after all the beans, that depend on it. The beans of the parent context are not destroyed.
+   * Throws {@link InjectionException} if any of the beans can not be destroyed, once all the other beans are
+   * destroyed. Once the context is closed, the registrations, the lookups and the freezing are rejected by
+   * {@link IllegalStateException}, repeated calls have no effect.
+   *
+   * @see javax.annotation.PreDestroy
+   */
+  void close();
+
+  /**
+   * Destroys the initialized beans of this context in parallel.
+   * Each bean is submitted to the given executor as soon as all the beans, that depend on it, are destroyed,
+   * so the executor should be bounded to limit the number of the beans, that are destroyed at the same time.
+   * If the bean is not destroyed in the given time since its submission, its destruction is cancelled
+   * and reported as failed, and its dependencies are destroyed anyway.
+   * If the executor rejects the bean, the remaining beans are destroyed in the current thread.
+   * This method returns when all the beans are destroyed or timed out.
+   *
+   * @param executor Executor, that will be used to destroy the beans.
+   * @param timeout Timeout for destruction of each bean.
+   * @param unit Time unit of the timeout.
+   * @see #close()
+   */
+  void close(@Nonnull Executor executor, long timeout, @Nonnull TimeUnit unit);
+
   /**
    * @return Boolean flag, that indicates, whether the context is frozen or not.
    * @see #freeze()
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives notifications about the bean initialization and the bean lookups, e.g. to find the beans,
+ * that dominate the startup time of the application.
+ * <p>
+ * The listener is invoked synchronously by the thread, that constructs, initializes or requests the bean,
+ * so the implementations should be fast and, if the context is shared between threads, thread safe.
+ * The durations are measured by {@link System#nanoTime()}.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ * @see com.truward.di.support.DefaultInjectionContext#setInjectionListener(InjectionListener)
+ */
+public interface InjectionListener {
+
+  /**
+   * Invoked when the bean is created by the context.
+   * The duration covers only the constructor invocation, the resolution of the constructor arguments
+   * is not included.
+   *
+   * @param bean Created bean.
+   * @param durationNanos Constructor invocation time.
+   */
+  void beanConstructed(@Nonnull Object bean, long durationNanos);
+
+  /**
+   * Invoked when all the fields of the bean are injected.
+   * The duration includes the initialization of the dependencies, that were not initialized before.
+   *
+   * @param bean Bean, which fields are injected.
+   * @param durationNanos Field injection time.
+   */
+  void fieldsInjected(@Nonnull Object bean, long durationNanos);
+
+  /**
+   * Invoked when all the post-construct methods of the bean are invoked.
+   *
+   * @param bean Initialized bean.
+   * @param durationNanos Time spent in the post-construct methods.
+   */
+  void postConstructInvoked(@Nonnull Object bean, long durationNanos);
+
+  /**
+   * Invoked on each {@link InjectionContext#getBean(Class)} and {@link InjectionContext#getBeans(Class)} call,
+   * including the ones made by the context itself to resolve the dependencies.
+   *
+   * @param beanClass Requested class.
+   * @param found False, if there is no bean of the requested class.
+   */
+  void beanRequested(@Nonnull Class<?> beanClass, boolean found);
+}
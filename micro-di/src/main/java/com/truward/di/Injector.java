@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Reflection-free injector of the beans of a certain class.
+ * <p>
+ * The implementations of this interface are generated at compile time by the micro-di annotation processor,
+ * the generated class resides in the package of the bean class and its name is the binary name of
+ * the bean class followed by {@link #CLASS_NAME_SUFFIX}.
+ * The injection context uses the generated injector if there is one, and falls back to reflection otherwise.
+ * </p>
+ *
+ * @param <T> Bean class.
+ * @author Alexander Shabanov
+ */
+public interface Injector<T> {
+
+  /**
+   * Suffix, that is appended to the binary name of the bean class to get the name of the injector class.
+   */
+  String CLASS_NAME_SUFFIX = "$$Injector";
+
+  /**
+   * Returns the injected fields, each field is identified by the binary name of the declaring class
+   * and the field name, separated by {@code '#'}.
+   * Position of the field in this array is the field index, passed to {@link #inject(Object, int, Object)}.
+   *
+   * @return Non-null array of the injected fields.
+   */
+  @Nonnull
+  String[] getFieldNames();
+
+  /**
+   * @return Non-null array of the names of the post-construct methods, invoked by {@link #postConstruct(Object)}.
+   */
+  @Nonnull
+  String[] getPostConstructMethodNames();
+
+  /**
+   * @return True, if this injector can create bean instances by using {@link #create(Object[])}.
+   */
+  boolean canCreate();
+
+  /**
+   * Creates new bean instance by using the only public constructor or the default one.
+   *
+   * @param arguments Constructor arguments.
+   * @return New bean instance.
+   */
+  @Nonnull
+  T create(@Nonnull Object[] arguments);
+
+  /**
+   * Assigns the given value to the injected field.
+   *
+   * @param bean Bean instance.
+   * @param fieldIndex Field index, corresponding to the position of the field in {@link #getFieldNames()}.
+   * @param value Value to be injected.
+   */
+  void inject(@Nonnull T bean, int fieldIndex, @Nonnull Object value);
+
+  /**
+   * Invokes all the post-construct methods of the given bean.
+   *
+   * @param bean Bean instance.
+   */
+  void postConstruct(@Nonnull T bean);
+}
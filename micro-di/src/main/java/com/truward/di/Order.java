@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import java.lang.annotation.*;
+
+/**
+ * Defines position of the bean in the lists returned by {@link InjectionContext#getBeans(Class)}.
+ * Beans with the lower values go first, beans without this annotation go after the annotated ones.
+ * Beans with the same order are returned in the order of their registration.
+ *
+ * @author Alexander Shabanov
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Order {
+
+  /**
+   * @return Order value, lower values have higher priority.
+   */
+  int value();
+}
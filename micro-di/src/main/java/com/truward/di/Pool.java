@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of the beans, registered with {@link Scope#pooled(int)}.
+ * Fields annotated with the Resource annotation and constructor parameters of this type are injected with
+ * the pool of the bean, specified by the type argument. The pooled beans are created on demand, until
+ * the capacity of the pool is reached. The borrowed bean is used exclusively by the borrower and should be
+ * released to the same pool once it is no longer used:
+ * <pre>
+ * final Parser parser = parserPool.borrow();
+ * try {
+ *   return parser.parse(text);
+ * } finally {
+ *   parserPool.release(parser);
+ * }
+ * </pre>
+ * The implementations are thread safe.
+ *
+ * @param <T> Bean type.
+ * @author Alexander Shabanov
+ */
+public interface Pool<T> {
+
+  /**
+   * Borrows the bean from this pool, waits if all the beans are borrowed and the pool is at its capacity.
+   * Throws {@link InjectionException} if the bean can not be created or if the current thread is interrupted.
+   *
+   * @return Non-null bean instance.
+   */
+  @Nonnull
+  T borrow();
+
+  /**
+   * Borrows the bean from this pool, waits at most the given time if all the beans are borrowed and the pool
+   * is at its capacity.
+   *
+   * @param timeout Maximum time to wait.
+   * @param unit Time unit of the timeout.
+   * @return Bean instance or null if the time has elapsed.
+   */
+  @Nullable
+  T borrow(long timeout, @Nonnull TimeUnit unit);
+
+  /**
+   * Returns the borrowed bean to this pool.
+   * Throws {@link IllegalArgumentException} if the bean has not been created by this pool and
+   * {@link IllegalStateException} if the bean is not borrowed, e.g. when it is released twice.
+   *
+   * @param bean Bean, that has been borrowed from this pool.
+   */
+  void release(@Nonnull T bean);
+}
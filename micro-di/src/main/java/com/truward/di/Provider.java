@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Provides deferred access to the bean.
+ * Fields annotated with the Resource annotation and constructor parameters of this type are injected with
+ * a provider of the bean, specified by the type argument, the bean itself is resolved and initialized only
+ * when {@link #get()} is called for the first time.
+ *
+ * @param <T> Bean type.
+ * @author Alexander Shabanov
+ */
+public interface Provider<T> {
+
+  /**
+   * Gets bean instance, throws {@link InjectionException} if the bean can not be resolved.
+   *
+   * @return Non-null bean instance.
+   */
+  @Nonnull
+  T get();
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks the bean, which fields annotated with the Resource annotation are injected again, when the beans injected
+ * to them are replaced in the frozen context, so that the bean starts using the replacing beans.
+ * The constructor parameters are not injected again and the beans, that are not marked by this annotation,
+ * keep using the replaced beans. The re-injected fields should be volatile, if the bean is used by the other
+ * threads during the replacement.
+ *
+ * @see com.truward.di.support.DefaultInjectionContext#replaceBean(Class, Object)
+ * @author Alexander Shabanov
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Refreshable {
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Scope of the bean, registered by {@link InjectionContext#registerBean(Class, Scope)}.
+ * <p>
+ * The beans, that are expensive to create and not thread safe, e.g. parsers or codecs, should not be shared
+ * between threads as singletons. Such beans are either created for each injection ({@link #PROTOTYPE}),
+ * once per thread ({@link #THREAD}) or borrowed from the bounded pool ({@link #pooled(int)}).
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+public final class Scope {
+
+  public enum Kind {
+    /**
+     * The only bean is shared by all the dependent beans.
+     */
+    SINGLETON,
+
+    /**
+     * New bean is created for each injection, for each {@link Provider#get()} call and for each lookup.
+     */
+    PROTOTYPE,
+
+    /**
+     * Each thread gets its own bean, resolved through the injected {@link Provider} or lazy proxy.
+     * The beans of the terminated threads are destroyed, when the bean for the next thread is created,
+     * the beans of the live threads are destroyed along with the context.
+     */
+    THREAD,
+
+    /**
+     * The beans are borrowed from and released to the injected {@link Pool}.
+     */
+    POOLED
+  }
+
+  public static final Scope SINGLETON = new Scope(Kind.SINGLETON, 0);
+
+  public static final Scope PROTOTYPE = new Scope(Kind.PROTOTYPE, 0);
+
+  public static final Scope THREAD = new Scope(Kind.THREAD, 0);
+
+  private final Kind kind;
+  private final int capacity;
+
+  private Scope(@Nonnull Kind kind, int capacity) {
+    this.kind = kind;
+    this.capacity = capacity;
+  }
+
+  /**
+   * @param capacity Maximum number of the beans, created by the pool.
+   * @return Scope of the beans, that are borrowed from the pool of the given capacity.
+   */
+  @Nonnull
+  public static Scope pooled(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Pool capacity should be positive: " + capacity);
+    }
+    return new Scope(Kind.POOLED, capacity);
+  }
+
+  @Nonnull
+  public Kind getKind() {
+    return kind;
+  }
+
+  /**
+   * @return Capacity of the pool or 0 if the beans are not pooled.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  public String toString() {
+    return kind == Kind.POOLED ? "POOLED(" + capacity + ")" : kind.name();
+  }
+}
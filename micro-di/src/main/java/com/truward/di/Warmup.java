@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks public no-argument method of the bean, that primes the caches of the bean or exercises its hot paths,
+ * so that they are compiled before the bean serves the first request.
+ * The warm-up methods are invoked once all the beans of the context are initialized, when the context is frozen
+ * with {@link FreezeOptions#withWarmup()}; the dependencies of the bean are warmed up before the bean itself.
+ *
+ * @see InjectionContext#freeze(FreezeOptions)
+ * @author Alexander Shabanov
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Warmup {
+}
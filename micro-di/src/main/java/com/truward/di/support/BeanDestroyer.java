@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Destroys the initialized beans in the reverse order of their dependencies: the bean is destroyed only after
+ * all the beans, that depend on it, are destroyed. Destruction invokes the methods annotated with
+ * {@link javax.annotation.PreDestroy} and closes the closeable beans.
+ * <p>
+ * Beans, that form the dependency cycles, are destroyed at the end in the reverse order of their registration.
+ * Failure to destroy one bean does not prevent destruction of the others, all the failures are reported
+ * at the end by a single {@link InjectionException}.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+final class BeanDestroyer {
+  private final DependencyGraph graph;
+  private final int[] pendingDependents;
+  private final boolean[] destroyed;
+  private final List<String> failedBeans = new ArrayList<String>();
+  private Throwable firstFailure;
+
+  BeanDestroyer(@Nonnull DependencyGraph graph) {
+    this.graph = graph;
+    this.pendingDependents = new int[graph.size()];
+    this.destroyed = new boolean[graph.size()];
+    for (int i = 0; i < pendingDependents.length; ++i) {
+      pendingDependents[i] = graph.getDependents(i).length;
+    }
+  }
+
+  /**
+   * Destroys the beans one by one in the current thread.
+   */
+  void destroy() {
+    final Deque<Integer> ready = getReadyNodes();
+    while (!ready.isEmpty()) {
+      destroyInCurrentThread(ready.pop(), ready);
+    }
+
+    destroyRemaining();
+  }
+
+  /**
+   * Destroys the beans by using the given executor, so that the independent beans are destroyed in parallel.
+   * The dependencies of the bean, which destruction has not been completed in the given time since its
+   * submission, are released anyway, as if the destruction has failed.
+   * Once the executor rejects the bean, e.g. as it has been shut down, the remaining beans are destroyed
+   * in the current thread.
+   *
+   * @param executor Executor, that runs the destruction of each bean.
+   * @param timeoutNanos Timeout for the destruction of each bean.
+   */
+  void destroy(@Nonnull Executor executor, long timeoutNanos) {
+    final CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+    final Map<Future<Integer>, Integer> running = new IdentityHashMap<Future<Integer>, Integer>();
+    final Map<Future<Integer>, Long> deadlines = new IdentityHashMap<Future<Integer>, Long>();
+    final Deque<Integer> ready = getReadyNodes();
+    boolean rejected = false;
+
+    try {
+      while (!ready.isEmpty() || !running.isEmpty()) {
+        while (!ready.isEmpty()) {
+          final int node = ready.pop();
+          if (!rejected) {
+            try {
+              final Future<Integer> future = completionService.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                  destroyBean(node);
+                  return node;
+                }
+              });
+              running.put(future, node);
+              deadlines.put(future, System.nanoTime() + timeoutNanos);
+              continue;
+            } catch (RejectedExecutionException e) {
+              rejected = true;
+            }
+          }
+          destroyInCurrentThread(node, ready);
+        }
+        if (running.isEmpty()) {
+          continue; // all the remaining beans have been destroyed in the current thread
+        }
+
+        final long now = System.nanoTime();
+        long nearestDeadline = Long.MAX_VALUE;
+        for (final Map.Entry<Future<Integer>, Long> entry : deadlines.entrySet()) {
+          nearestDeadline = Math.min(nearestDeadline, entry.getValue());
+        }
+
+        final Future<Integer> completed = completionService.poll(Math.max(0L, nearestDeadline - now),
+            TimeUnit.NANOSECONDS);
+        if (completed != null) {
+          final Integer node = running.remove(completed);
+          deadlines.remove(completed);
+          if (node == null) {
+            continue; // cancelled after the timeout
+          }
+
+          try {
+            completed.get();
+          } catch (ExecutionException e) {
+            addFailure(node, e.getCause());
+          }
+          release(node, ready);
+          continue;
+        }
+
+        // release the dependencies of the beans, that are being destroyed for too long
+        final long expiration = System.nanoTime();
+        for (final Iterator<Map.Entry<Future<Integer>, Long>> it = deadlines.entrySet().iterator(); it.hasNext();) {
+          final Map.Entry<Future<Integer>, Long> entry = it.next();
+          if (entry.getValue() - expiration <= 0) {
+            final Future<Integer> future = entry.getKey();
+            it.remove();
+            future.cancel(true);
+            final int node = running.remove(future);
+            addFailure(node, new TimeoutException("Bean has not been destroyed in " +
+                TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms"));
+            release(node, ready);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InjectionException("Interrupted while destroying beans", e);
+    }
+
+    destroyRemaining();
+  }
+
+  //
+  // Private
+  //
+
+  @Nonnull
+  private Deque<Integer> getReadyNodes() {
+    final Deque<Integer> result = new ArrayDeque<Integer>();
+    for (int i = 0; i < pendingDependents.length; ++i) {
+      if (pendingDependents[i] == 0) {
+        result.push(i); // the last registered bean goes first
+      }
+    }
+    return result;
+  }
+
+  private void destroyInCurrentThread(int node, @Nonnull Deque<Integer> ready) {
+    try {
+      destroyBean(node);
+    } catch (Exception e) {
+      addFailure(node, e);
+    }
+    release(node, ready);
+  }
+
+  private void release(int node, @Nonnull Deque<Integer> ready) {
+    destroyed[node] = true;
+    for (final int dependency : graph.getDependencies(node)) {
+      if (--pendingDependents[dependency] == 0) {
+        ready.push(dependency);
+      }
+    }
+  }
+
+  // destroys beans, that are part of the dependency cycles, and reports the failures
+  private void destroyRemaining() {
+    for (int node = destroyed.length - 1; node >= 0; --node) {
+      if (!destroyed[node]) {
+        destroyed[node] = true;
+        try {
+          destroyBean(node);
+        } catch (Exception e) {
+          addFailure(node, e);
+        }
+      }
+    }
+
+    if (firstFailure != null) {
+      throw new InjectionException("Unable to destroy beans: " + failedBeans, firstFailure);
+    }
+  }
+
+  private void destroyBean(int node) throws IllegalAccessException, InvocationTargetException {
+    final BeanHolder<?> beanHolder = graph.getBeanHolder(node);
+    if (!beanHolder.initialized) {
+      return; // the bean has not been used
+    }
+
+    InjectionPlan.forClass(beanHolder.bean.getClass()).invokeDestroy(beanHolder.bean);
+  }
+
+  private void addFailure(int node, @Nullable Throwable failure) {
+    final Throwable cause = failure instanceof InvocationTargetException ?
+        ((InvocationTargetException) failure).getTargetException() : failure;
+    failedBeans.add(graph.getBeanHolder(node).bean.getClass().getName());
+    if (firstFailure == null) {
+      firstFailure = cause;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Holds the registered bean instance along with its initialization state.
+ * <p>
+ * The bean is initialized by the thread, that has claimed the holder, the other threads wait until
+ * the initialization is completed. The claim lets the initializing thread detect the circular dependency
+ * in constant time: the holder, that is claimed by the current thread and not yet initialized, is in progress.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+final class BeanHolder<T> {
+  /**
+   * Initialization flag, volatile, so that the initialized bean is safely published to the
+   * other threads once this flag is set.
+   */
+  volatile boolean initialized = false;
+  @Nonnull
+  final T bean;
+
+  /**
+   * Dense id of the bean, i.e. position of this holder in the list of the bean holders of the context.
+   */
+  final int id;
+
+  /**
+   * Name of the bean or null if the bean is not named.
+   */
+  @Nullable
+  final String name;
+
+  /**
+   * Classes, that the bean is assignable to, including its own class, known upfront from the bean index, or null.
+   * Released once the type index is compacted.
+   */
+  Class<?>[] assignableTypes;
+
+  /**
+   * Results of the asynchronous post-construct methods, that are not awaited yet, or null.
+   * Set before the initialization flag.
+   */
+  volatile Future<?>[] pendingFutures;
+
+  /**
+   * Thread, that initializes the bean, or null.
+   */
+  private volatile Thread initializer;
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<BeanHolder, Thread> INITIALIZER_UPDATER =
+      AtomicReferenceFieldUpdater.newUpdater(BeanHolder.class, Thread.class, "initializer");
+
+  /**
+   * Holders, that the threads are waiting for, used to detect deadlocks between the initializing threads.
+   */
+  private static final ConcurrentMap<Thread, BeanHolder<?>> AWAITED_HOLDERS =
+      new ConcurrentHashMap<Thread, BeanHolder<?>>();
+
+  BeanHolder(int id, @Nullable String name, @Nonnull T bean, @Nullable Class<?>[] assignableTypes) {
+    this.id = id;
+    this.name = name;
+    this.bean = bean;
+    this.assignableTypes = assignableTypes;
+  }
+
+  /**
+   * @return True, if the bean is being initialized by the current thread.
+   */
+  boolean isInitializedByCurrentThread() {
+    return initializer == Thread.currentThread();
+  }
+
+  /**
+   * Claims this holder for initialization by the current thread.
+   * If the bean is being initialized by the other thread, waits until the initialization is completed or abandoned.
+   *
+   * @return True, if the current thread should initialize the bean, false if the bean is initialized or
+   * if it is being initialized by the current thread.
+   * @throws InjectionException If waiting for the other thread would lead to a deadlock.
+   */
+  boolean claim() {
+    final Thread currentThread = Thread.currentThread();
+    for (;;) {
+      if (initialized) {
+        return false;
+      }
+
+      final Thread owner = initializer;
+      if (owner == currentThread) {
+        return false;
+      }
+
+      if (owner == null) {
+        if (INITIALIZER_UPDATER.compareAndSet(this, null, currentThread)) {
+          if (initialized) {
+            // initialization has been completed right before the claim
+            release();
+            return false;
+          }
+          return true;
+        }
+        continue;
+      }
+
+      awaitInitializer(owner, currentThread);
+    }
+  }
+
+  /**
+   * Releases the claim of the current thread and wakes up the waiting threads.
+   * Should be called after the initialized flag is set or after the initialization failure.
+   */
+  void release() {
+    synchronized (this) {
+      initializer = null;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Waits for completion of the asynchronous post-construct methods of the initialized bean if there are any.
+   * Throws {@link InjectionException} if any of these methods has failed.
+   */
+  void awaitInitialization() {
+    final Future<?>[] futures = pendingFutures;
+    if (futures == null) {
+      return;
+    }
+
+    for (final Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw new InjectionException("Asynchronous initialization of bean " + bean + " has failed", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InjectionException("Interrupted while waiting for initialization of bean " + bean, e);
+      }
+    }
+
+    pendingFutures = null; // completed futures are no longer needed
+  }
+
+  //
+  // Private
+  //
+
+  private void awaitInitializer(@Nonnull Thread owner, @Nonnull Thread currentThread) {
+    // the thread, that owns this holder, might wait for the holder, owned by the current thread
+    Thread thread = owner;
+    for (int i = AWAITED_HOLDERS.size(); thread != null && i >= 0; --i) {
+      if (thread == currentThread) {
+        throw new InjectionException("Circular dependency between beans, initialized by different threads, " +
+            "bean " + bean + " is being initialized by thread " + owner.getName());
+      }
+      final BeanHolder<?> awaitedHolder = AWAITED_HOLDERS.get(thread);
+      thread = awaitedHolder != null ? awaitedHolder.initializer : null;
+    }
+
+    AWAITED_HOLDERS.put(currentThread, this);
+    try {
+      synchronized (this) {
+        while (initializer == owner && !initialized) {
+          wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InjectionException("Interrupted while waiting for initialization of bean " + bean, e);
+    } finally {
+      AWAITED_HOLDERS.remove(currentThread);
+    }
+  }
+}
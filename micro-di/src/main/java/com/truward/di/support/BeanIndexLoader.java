@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.Bean;
+import com.truward.di.InjectionContext;
+import com.truward.di.InjectionException;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Registers the beans listed in the bean indexes, written at compile time by the micro-di annotation processor
+ * for the classes annotated with {@link Bean}.
+ * <p>
+ * Each jar contributes its own {@link #INDEX_RESOURCE_NAME} resource, each line of which describes one bean:
+ * </p>
+ * <pre>
+ * beanClass:supertype1,supertype2:fieldDependency1,fieldDependency2:constructorDependency1
+ * </pre>
+ * <p>
+ * All the names are binary class names, the supertypes include all the superclasses and interfaces,
+ * lines starting with {@code '#'} are comments.
+ * The beans are registered so that their constructor dependencies go first. If the context is
+ * {@link DefaultInjectionContext}, the supertypes are taken from the index instead of walking
+ * the class hierarchy by reflection.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+public final class BeanIndexLoader {
+  /**
+   * Name of the bean index resource.
+   */
+  public static final String INDEX_RESOURCE_NAME = "META-INF/micro-di/beans.idx";
+
+  private BeanIndexLoader() {
+  }
+
+  /**
+   * Registers beans from all the bean indexes, visible to the given class loader.
+   *
+   * @param context Injection context, that is not frozen.
+   * @param classLoader Class loader, used to find the indexes and to load the bean classes.
+   * @return Number of the registered beans.
+   * @throws InjectionException If the index can not be read, if the bean class can not be loaded or
+   * if the bean can not be registered.
+   */
+  public static int registerBeans(@Nonnull InjectionContext context, @Nonnull ClassLoader classLoader) {
+    final List<Entry> entries = sortByConstructorDependencies(readEntries(classLoader));
+    for (final Entry entry : entries) {
+      final Class<?> beanClass = loadClass(entry.className, classLoader);
+      if (context instanceof DefaultInjectionContext) {
+        final Class<?>[] assignableTypes = new Class<?>[entry.supertypes.length + 2];
+        assignableTypes[0] = beanClass;
+        for (int i = 0; i < entry.supertypes.length; ++i) {
+          // supertypes are already loaded along with the bean class
+          assignableTypes[i + 1] = loadClass(entry.supertypes[i], classLoader);
+        }
+        assignableTypes[assignableTypes.length - 1] = Object.class;
+        ((DefaultInjectionContext) context).registerIndexedBean(beanClass, assignableTypes);
+      } else {
+        context.registerBean(beanClass);
+      }
+    }
+    return entries.size();
+  }
+
+  //
+  // Private
+  //
+
+  private static final String[] NO_NAMES = new String[0];
+
+  private static final class Entry {
+    final String className;
+    final String[] supertypes;
+    final String[] fieldDependencies;
+    final String[] constructorDependencies;
+
+    Entry(@Nonnull String line) {
+      final String[] columns = line.split(":", -1);
+      if (columns.length != 4 || columns[0].isEmpty()) {
+        throw new IllegalArgumentException("Malformed bean index entry: " + line);
+      }
+      this.className = columns[0];
+      this.supertypes = splitNames(columns[1]);
+      this.fieldDependencies = splitNames(columns[2]);
+      this.constructorDependencies = splitNames(columns[3]);
+    }
+  }
+
+  @Nonnull
+  private static String[] splitNames(@Nonnull String column) {
+    return column.isEmpty() ? NO_NAMES : column.split(",");
+  }
+
+  @Nonnull
+  private static List<Entry> readEntries(@Nonnull ClassLoader classLoader) {
+    final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    try {
+      final Enumeration<URL> urls = classLoader.getResources(INDEX_RESOURCE_NAME);
+      while (urls.hasMoreElements()) {
+        final URL url = urls.nextElement();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        try {
+          for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+              continue;
+            }
+
+            final Entry entry;
+            try {
+              entry = new Entry(line);
+            } catch (IllegalArgumentException e) {
+              throw new InjectionException("Unable to read bean index " + url, e);
+            }
+
+            // the same class might be listed in several indexes, e.g. in the shaded jar
+            if (!entries.containsKey(entry.className)) {
+              entries.put(entry.className, entry);
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      }
+    } catch (IOException e) {
+      throw new InjectionException("Unable to read bean index", e);
+    }
+    return new ArrayList<Entry>(entries.values());
+  }
+
+  // stable topological sort, so that the beans are registered after their constructor dependencies
+  @Nonnull
+  private static List<Entry> sortByConstructorDependencies(@Nonnull List<Entry> entries) {
+    final Map<String, List<Entry>> assignableEntries = new HashMap<String, List<Entry>>();
+    for (final Entry entry : entries) {
+      addAssignableEntry(assignableEntries, entry.className, entry);
+      for (final String supertype : entry.supertypes) {
+        addAssignableEntry(assignableEntries, supertype, entry);
+      }
+    }
+
+    final List<Entry> result = new ArrayList<Entry>(entries.size());
+    final Set<Entry> visited = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+    for (final Entry entry : entries) {
+      addDependenciesFirst(result, visited, assignableEntries, entry);
+    }
+    return result;
+  }
+
+  private static void addAssignableEntry(@Nonnull Map<String, List<Entry>> assignableEntries,
+                                         @Nonnull String typeName,
+                                         @Nonnull Entry entry) {
+    List<Entry> list = assignableEntries.get(typeName);
+    if (list == null) {
+      list = new ArrayList<Entry>(1);
+      assignableEntries.put(typeName, list);
+    }
+    list.add(entry);
+  }
+
+  private static void addDependenciesFirst(@Nonnull List<Entry> result,
+                                           @Nonnull Set<Entry> visited,
+                                           @Nonnull Map<String, List<Entry>> assignableEntries,
+                                           @Nonnull Entry root) {
+    if (!visited.add(root)) {
+      return;
+    }
+
+    // explicit stack, as the constructor dependency chains might be long
+    final Deque<Entry> entryStack = new ArrayDeque<Entry>();
+    final Deque<Integer> indexStack = new ArrayDeque<Integer>();
+    entryStack.push(root);
+    indexStack.push(0);
+    while (!entryStack.isEmpty()) {
+      final Entry entry = entryStack.peek();
+      final int index = indexStack.pop();
+      if (index == entry.constructorDependencies.length) {
+        entryStack.pop();
+        result.add(entry);
+        continue;
+      }
+
+      indexStack.push(index + 1);
+      final List<Entry> dependencies = assignableEntries.get(entry.constructorDependencies[index]);
+      if (dependencies != null && dependencies.size() == 1 && visited.add(dependencies.get(0))) {
+        // ambiguous and missing dependencies are reported by the context, cycles are broken here
+        entryStack.push(dependencies.get(0));
+        indexStack.push(0);
+      }
+    }
+  }
+
+  @Nonnull
+  private static Class<?> loadClass(@Nonnull String className, @Nonnull ClassLoader classLoader) {
+    try {
+      return Class.forName(className, false, classLoader);
+    } catch (ClassNotFoundException e) {
+      throw new InjectionException("Unable to load class " + className + " listed in the bean index", e);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.Scope;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe implementation of {@link InjectionContext}.
+ * <p>
+ * Until the context is frozen all the operations are serialized by the registration lock.
+ * Once the context is frozen, {@link #getBean(Class)} and {@link #getBeans(Class)} do not take any
+ * context-wide lock: the lookups go through the read-only type index and lazy initialization of
+ * each bean is claimed by a single thread, while the other threads, that request the same bean, wait,
+ * so that every bean is initialized exactly once.
+ * </p>
+ * <p>
+ * The replacements of the beans in the frozen context are serialized by the same lock, the lookups are not blocked
+ * by them, as each replacement publishes the new version of the type index at once.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+public class ConcurrentInjectionContext extends DefaultInjectionContext {
+  private final Object registrationLock = new Object();
+
+  /**
+   * Published after the type index is built, reading this flag makes the index visible to the reader thread.
+   */
+  private volatile boolean frozen;
+
+  public ConcurrentInjectionContext() {
+    this(null);
+  }
+
+  /**
+   * Creates child context, that resolves the beans, which are not registered in it, through the given parent.
+   *
+   * @param parent Frozen parent context or null.
+   * @see #createChild()
+   */
+  protected ConcurrentInjectionContext(@Nullable InjectionContext parent) {
+    super(parent);
+  }
+
+  @Override
+  public <T> void registerBean(@Nonnull T bean) {
+    synchronized (registrationLock) {
+      super.registerBean(bean);
+    }
+  }
+
+  @Override
+  public <T> void registerBean(@Nonnull Class<T> beanClass) {
+    synchronized (registrationLock) {
+      super.registerBean(beanClass);
+    }
+  }
+
+  @Override
+  public <T> void registerBean(@Nonnull String name, @Nonnull T bean) {
+    synchronized (registrationLock) {
+      super.registerBean(name, bean);
+    }
+  }
+
+  @Override
+  public <T> void registerBean(@Nonnull Class<T> beanClass, @Nonnull Scope scope) {
+    synchronized (registrationLock) {
+      super.registerBean(beanClass, scope);
+    }
+  }
+
+  @Override
+  <T> void registerIndexedBean(@Nonnull Class<T> beanClass, @Nonnull Class<?>[] assignableTypes) {
+    synchronized (registrationLock) {
+      super.registerIndexedBean(beanClass, assignableTypes);
+    }
+  }
+
+  @Override
+  <T> void registerIndexedBean(@Nullable String name, @Nonnull T bean, @Nonnull Class<?>[] assignableTypes) {
+    synchronized (registrationLock) {
+      super.registerIndexedBean(name, bean, assignableTypes);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public <T> T replaceBean(@Nonnull Class<T> beanClass, @Nonnull T newBean) {
+    synchronized (registrationLock) {
+      return super.replaceBean(beanClass, newBean);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public <T> T replaceBean(@Nonnull String name, @Nonnull Class<T> beanClass, @Nonnull T newBean) {
+    synchronized (registrationLock) {
+      return super.replaceBean(name, beanClass, newBean);
+    }
+  }
+
+  @Override
+  public void registerBeans(@Nonnull Iterable<?> beans) {
+    synchronized (registrationLock) {
+      super.registerBeans(beans);
+    }
+  }
+
+  @Override
+  public void registerBeanClasses(@Nonnull Iterable<Class<?>> beanClasses) {
+    synchronized (registrationLock) {
+      super.registerBeanClasses(beanClasses);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public <T> T getBean(@Nonnull Class<T> beanClass) {
+    if (frozen) {
+      return super.getBean(beanClass);
+    }
+
+    synchronized (registrationLock) {
+      return super.getBean(beanClass);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public <T> T getBean(@Nonnull String name, @Nonnull Class<T> beanClass) {
+    if (frozen) {
+      return super.getBean(name, beanClass);
+    }
+
+    synchronized (registrationLock) {
+      return super.getBean(name, beanClass);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public <T> List<T> getBeans(@Nonnull Class<T> beanClass) {
+    if (frozen) {
+      return super.getBeans(beanClass);
+    }
+
+    synchronized (registrationLock) {
+      return super.getBeans(beanClass);
+    }
+  }
+
+  @Override
+  public long getFootprintEstimate() {
+    if (frozen) {
+      return super.getFootprintEstimate();
+    }
+
+    synchronized (registrationLock) {
+      return super.getFootprintEstimate();
+    }
+  }
+
+  @Override
+  public void freeze() {
+    synchronized (registrationLock) {
+      super.freeze();
+      frozen = true;
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (registrationLock) {
+      super.close();
+    }
+  }
+
+  @Override
+  public void close(@Nonnull Executor executor, long timeout, @Nonnull TimeUnit unit) {
+    synchronized (registrationLock) {
+      super.close(executor, timeout, unit);
+    }
+  }
+
+  @Override
+  public boolean isFrozen() {
+    return frozen;
+  }
+
+  @Nonnull
+  @Override
+  public InjectionContext createChild() {
+    return new ConcurrentInjectionContext(this);
+  }
+}
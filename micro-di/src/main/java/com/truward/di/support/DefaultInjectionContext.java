@@ -14,208 +14,931 @@
 
 package com.truward.di.support;
 
+import com.truward.di.FreezeOptions;
 import com.truward.di.InjectionContext;
 import com.truward.di.InjectionException;
+import com.truward.di.InjectionListener;
+import com.truward.di.Refreshable;
+import com.truward.di.Scope;
 
 import javax.annotation.Nonnull;
-import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
+import javax.annotation.Nullable;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Default implementation of {@link InjectionContext}.
- * <p><strong>NOTE:</strong>&nbsp;This class is not thread safe.</p>
+ * <p><strong>NOTE:</strong>&nbsp;This class is not thread safe, use {@link ConcurrentInjectionContext}
+ * if the context should be shared between threads.</p>
  *
  * @author Alexander Shabanov
  */
 public class DefaultInjectionContext implements InjectionContext {
-  private static final class BeanHolder<T> {
-    boolean initialized = false;
-    @Nonnull
-    final T bean;
+  /**
+   * Frozen parent context or null if this context is not a child one.
+   */
+  private final InjectionContext parent;
 
-    BeanHolder(@Nonnull T bean) {
-      this.bean = bean;
-    }
-  }
+  /**
+   * Registered bean instances, used to detect duplicate declarations, created on the first registration
+   * and released once the context is frozen.
+   */
+  private Set<Object> registeredBeans;
 
   /**
-   * The underlying bean definitions.
+   * Ids of the beans, that have been created by this context rather than registered as instances.
    */
-  private List<BeanHolder<?>> beanHolders = new ArrayList<BeanHolder<?>>();
+  private final BitSet constructedBeanIds = new BitSet();
 
   /**
-   * Cached beans definitions.
+   * Classes of the registered beans, used to detect clashing declarations, released once the context is frozen.
    */
-  private Map<Class<?>, BeanHolder<?>> cachedInterfaceMap = new HashMap<Class<?>, BeanHolder<?>>();
+  private Set<Class<?>> registeredBeanClasses = new HashSet<Class<?>>();
 
   /**
-   * Cache miss marker.
+   * The underlying bean definitions indexed by the types they are assignable to, compacted when the context gets
+   * frozen. Once frozen, the index is replaced as a whole by {@link #replaceBean(Class, Object)}, so each operation
+   * reads this field once and uses the same index throughout.
    */
-  private static final BeanHolder<Object> NIL_BEAN_HOLDER = new BeanHolder<Object>(Boolean.FALSE);
+  private volatile TypeIndex typeIndex = new TypeIndex();
+
+  /**
+   * Definitions of the beans, that are not singletons, by the types they are assignable to.
+   */
+  private Map<Class<?>, ScopedBean<?>> scopedBeans = Collections.emptyMap();
 
   private boolean frozen;
 
+  /**
+   * Whether this context is closed, volatile so that the frozen context, that is read without locking,
+   * rejects the lookups once it is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Optional listener, that receives initialization times and lookups.
+   */
+  private InjectionListener listener;
+
+  /**
+   * Whether the circular field dependencies are resolved by injecting the beans, that are not yet initialized.
+   */
+  private boolean circularReferencesAllowed;
+
+  public DefaultInjectionContext() {
+    this(null);
+  }
+
+  /**
+   * Creates child context, that resolves the beans, which are not registered in it, through the given parent.
+   *
+   * @param parent Frozen parent context or null.
+   * @see #createChild()
+   */
+  protected DefaultInjectionContext(@Nullable InjectionContext parent) {
+    if (parent != null && !parent.isFrozen()) {
+      throw new IllegalStateException("Parent context should be frozen");
+    }
+    this.parent = parent;
+    if (parent instanceof DefaultInjectionContext) {
+      this.listener = ((DefaultInjectionContext) parent).listener;
+    }
+  }
+
+  /**
+   * Sets the listener, that will be notified about the bean initialization and the bean lookups.
+   * The listener should be set before the context is shared between threads, child contexts
+   * inherit the listener of the parent context at the moment of creation.
+   * There is no measurement overhead, unless the listener is set.
+   *
+   * @param listener Listener or null to stop the notifications.
+   */
+  public void setInjectionListener(@Nullable InjectionListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Allows circular dependencies between the fields annotated with the Resource annotation.
+   * If allowed, the bean, that is in the middle of the initialization, is injected to the field of its dependency
+   * as an early reference: its constructor has completed, but its fields might not be injected yet and its
+   * post-construct methods have not been invoked. Otherwise the circular dependency is reported by
+   * {@link InjectionException} with the full path of the cycle.
+   * Circular dependencies between the beans, initialized by the different threads, are always reported.
+   *
+   * @param circularReferencesAllowed True, to resolve the circular dependencies with the early references.
+   */
+  public void setCircularReferencesAllowed(boolean circularReferencesAllowed) {
+    shouldNotBeFrozen();
+    this.circularReferencesAllowed = circularReferencesAllowed;
+  }
+
+  /**
+   * @return True, if the circular dependencies are resolved with the early references.
+   * @see #setCircularReferencesAllowed(boolean)
+   */
+  boolean isCircularReferencesAllowed() {
+    return circularReferencesAllowed;
+  }
+
   @Override
   public <T> void registerBean(@Nonnull T bean) {
     shouldNotBeFrozen();
     addUninitializedBean(bean);
   }
 
+  @Override
+  public <T> void registerBean(@Nonnull String name, @Nonnull T bean) {
+    shouldNotBeFrozen();
+    addUninitializedBean(name, bean, null);
+  }
+
   @Override
   public <T> void registerBean(@Nonnull Class<T> beanClass) {
     shouldNotBeFrozen();
-    try {
-      addUninitializedBean(constructBean(beanClass));
-    } catch (InstantiationException e) {
-      throw new InjectionException("Unable to instantiate bean of class=" + beanClass, e);
-    } catch (IllegalAccessException e) {
-      throw new InjectionException("Unable to invoke constructor of class=" + beanClass, e);
-    } catch (InvocationTargetException e) {
-      throw new InjectionException("Exception while invoking constructor of class=" + beanClass, e);
+    addConstructedBean(beanClass, null);
+  }
+
+  @Override
+  public <T> void registerBean(@Nonnull Class<T> beanClass, @Nonnull Scope scope) {
+    if (scope.getKind() == Scope.Kind.SINGLETON) {
+      registerBean(beanClass);
+      return;
+    }
+
+    shouldNotBeFrozen();
+    if (beanClass.isInterface()) {
+      throw new InjectionException("The given class is interface: " + beanClass);
+    }
+    if (!registeredBeanClasses.add(beanClass)) {
+      throw new InjectionException("The context already have definition of bean with class " + beanClass);
+    }
+
+    InjectionPlan.forClass(beanClass); // fail fast if the class can not be injected
+    if (scopedBeans.isEmpty()) {
+      scopedBeans = new HashMap<Class<?>, ScopedBean<?>>();
+    }
+    final ScopedBean<T> scopedBean = new ScopedBean<T>(this, beanClass, scope);
+    for (Class<?> type = beanClass; type != null && type != Object.class; type = type.getSuperclass()) {
+      addScopedBean(type, scopedBean);
     }
   }
 
-  @Nonnull
+  /**
+   * Puts bean of the given class, which superclasses and interfaces are known upfront, e.g. from the bean index.
+   *
+   * @param beanClass Non-interface bean class.
+   * @param assignableTypes The bean class itself, all of its superclasses and all the implemented interfaces.
+   */
+  <T> void registerIndexedBean(@Nonnull Class<T> beanClass, @Nonnull Class<?>[] assignableTypes) {
+    shouldNotBeFrozen();
+    addConstructedBean(beanClass, assignableTypes);
+  }
+
+  /**
+   * Puts bean instance, which superclasses and interfaces are known upfront, e.g. from the startup snapshot.
+   *
+   * @param name Unique bean name or null.
+   * @param bean Bean instance.
+   * @param assignableTypes The bean class itself, all of its superclasses and all the implemented interfaces.
+   */
+  <T> void registerIndexedBean(@Nullable String name, @Nonnull T bean, @Nonnull Class<?>[] assignableTypes) {
+    shouldNotBeFrozen();
+    addUninitializedBean(name, bean, assignableTypes);
+  }
+
   @Override
-  public <T> T getBean(@Nonnull Class<T> beanClass) {
-    // special case: Context requested
-    if (beanClass.equals(InjectionContext.class)) {
-      return beanClass.cast(this);
+  public void registerBeans(@Nonnull Iterable<?> beans) {
+    shouldNotBeFrozen();
+    for (final Object bean : beans) {
+      addUninitializedBean(bean);
     }
+  }
 
-    return getInitializedBean(findBeanHolder(beanClass), beanClass);
+  @Override
+  public void registerBeanClasses(@Nonnull Iterable<Class<?>> beanClasses) {
+    shouldNotBeFrozen();
+    for (final Class<?> beanClass : beanClasses) {
+      registerBean(beanClass);
+    }
   }
 
   @Nonnull
   @Override
-  public <T> List<T> getBeans(@Nonnull Class<T> beanClass) {
-    final BeanHolder<?> beanHolder = cachedInterfaceMap.get(beanClass);
+  public <T> T getBean(@Nonnull Class<T> beanClass) {
+    shouldNotBeClosed();
+    return getBean(beanClass, null);
+  }
 
+  @Nonnull
+  @Override
+  public <T> T getBean(@Nonnull String name, @Nonnull Class<T> beanClass) {
+    shouldNotBeClosed();
+    final BeanHolder<?> beanHolder = findBeanHolder(name, beanClass);
     if (beanHolder == null) {
-      return Collections.emptyList();
+      if (parent != null) {
+        return parent.getBean(name, beanClass);
+      }
+      if (listener != null) {
+        listener.beanRequested(beanClass, false);
+      }
+      throw new InjectionException("The requested bean named " + name + " has not been found");
+    }
+
+    if (listener != null) {
+      listener.beanRequested(beanClass, true);
     }
+    return getInitializedBean(beanHolder, beanClass);
+  }
+
 
-    if (beanHolder != NIL_BEAN_HOLDER) {
-      return Collections.singletonList(getInitializedBean(beanHolder, beanClass));
+  @Nonnull
+  @Override
+  public <T> List<T> getBeans(@Nonnull Class<T> beanClass) {
+    shouldNotBeClosed();
+    final TypeIndex index = typeIndex;
+    final TypeIndex.Entry entry = index.get(beanClass);
+    if (entry == null && parent != null) {
+      return parent.getBeans(beanClass);
     }
 
-    // get bean holder by direct access (uncached)
-    final List<T> beans = new ArrayList<T>();
-    for (final BeanHolder<?> holder : beanHolders) {
-      if (beanClass.isAssignableFrom(holder.bean.getClass())) {
-        beans.add(getInitializedBean(holder, beanClass));
+    final TypeIndex.Memo memo = getMemo(entry);
+    List<?> result = memo != null ? memo.beans : null;
+    if (result == null) {
+      result = getVisibleBeans(index, entry, beanClass);
+      if (memo != null) {
+        memo.beans = result;
       }
     }
 
-    return Collections.unmodifiableList(beans);
+    if (parent == null && listener != null) {
+      listener.beanRequested(beanClass, !result.isEmpty());
+    }
+    @SuppressWarnings("unchecked")
+    final List<T> beans = (List<T>) result;
+    return beans;
   }
 
   @Override
   public void freeze() {
+    shouldNotBeClosed();
+    if (frozen) {
+      return;
+    }
+
+    typeIndex.compact();
+    registeredBeans = null;
+    registeredBeanClasses = null;
     frozen = true;
   }
 
+  @Override
+  public void freeze(@Nonnull Executor executor) {
+    freeze();
+    new ParallelInitializer(this, buildDependencyGraph(), executor).initialize();
+  }
+
+  @Override
+  public void freeze(@Nonnull FreezeOptions options) {
+    final Executor executor = options.getExecutor();
+    if (executor != null) {
+      freeze(executor);
+    } else {
+      freeze();
+      if (options.isEager()) {
+        initializeAll();
+      }
+    }
+
+    if (options.isWarmup()) {
+      final DependencyGraph graph = buildDependencyGraph();
+      if (executor != null) {
+        new ParallelInitializer(this, graph, executor, true).initialize();
+      } else {
+        warmupAll(graph);
+      }
+    }
+  }
+
+  /**
+   * Builds the report of the dependency graph of the beans registered in this context, the beans of the
+   * parent context are not included.
+   *
+   * @param statistics Statistics, that has been collecting the initialization times of the beans of this context,
+   *                   or null if the report should not include the times.
+   * @return New report.
+   * @throws IllegalStateException If this context is not frozen.
+   */
+  @Nonnull
+  public DependencyReport getDependencyReport(@Nullable InjectionStatistics statistics) {
+    if (!isFrozen()) {
+      throw new IllegalStateException("Dependency report is available only for frozen context");
+    }
+    return DependencyReport.build(buildDependencyGraph(), statistics);
+  }
+
+  /**
+   * Estimates the number of bytes retained by this context itself: the bean holders, the type index with
+   * the memoized lists of the beans and the registration-time structures, that are released once the context
+   * is frozen. The beans, the parent context and the injection plans, that are shared by all the contexts,
+   * are not included. The estimate assumes 64-bit JVM with compressed references and is meant to track
+   * the footprint of the contexts, e.g. when there are many child contexts per application.
+   *
+   * @return Approximate size in bytes.
+   */
+  public long getFootprintEstimate() {
+    // the sizes of the objects are derived from their declared fields, see Footprint
+    long footprint = Footprint.shallowSize(getClass()) + typeIndex.estimateFootprint() +
+        Footprint.shallowSize(BitSet.class) + Footprint.array(constructedBeanIds.size() / 64, 8);
+    if (!scopedBeans.isEmpty()) {
+      footprint += Footprint.hashMap(scopedBeans.size());
+      for (final Map.Entry<Class<?>, ScopedBean<?>> scopedBean : scopedBeans.entrySet()) {
+        // each definition is indexed by all the types it is assignable to, it is counted once by its own class
+        footprint += scopedBean.getKey() == scopedBean.getValue().beanClass ?
+            Footprint.shallowSize(ScopedBean.class) : 0L;
+      }
+    }
+    if (registeredBeans != null) {
+      footprint += Footprint.shallowSize(registeredBeans.getClass()) +
+          Footprint.identityHashMap(registeredBeans.size());
+    }
+    if (registeredBeanClasses != null) {
+      footprint += Footprint.hashSet(registeredBeanClasses.size());
+    }
+    return footprint;
+  }
+
+  /**
+   * Resolves the wiring of the beans of this context, e.g. to generate the code, that reproduces it.
+   *
+   * @return New wiring plan.
+   * @throws IllegalStateException If this context is not frozen or if it is a child context.
+   * @throws InjectionException If any bean dependency can not be resolved or if the dependencies are circular.
+   */
+  @Nonnull
+  WiringPlan getWiringPlan() {
+    if (!isFrozen()) {
+      throw new IllegalStateException("Wiring plan is available only for frozen context");
+    }
+    if (parent != null) {
+      throw new IllegalStateException("Wiring plan is not available for child context");
+    }
+    if (!scopedBeans.isEmpty()) {
+      throw new IllegalStateException("Wiring plan is not available for context with scoped beans");
+    }
+    final TypeIndex index = typeIndex;
+    return WiringPlan.build(index.getBeanHolders(), index, constructedBeanIds);
+  }
+
+  /**
+   * Replaces the unnamed bean of the given class in the frozen context, e.g. to apply the new configuration
+   * without restarting the application.
+   * <p>
+   * The replacing bean is initialized as if it has been registered and then the new version of the type index,
+   * where only the entries of the types of the replaced and of the replacing beans are updated, is published at
+   * once: the concurrent lookups are not blocked and see either the replaced or the replacing bean along with
+   * the corresponding lists of the beans. The providers and the lazy proxies resolve the replacing bean afterwards.
+   * The fields of the initialized beans, marked by {@link Refreshable} annotation, which have been injected with
+   * the replaced bean or with the collections containing it, are injected again, the other beans, the beans of
+   * the child contexts and the constructor parameters keep the replaced bean.
+   * </p>
+   * <p>
+   * The replaced bean is not destroyed, the caller is responsible for its destruction, once it is no longer used.
+   * The context destroys the replacing bean, when it gets closed.
+   * </p>
+   *
+   * @param beanClass Class, that is implemented by the replaced bean.
+   * @param newBean Replacing bean, that should be resolved in place of the replaced bean by all the initialized beans.
+   * @param <T> Bean type.
+   * @return Replaced bean.
+   * @throws IllegalStateException If this context is not frozen or if it is closed.
+   * @throws InjectionException If there is no bean of the given class or if the replacing bean would change the
+   * resolution of any field or constructor parameter of the initialized beans, e.g. when it does not implement
+   * the interface, that the replaced bean has been injected by.
+   */
+  @Nonnull
+  public <T> T replaceBean(@Nonnull Class<T> beanClass, @Nonnull T newBean) {
+    final BeanHolder<?> beanHolder = findBeanHolder(beanClass);
+    if (beanHolder == null) {
+      throw new InjectionException("The replaced bean of class " + beanClass + " has not been found");
+    }
+    if (beanHolder.name != null) {
+      throw new InjectionException("The replaced bean of class " + beanClass + " is named " + beanHolder.name +
+          ", it should be replaced by its name");
+    }
+    return beanClass.cast(replaceBean(beanHolder, newBean));
+  }
+
+  /**
+   * Replaces the bean with the given name in the frozen context, the replacing bean gets the same name.
+   *
+   * @param name Name of the replaced bean.
+   * @param beanClass Class, that is implemented by the replaced bean.
+   * @param newBean Replacing bean.
+   * @param <T> Bean type.
+   * @return Replaced bean.
+   * @see #replaceBean(Class, Object)
+   */
+  @Nonnull
+  public <T> T replaceBean(@Nonnull String name, @Nonnull Class<T> beanClass, @Nonnull T newBean) {
+    final BeanHolder<?> beanHolder = findBeanHolder(name, beanClass);
+    if (beanHolder == null) {
+      throw new InjectionException("The replaced bean named " + name + " has not been found");
+    }
+    return beanClass.cast(replaceBean(beanHolder, newBean));
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    final List<Throwable> failures = destroyScopedBeans();
+    createDestroyer().destroy();
+    checkScopedBeansDestroyed(failures);
+  }
+
+  @Override
+  public void close(@Nonnull Executor executor, long timeout, @Nonnull TimeUnit unit) {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    final List<Throwable> failures = destroyScopedBeans();
+    createDestroyer().destroy(executor, unit.toNanos(timeout));
+    checkScopedBeansDestroyed(failures);
+  }
+
   @Override
   public boolean isFrozen() {
     return frozen;
   }
 
+  @Nonnull
+  @Override
+  public InjectionContext createChild() {
+    return new DefaultInjectionContext(this);
+  }
+
   //
   // Private
   //
 
-  private void shouldNotBeFrozen() {
-    if (isFrozen()) {
-      throw new IllegalStateException("Modifications are not allowed for frozen injection context");
+  /**
+   * Initializes the beans with the given ids on the current thread, each bean along with its dependencies.
+   *
+   * @param beanIds Ids of the beans, e.g. in the order of their dependencies.
+   */
+  void initializeBeans(@Nonnull int[] beanIds) {
+    final List<BeanHolder<?>> beanHolders = typeIndex.getBeanHolders();
+    for (final int id : beanIds) {
+      final BeanHolder<?> beanHolder = beanHolders.get(id);
+      getInitializedBean(beanHolder, beanHolder.bean.getClass());
+    }
+  }
+
+  // initializes all the beans on the current thread, each bean is initialized along with its dependencies
+  private void initializeAll() {
+    final List<BeanHolder<?>> beanHolders = typeIndex.getBeanHolders();
+    for (int i = 0; i < beanHolders.size(); ++i) {
+      final BeanHolder<?> beanHolder = beanHolders.get(i);
+      getInitializedBean(beanHolder, beanHolder.bean.getClass());
     }
   }
 
+  // warms up the beans on the current thread, the dependencies are warmed up before the dependent beans
+  private static void warmupAll(@Nonnull DependencyGraph graph) {
+    final int[] order = graph.getTopologicalOrder();
+    final BitSet warmedUp = new BitSet(graph.size());
+    for (final int node : order) {
+      ParallelInitializer.warmup(graph.getBeanHolder(node));
+      warmedUp.set(node);
+    }
+
+    // beans of the eager field cycles, that are allowed through the early references, are not topologically
+    // ordered and are warmed up in the order of their registration
+    for (int node = warmedUp.nextClearBit(0); node < graph.size(); node = warmedUp.nextClearBit(node + 1)) {
+      ParallelInitializer.warmup(graph.getBeanHolder(node));
+    }
+  }
 
-  private static void addInterfacesToSink(@Nonnull Set<Class<?>> interfaceSink, @Nonnull Class<?> targetClass) {
-    if (!targetClass.isInterface()) {
-      final Class<?> superclass = targetClass.getSuperclass();
-      if (superclass != null) {
-        addInterfacesToSink(interfaceSink, superclass);
+  /**
+   * Creates and initializes new bean of the given class, that is not a singleton.
+   *
+   * @param beanClass Non-interface bean class.
+   * @param <T> Bean type.
+   * @return Initialized bean, that is not registered in this context.
+   */
+  @Nonnull
+  <T> T createScopedBean(@Nonnull Class<T> beanClass) {
+    try {
+      final InjectionListener listener = this.listener;
+      final T bean = constructBean(beanClass);
+      long start = listener != null ? System.nanoTime() : 0L;
+      final InjectionPlan plan = InjectionPlan.forClass(beanClass);
+      for (int i = 0; i < plan.getFieldCount(); ++i) {
+        plan.injectField(bean, i, resolve(plan.getField(i), null));
+      }
+      if (listener != null) {
+        final long injected = System.nanoTime();
+        listener.fieldsInjected(bean, injected - start);
+        start = injected;
+      }
+
+      // the scoped bean is returned only once its asynchronous initialization completes
+      final Future<?>[] futures = plan.invokePostConstruct(bean);
+      if (futures != null) {
+        for (final Future<?> future : futures) {
+          future.get();
+        }
       }
+      if (listener != null) {
+        listener.postConstructInvoked(bean, System.nanoTime() - start);
+      }
+      return bean;
+    } catch (InstantiationException e) {
+      throw new InjectionException("Unable to instantiate bean of class=" + beanClass, e);
+    } catch (IllegalAccessException e) {
+      throw new InjectionException("Illegal access error when initializing class " + beanClass, e);
+    } catch (InvocationTargetException e) {
+      throw new InjectionException("Invocation error when initializing class " + beanClass, e);
+    } catch (ExecutionException e) {
+      throw new InjectionException("Asynchronous initialization of bean of class=" + beanClass + " has failed",
+          e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InjectionException("Interrupted while waiting for initialization of bean of class=" + beanClass, e);
+    }
+  }
+
+  private void addScopedBean(@Nonnull Class<?> type, @Nonnull ScopedBean<?> scopedBean) {
+    if (!scopedBeans.containsKey(type)) {
+      scopedBeans.put(type, scopedBean);
+    } else if (scopedBeans.get(type) != scopedBean) {
+      scopedBeans.put(type, null); // shared by several scoped beans, reported on lookup
     }
 
-    for (final Class<?> interfaceClass : targetClass.getInterfaces()) {
-      interfaceSink.add(interfaceClass);
-      addInterfacesToSink(interfaceSink, interfaceClass);
+    for (final Class<?> interfaceClass : type.getInterfaces()) {
+      addScopedBean(interfaceClass, scopedBean);
     }
   }
 
-  private void cacheInterfaces(@Nonnull BeanHolder<?> beanHolder) {
-    final Set<Class<?>> interfaceSink = new HashSet<Class<?>>();
-    addInterfacesToSink(interfaceSink, beanHolder.bean.getClass());
+  // returns null if there is no scoped bean of the given class in this context and in its parents
+  @Nullable
+  private ScopedBean<?> findScopedBean(@Nonnull Class<?> beanClass) {
+    final ScopedBean<?> scopedBean = scopedBeans.get(beanClass);
+    if (scopedBean == null && scopedBeans.containsKey(beanClass)) {
+      throw new InjectionException("Ambigous definition for class " + beanClass + ", it is implemented by " +
+          "several scoped beans");
+    }
+    if (scopedBean != null) {
+      final TypeIndex index = typeIndex;
+      final TypeIndex.Entry entry = index.get(beanClass);
+      if (entry != null) {
+        throw new InjectionException("Ambigous definition for class " + beanClass + " conflicting definitions " +
+            "are: " + scopedBean + " and " + index.getBeanHolder(entry, 0).bean);
+      }
+      return scopedBean;
+    }
 
-    // cache all the definitions
-    for (final Class<?> interfaceClass : interfaceSink) {
-      final BeanHolder<?> assoc = cachedInterfaceMap.get(interfaceClass);
+    if (parent instanceof DefaultInjectionContext && typeIndex.get(beanClass) == null) {
+      return ((DefaultInjectionContext) parent).findScopedBean(beanClass);
+    }
+    return null;
+  }
 
-      // mark as cache miss
-      if (assoc != null) {
-        if (assoc != NIL_BEAN_HOLDER) {
-          cachedInterfaceMap.put(interfaceClass, NIL_BEAN_HOLDER);
+  // resolves provider, lazy proxy, pool or prototype of the scoped bean
+  @Nonnull
+  private static Object resolveScoped(@Nonnull InjectionPoint injectionPoint, @Nonnull ScopedBean<?> scopedBean) {
+    switch (injectionPoint.kind) {
+      case PROVIDER:
+        return scopedBean;
+      case LAZY:
+        return scopedBean.createProxy(injectionPoint.beanType);
+      case POOL:
+        return scopedBean.getPool();
+      default:
+        if (scopedBean.scope.getKind() != Scope.Kind.PROTOTYPE) {
+          throw new InjectionException("The bean of " + injectionPoint.beanType + " has scope " + scopedBean.scope +
+              ", it should be injected through the provider, lazy proxy or pool");
         }
-        continue;
+        return scopedBean.get();
+    }
+  }
+
+  @Nonnull
+  private List<Throwable> destroyScopedBeans() {
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    for (final Map.Entry<Class<?>, ScopedBean<?>> entry : scopedBeans.entrySet()) {
+      if (entry.getValue() != null && entry.getKey() == entry.getValue().beanClass) {
+        entry.getValue().destroy(failures); // each bean is mapped once by its own class
       }
+    }
+    return failures;
+  }
 
-      cachedInterfaceMap.put(interfaceClass, beanHolder);
+  private static void checkScopedBeansDestroyed(@Nonnull List<Throwable> failures) {
+    if (!failures.isEmpty()) {
+      throw new InjectionException("Unable to destroy scoped beans: " + failures, failures.get(0));
     }
   }
 
   @Nonnull
-  private BeanHolder<?> findBeanHolder(@Nonnull Class<?> beanClass) {
-    // try get bean holder from cache
-    BeanHolder<?> beanHolder = cachedInterfaceMap.get(beanClass);
-    if (beanHolder != null && beanHolder != NIL_BEAN_HOLDER) {
-      return beanHolder;
-    }
+  private BeanDestroyer createDestroyer() {
+    return new BeanDestroyer(buildDependencyGraph());
+  }
 
-    beanHolder = null; // reset sentinel so that we'll get a correct message about duplicate bean definitions
+  @Nonnull
+  private DependencyGraph buildDependencyGraph() {
+    final TypeIndex index = typeIndex;
+    return DependencyGraph.build(index.getBeanHolders(), index, constructedBeanIds);
+  }
 
-    // get bean holder by direct access (uncached)
-    for (final BeanHolder<?> holder : beanHolders) {
-      if (beanClass.isAssignableFrom(holder.bean.getClass())) {
-        if (beanHolder != null) {
-          throw new InjectionException("Ambigous definition for class " + beanClass +
-              " conflicting definitions are: " + holder.bean + " and " + beanHolder.bean);
-        }
+  /**
+   * Gets bean of the given class.
+   *
+   * @param beanClass Requested class.
+   * @param pendingSink Sink for the bean holder, if its asynchronous initialization is not yet completed,
+   *                    or null if this method should wait for the completion.
+   * @param <T> Bean type.
+   * @return Bean instance.
+   */
+  @Nonnull
+  private <T> T getBean(@Nonnull Class<T> beanClass, @Nullable List<BeanHolder<?>> pendingSink) {
+    // special case: Context requested
+    if (beanClass.equals(InjectionContext.class)) {
+      return beanClass.cast(this);
+    }
 
-        beanHolder = holder;
+    if (!scopedBeans.isEmpty()) {
+      final ScopedBean<?> scopedBean = findScopedBean(beanClass);
+      if (scopedBean != null) {
+        if (listener != null) {
+          listener.beanRequested(beanClass, true);
+        }
+        return beanClass.cast(scopedBean.get());
       }
     }
 
+    final BeanHolder<?> beanHolder = findBeanHolder(beanClass);
     if (beanHolder == null) {
+      if (parent != null) {
+        return parent.getBean(beanClass);
+      }
+      if (listener != null) {
+        listener.beanRequested(beanClass, false);
+      }
       throw new InjectionException("The requested bean of class " + beanClass + " has not been found");
     }
 
+    if (listener != null) {
+      listener.beanRequested(beanClass, true);
+    }
+
+    if (pendingSink == null) {
+      return getInitializedBean(beanHolder, beanClass);
+    }
+
+    final T bean = getStartedBean(beanHolder, beanClass);
+    if (beanHolder.pendingFutures != null) {
+      pendingSink.add(beanHolder);
+    }
+    return bean;
+  }
+
+  private void shouldNotBeClosed() {
+    if (closed) {
+      throw new IllegalStateException("Injection context is closed");
+    }
+  }
+
+  private void shouldNotBeFrozen() {
+    shouldNotBeClosed();
+    if (isFrozen()) {
+      throw new IllegalStateException("Modifications are not allowed for frozen injection context");
+    }
+  }
+
+
+  // returns null if there is no bean of the given class in this context
+  @Nullable
+  private BeanHolder<?> findBeanHolder(@Nonnull Class<?> beanClass) {
+    final TypeIndex index = typeIndex;
+    final TypeIndex.Entry entry = index.get(beanClass);
+    if (entry == null) {
+      return null;
+    }
+
+    if (entry.size() > 1) {
+      throw new InjectionException("Ambigous definition for class " + beanClass +
+          " conflicting definitions are: " + index.getBeanHolder(entry, 1).bean + " and " +
+          index.getBeanHolder(entry, 0).bean);
+    }
+    if (!scopedBeans.isEmpty()) {
+      findScopedBean(beanClass); // throws if the scoped bean shares this class
+    }
+
+    return index.getBeanHolder(entry, 0);
+  }
+
+  // returns null if there is no bean with the given name in this context
+  @Nullable
+  private BeanHolder<?> findBeanHolder(@Nonnull String name, @Nonnull Class<?> beanClass) {
+    final BeanHolder<?> beanHolder = typeIndex.getBeanHolder(name);
+    if (beanHolder != null && !beanClass.isInstance(beanHolder.bean)) {
+      throw new InjectionException("The bean named " + name + " is not an instance of " + beanClass +
+          ", bean: " + beanHolder.bean);
+    }
     return beanHolder;
   }
 
+  @Nullable
+  private BeanHolder<?> findBeanHolder(@Nonnull InjectionPoint injectionPoint) {
+    return injectionPoint.beanName != null ? findBeanHolder(injectionPoint.beanName, injectionPoint.beanType) :
+        findBeanHolder(injectionPoint.beanType);
+  }
+
+  private <T> void addConstructedBean(@Nonnull Class<T> beanClass, @Nullable Class<?>[] assignableTypes) {
+    try {
+      addUninitializedBean(constructBean(beanClass), assignableTypes);
+      constructedBeanIds.set(typeIndex.size() - 1);
+    } catch (InstantiationException e) {
+      throw new InjectionException("Unable to instantiate bean of class=" + beanClass, e);
+    } catch (IllegalAccessException e) {
+      throw new InjectionException("Unable to invoke constructor of class=" + beanClass, e);
+    } catch (InvocationTargetException e) {
+      throw new InjectionException("Exception while invoking constructor of class=" + beanClass, e);
+    }
+  }
 
   private <T> void addUninitializedBean(@Nonnull T bean) {
+    addUninitializedBean(null, bean, null);
+  }
+
+  private <T> void addUninitializedBean(@Nonnull T bean, @Nullable Class<?>[] assignableTypes) {
+    addUninitializedBean(null, bean, assignableTypes);
+  }
+
+  private <T> void addUninitializedBean(@Nullable String name, @Nonnull T bean,
+                                        @Nullable Class<?>[] assignableTypes) {
     // check, that this bean is unique and there is no already defined bean with exactly the same class,
-    // as in this case clashes is inevitable.
-    for (final BeanHolder<?> beanHolder : beanHolders) {
-      if (beanHolder.bean == bean) {
-        throw new InjectionException("Duplicate declaration of bean " + bean);
+    // as in this case clashes is inevitable, unless the beans are named.
+    if (registeredBeans == null) {
+      registeredBeans = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    } else if (registeredBeans.contains(bean)) {
+      throw new InjectionException("Duplicate declaration of bean " + bean);
+    }
+
+    if (name != null) {
+      if (typeIndex.getBeanHolder(name) != null) {
+        throw new InjectionException("The context already have definition of bean named " + name);
       }
+    } else if (!registeredBeanClasses.add(bean.getClass())) {
+      throw new InjectionException("The context already have definition of bean with class " + bean.getClass());
+    }
+
+    registeredBeans.add(bean);
+    final BeanHolder<T> beanHolder = new BeanHolder<T>(typeIndex.size(), name, bean, assignableTypes);
+    typeIndex.add(beanHolder);
+  }
+
+  /**
+   * @return Version of the type index of this context and of its parents, that changes, when any bean
+   * of these contexts is replaced.
+   */
+  int getIndexVersion() {
+    final int version = typeIndex.getVersion();
+    return parent instanceof DefaultInjectionContext ?
+        version + ((DefaultInjectionContext) parent).getIndexVersion() : version;
+  }
+
+  @Nonnull
+  private Object replaceBean(@Nonnull BeanHolder<?> replacedHolder, @Nonnull Object newBean) {
+    if (!isFrozen() || closed) {
+      throw new IllegalStateException("Beans can be replaced only in frozen context, that is not closed");
+    }
+
+    // the registration-time sets are released by freeze, so the duplicate and the clashing beans are looked up
+    // in the entry of the class of the replacing bean, as only the beans of this class can be the same or clash
+    final TypeIndex index = typeIndex;
+    final ScopedBean<?> scopedBean = scopedBeans.get(newBean.getClass());
+    boolean clashes = scopedBean != null && scopedBean.beanClass == newBean.getClass();
+    final TypeIndex.Entry entry = index.get(newBean.getClass());
+    for (int i = 0; entry != null && i < entry.size(); ++i) {
+      final BeanHolder<?> holder = index.getBeanHolder(entry, i);
+      if (holder.bean == newBean) {
+        throw new InjectionException("Duplicate declaration of bean " + newBean);
+      }
+      clashes = clashes || (replacedHolder.name == null && holder.name == null && holder != replacedHolder &&
+          holder.bean.getClass() == newBean.getClass());
+    }
+    if (clashes) {
+      throw new InjectionException("The context already have definition of bean with class " + newBean.getClass());
+    }
 
-      if (beanHolder.bean.getClass().equals(bean.getClass())) {
-        throw new InjectionException("The context already have definition of bean with class " + bean.getClass());
+    final BeanHolder<Object> beanHolder = new BeanHolder<Object>(replacedHolder.id, replacedHolder.name, newBean,
+        null);
+    final TypeIndex newIndex = index.replace(beanHolder);
+    for (final BeanHolder<?> holder : index.getBeanHolders()) {
+      if (holder.initialized && holder != replacedHolder) {
+        checkReplacement(holder, index, newIndex, replacedHolder, newBean);
       }
     }
 
-    final BeanHolder<T> beanHolder = new BeanHolder<T>(bean);
-    beanHolders.add(beanHolder);
-    cacheInterfaces(beanHolder);
+    // the replacing bean is initialized before it becomes visible to the other threads
+    getInitializedBean(beanHolder, Object.class);
+
+    constructedBeanIds.clear(replacedHolder.id);
+    typeIndex = newIndex;
+
+    for (final BeanHolder<?> holder : newIndex.getBeanHolders()) {
+      if (holder.initialized && holder != beanHolder &&
+          holder.bean.getClass().isAnnotationPresent(Refreshable.class)) {
+        refreshBean(holder, index, newIndex, replacedHolder);
+      }
+    }
+    return replacedHolder.bean;
+  }
+
+  // checks, that the dependencies of the given bean are resolved to the same beans after the replacement
+  private static void checkReplacement(@Nonnull BeanHolder<?> beanHolder, @Nonnull TypeIndex index,
+                                       @Nonnull TypeIndex newIndex, @Nonnull BeanHolder<?> replacedHolder,
+                                       @Nonnull Object newBean) {
+    final InjectionPlan plan = InjectionPlan.forClass(beanHolder.bean.getClass());
+    final List<InjectionPoint> injectionPoints = new ArrayList<InjectionPoint>(
+        Arrays.asList(plan.getConstructorParameters()));
+    for (int i = 0; i < plan.getFieldCount(); ++i) {
+      injectionPoints.add(plan.getField(i));
+    }
+
+    for (final InjectionPoint injectionPoint : injectionPoints) {
+      if (injectionPoint.isCollection() || injectionPoint.kind == InjectionPoint.Kind.POOL) {
+        continue; // collections may lose or gain the bean
+      }
+
+      final boolean resolvedAlike;
+      if (injectionPoint.beanName != null) {
+        resolvedAlike = !injectionPoint.beanName.equals(replacedHolder.name) ||
+            injectionPoint.beanType.isInstance(newBean);
+      } else {
+        final TypeIndex.Entry entry = index.get(injectionPoint.beanType);
+        final TypeIndex.Entry newEntry = newIndex.get(injectionPoint.beanType);
+        resolvedAlike = entry == null || entry.size() != 1 ||
+            (newEntry != null && newEntry.size() == 1 && newEntry.getBeanId(0) == entry.getBeanId(0));
+      }
+
+      if (!resolvedAlike) {
+        throw new InjectionException("Bean " + newBean + " can not replace bean " + replacedHolder.bean +
+            ", as it changes the resolution of " + injectionPoint.beanType + " injected to bean " + beanHolder.bean);
+      }
+    }
+  }
+
+  // injects the fields of the given bean, which values have been changed by the replacement
+  private void refreshBean(@Nonnull BeanHolder<?> beanHolder, @Nonnull TypeIndex index, @Nonnull TypeIndex newIndex,
+                           @Nonnull BeanHolder<?> replacedHolder) {
+    final InjectionPlan plan = InjectionPlan.forClass(beanHolder.bean.getClass());
+    for (int i = 0; i < plan.getFieldCount(); ++i) {
+      final InjectionPoint injectionPoint = plan.getField(i);
+      final boolean affected;
+      switch (injectionPoint.kind) {
+        case BEAN:
+          affected = injectionPoint.beanName != null ? injectionPoint.beanName.equals(replacedHolder.name) :
+              contains(index.get(injectionPoint.beanType), replacedHolder.id);
+          break;
+        case LIST:
+        case SET:
+        case MAP:
+          affected = contains(index.get(injectionPoint.beanType), replacedHolder.id) ||
+              contains(newIndex.get(injectionPoint.beanType), replacedHolder.id);
+          break;
+        default:
+          affected = false; // providers and lazy proxies resolve the replacing bean by themselves
+      }
+
+      if (affected) {
+        try {
+          plan.reinjectField(beanHolder.bean, i, resolve(injectionPoint, null));
+        } catch (IllegalAccessException e) {
+          throw new InjectionException("Illegal access error when refreshing bean " + beanHolder.bean, e);
+        }
+      }
+    }
+  }
+
+  private static boolean contains(@Nullable TypeIndex.Entry entry, int beanId) {
+    for (int i = 0; entry != null && i < entry.size(); ++i) {
+      if (entry.getBeanId(i) == beanId) {
+        return true;
+      }
+    }
+    return false;
   }
 
   // creates bean for class-only putBean method
@@ -226,108 +949,381 @@ public class DefaultInjectionContext implements InjectionContext {
       throw new InjectionException("The given class is interface: " + beanClass);
     }
 
-    T beanInstance = null;
+    final InjectionPlan plan = InjectionPlan.forClass(beanClass);
+    final InjectionPoint[] injectionPoints = plan.getConstructorParameters();
+    final Object[] parameters = new Object[injectionPoints.length];
+    for (int i = 0; i < parameters.length; ++i) {
+      parameters[i] = resolve(injectionPoints[i], null);
+    }
+
+    final InjectionListener listener = this.listener;
+    if (listener == null) {
+      return beanClass.cast(plan.newInstance(parameters));
+    }
+
+    final long start = System.nanoTime();
+    final T bean = beanClass.cast(plan.newInstance(parameters));
+    listener.beanConstructed(bean, System.nanoTime() - start);
+    return bean;
+  }
+
 
-    // try to instantiate bean using constructor
-    for (final Constructor<?> ctor : beanClass.getConstructors()) {
-      if (beanInstance != null) {
-        throw new InjectionException("Bean " + beanClass + " defines multiple constructors");
+  // resolves value, that should be injected to the field or passed to the constructor
+  @Nonnull
+  private Object resolve(@Nonnull InjectionPoint injectionPoint, @Nullable List<BeanHolder<?>> pendingSink) {
+    if (injectionPoint.beanName == null && !injectionPoint.isCollection()) {
+      final ScopedBean<?> scopedBean = findScopedBean(injectionPoint.beanType);
+      if (scopedBean != null) {
+        return resolveScoped(injectionPoint, scopedBean);
       }
+    }
+
+    switch (injectionPoint.kind) {
+      case PROVIDER:
+        return createProvider(injectionPoint.beanType, injectionPoint.beanName);
+      case LAZY:
+        return createProvider(injectionPoint.beanType, injectionPoint.beanName).createProxy();
+      case LIST:
+        return getBeans(injectionPoint.beanType);
+      case SET:
+        return getBeanSet(injectionPoint.beanType);
+      case MAP:
+        return getBeanMap(injectionPoint.beanType);
+      case POOL:
+        throw new InjectionException("The requested pool of " + injectionPoint.beanType + " has not been found");
+      default:
+        if (injectionPoint.beanName != null) {
+          return getBean(injectionPoint.beanName, injectionPoint.beanType);
+        }
+        return getBean(injectionPoint.beanType, pendingSink);
+    }
+  }
+
+  @Nonnull
+  private <T> DeferredBeanProvider<T> createProvider(@Nonnull Class<T> beanType, @Nullable String beanName) {
+    return new DeferredBeanProvider<T>(this, beanType, beanName);
+  }
+
+  /**
+   * Returns the memoized collections of the frozen context, that are valid as long as the beans of the parent
+   * context are not replaced, so that the collections of the child context are built once as well.
+   *
+   * @param entry Entry of the requested type or null.
+   * @return Memoized collections or null if the context is not frozen or there is no entry.
+   */
+  @Nullable
+  private TypeIndex.Memo getMemo(@Nullable TypeIndex.Entry entry) {
+    if (entry == null || !frozen) {
+      return null;
+    }
+
+    final int parentVersion = parent instanceof DefaultInjectionContext ?
+        ((DefaultInjectionContext) parent).getIndexVersion() : 0;
+    TypeIndex.Memo memo = entry.memo;
+    if (memo == null || memo.parentVersion != parentVersion) {
+      memo = new TypeIndex.Memo(parentVersion);
+      entry.memo = memo;
+    }
+    return memo;
+  }
+
+  // returns the initialized beans of this context followed by the beans of the parent context
+  @Nonnull
+  private List<?> getVisibleBeans(@Nonnull TypeIndex index, @Nullable TypeIndex.Entry entry,
+                                  @Nonnull Class<?> beanClass) {
+    final List<?> beans = entry != null ? getInitializedBeans(index, entry, beanClass) : Collections.emptyList();
+    final List<?> parentBeans = parent != null ? parent.getBeans(beanClass) : Collections.emptyList();
+    if (beans.isEmpty()) {
+      return parentBeans;
+    }
+    if (parentBeans.isEmpty()) {
+      return Collections.unmodifiableList(beans);
+    }
 
-      final Class<?>[] parameterTypes = ctor.getParameterTypes();
-      final Object[] parameters = new Object[parameterTypes.length];
+    // beans of this context go first
+    final List<Object> result = new ArrayList<Object>(beans.size() + parentBeans.size());
+    result.addAll(beans);
+    result.addAll(parentBeans);
+    return Collections.unmodifiableList(result);
+  }
 
-      for (int i = 0; i < parameters.length; ++i) {
-        parameters[i] = getBean(parameterTypes[i]);
+  // returns set of the beans of the given class, memoized once the context is frozen
+  @Nonnull
+  private Set<?> getBeanSet(@Nonnull Class<?> beanClass) {
+    final TypeIndex.Entry entry = typeIndex.get(beanClass);
+    if (entry == null && parent instanceof DefaultInjectionContext) {
+      return ((DefaultInjectionContext) parent).getBeanSet(beanClass);
+    }
+
+    final TypeIndex.Memo memo = getMemo(entry);
+    if (memo != null && memo.beanSet != null) {
+      return memo.beanSet;
+    }
+
+    final Set<?> beanSet = Collections.unmodifiableSet(new LinkedHashSet<Object>(getBeans(beanClass)));
+    if (memo != null) {
+      memo.beanSet = beanSet;
+    }
+    return beanSet;
+  }
+
+  /**
+   * Returns map of the beans of the given class by their names, the unnamed beans are mapped by their class names.
+   * The beans of this context take precedence over the beans of the parent context with the same names.
+   *
+   * @param beanClass Requested class.
+   * @return Immutable map, memoized once the context is frozen.
+   */
+  @Nonnull
+  private Map<String, ?> getBeanMap(@Nonnull Class<?> beanClass) {
+    final TypeIndex index = typeIndex;
+    final TypeIndex.Entry entry = index.get(beanClass);
+    if (entry == null && parent instanceof DefaultInjectionContext) {
+      return ((DefaultInjectionContext) parent).getBeanMap(beanClass);
+    }
+
+    final TypeIndex.Memo memo = getMemo(entry);
+    if (memo != null && memo.beanMap != null) {
+      return memo.beanMap;
+    }
+
+    final Map<String, Object> beanMap = new LinkedHashMap<String, Object>();
+    if (entry != null) {
+      getInitializedBeans(index, entry, beanClass);
+      for (int i = 0; i < entry.size(); ++i) {
+        final BeanHolder<?> beanHolder = index.getBeanHolder(entry, i);
+        addToBeanMap(beanMap, beanHolder.name != null ? beanHolder.name : beanHolder.bean.getClass().getName(),
+            beanHolder.bean);
       }
+    }
 
-      beanInstance = beanClass.cast(ctor.newInstance(parameters));
+    if (parent instanceof DefaultInjectionContext) {
+      for (final Map.Entry<String, ?> parentEntry : ((DefaultInjectionContext) parent).getBeanMap(beanClass)
+          .entrySet()) {
+        addToBeanMap(beanMap, parentEntry.getKey(), parentEntry.getValue());
+      }
+    } else if (parent != null) {
+      for (final Object bean : parent.getBeans(beanClass)) {
+        addToBeanMap(beanMap, bean.getClass().getName(), bean);
+      }
+    } else if (listener != null) {
+      listener.beanRequested(beanClass, entry != null);
     }
 
-    // try to use default constructor
-    if (beanInstance == null) {
-      beanInstance = beanClass.newInstance();
+    final Map<String, ?> result = beanMap.isEmpty() ? Collections.<String, Object>emptyMap() :
+        Collections.unmodifiableMap(beanMap);
+    if (memo != null) {
+      memo.beanMap = result;
     }
+    return result;
+  }
 
-    return beanInstance;
+  private static void addToBeanMap(@Nonnull Map<String, Object> beanMap, @Nonnull String name, @Nonnull Object bean) {
+    if (!beanMap.containsKey(name)) {
+      beanMap.put(name, bean); // the first bean takes precedence
+    }
   }
 
+  // initializes all the beans first, so that their asynchronous post-construct methods run concurrently
+  @Nonnull
+  private <T> List<T> getInitializedBeans(@Nonnull TypeIndex index, @Nonnull TypeIndex.Entry entry,
+                                          @Nonnull Class<T> beanClass) {
+    final List<T> result = new ArrayList<T>(entry.size());
+    for (int i = 0; i < entry.size(); ++i) {
+      result.add(getStartedBean(index.getBeanHolder(entry, i), beanClass));
+    }
+
+    for (int i = 0; i < entry.size(); ++i) {
+      index.getBeanHolder(entry, i).awaitInitialization();
+    }
+    return result;
+  }
 
   @Nonnull
   private <T> T getInitializedBean(@Nonnull BeanHolder<?> beanHolder,
                                    @Nonnull Class<T> beanClass) {
+    final T bean = getStartedBean(beanHolder, beanClass);
+    beanHolder.awaitInitialization();
+    return bean;
+  }
+
+  // returns bean, which asynchronous initialization might not be completed yet
+  @Nonnull
+  private <T> T getStartedBean(@Nonnull BeanHolder<?> beanHolder,
+                               @Nonnull Class<T> beanClass) {
     // initialize all the fields
     if (!beanHolder.initialized) {
-      try {
-        initializeBeanHolder(beanHolder);
-      } catch (IllegalAccessException e) {
-        throw new InjectionException("Illegal access error when initializing class " + beanClass, e);
-      } catch (InvocationTargetException e) {
-        throw new InjectionException("Invocation error when initializing class " + beanClass, e);
-      }
+      initializeBean(beanHolder, beanClass);
     }
 
     return beanClass.cast(beanHolder.bean);
   }
 
-  // initializes bean within the bean holder
-  private <T> void initializeBeanHolder(@Nonnull BeanHolder<T> beanHolder) throws IllegalAccessException,
+  /**
+   * Initializes the bean within the given holder along with all of its uninitialized dependencies.
+   * If the bean is being initialized by the other thread, waits until the initialization is completed.
+   *
+   * @param beanHolder Bean holder.
+   * @param beanClass Requested bean class, used in the error messages.
+   */
+  void initializeBean(@Nonnull BeanHolder<?> beanHolder, @Nonnull Class<?> beanClass) {
+    try {
+      initializeBeanHolder(beanHolder);
+    } catch (IllegalAccessException e) {
+      throw new InjectionException("Illegal access error when initializing class " + beanClass, e);
+    } catch (InvocationTargetException e) {
+      throw new InjectionException("Invocation error when initializing class " + beanClass, e);
+    }
+  }
+
+  /**
+   * Bean, that is being initialized, along with the state of its initialization.
+   */
+  private static final class InitializationFrame {
+    final BeanHolder<?> beanHolder;
+    final InjectionPlan plan;
+    final long startNanos;
+    int fieldIndex;
+    List<BeanHolder<?>> pendingDependencies;
+
+    InitializationFrame(@Nonnull BeanHolder<?> beanHolder, long startNanos) {
+      this.beanHolder = beanHolder;
+      this.plan = InjectionPlan.forClass(beanHolder.bean.getClass());
+      this.startNanos = startNanos;
+    }
+  }
+
+  /**
+   * Beans, that are being initialized by the current thread, the last one is initialized first.
+   * The stack is shared by the nested initializations, e.g. when the post-construct method requests another bean,
+   * so that the circular dependency is reported with the full path.
+   */
+  private static final ThreadLocal<List<InitializationFrame>> INITIALIZATION_STACK =
+      new ThreadLocal<List<InitializationFrame>>();
+
+  // initializes bean within the bean holder and its dependencies by using the explicit stack instead of recursion
+  private void initializeBeanHolder(@Nonnull BeanHolder<?> rootHolder) throws IllegalAccessException,
       InvocationTargetException {
-    // collect all the classes that may contain fields for further initialization.
-    final List<Class<?>> classes = new ArrayList<Class<?>>();
-    final Class<?> beanImplClass = beanHolder.bean.getClass();
-    for (Class<?> c = beanImplClass; c != null && !c.equals(Object.class); c = c.getSuperclass()) {
-      classes.add(c);
+    if (!claim(rootHolder, null)) {
+      return; // initialized or being initialized by the current thread
     }
 
-    // initialize each referenced bean
-    for (final Class<?> c : classes) {
-      for (final Field field : c.getDeclaredFields()) {
-        final Resource resourceAnnotation = field.getAnnotation(Resource.class);
+    List<InitializationFrame> stack = INITIALIZATION_STACK.get();
+    if (stack == null) {
+      stack = new ArrayList<InitializationFrame>();
+      INITIALIZATION_STACK.set(stack);
+    }
+    final int base = stack.size();
+    final InjectionListener listener = this.listener;
+    stack.add(new InitializationFrame(rootHolder, listener != null ? System.nanoTime() : 0L));
 
-        if (resourceAnnotation == null) {
+    try {
+      while (stack.size() > base) {
+        final InitializationFrame frame = stack.get(stack.size() - 1);
+        if (frame.fieldIndex == frame.plan.getFieldCount()) {
+          completeInitialization(frame, listener);
+          stack.remove(stack.size() - 1);
           continue;
         }
 
-        if (!resourceAnnotation.mappedName().isEmpty()) {
-          throw new UnsupportedOperationException("Beans with mappedName are not supported, " +
-              "class: " + beanImplClass + ", field: " + field.getName() + ", " +
-              "mappedName: " + resourceAnnotation.mappedName());
+        final InjectionPoint injectionPoint = frame.plan.getField(frame.fieldIndex);
+        final BeanHolder<?> dependency = injectionPoint.kind == InjectionPoint.Kind.BEAN &&
+            !injectionPoint.beanType.equals(InjectionContext.class) ? findBeanHolder(injectionPoint) : null;
+        final Object value;
+        if (dependency != null) {
+          if (claim(dependency, stack)) {
+            // initialize dependency first, this field is injected when the dependency frame is completed
+            stack.add(new InitializationFrame(dependency, listener != null ? System.nanoTime() : 0L));
+            continue;
+          }
+
+          if (listener != null) {
+            listener.beanRequested(injectionPoint.beanType, true);
+          }
+          value = dependency.bean; // initialized or early reference
+          if (dependency.pendingFutures != null) {
+            if (frame.pendingDependencies == null) {
+              frame.pendingDependencies = new ArrayList<BeanHolder<?>>(2);
+            }
+            frame.pendingDependencies.add(dependency);
+          }
+        } else {
+          // providers, lazy proxies, context itself and the beans of the parent context
+          value = resolve(injectionPoint, null);
         }
 
-        final boolean wasAccessible = field.isAccessible();
-        if (!wasAccessible) {
-          field.setAccessible(true);
+        frame.plan.injectField(frame.beanHolder.bean, frame.fieldIndex, value);
+        ++frame.fieldIndex;
+      }
+    } finally {
+      if (stack.size() > base) {
+        // initialization has failed, abandon the beans, that are not initialized
+        for (int i = stack.size() - 1; i >= base; --i) {
+          stack.remove(i).beanHolder.release();
         }
+      }
+      if (base == 0) {
+        INITIALIZATION_STACK.remove();
+      }
+    }
+  }
+
+  // returns true if the current thread should initialize the bean
+  private boolean claim(@Nonnull BeanHolder<?> beanHolder, @Nullable List<InitializationFrame> stack) {
+    if (beanHolder.claim()) {
+      return true;
+    }
 
-        // normally we'd expect that fields are not initialized
-        assert field.get(beanHolder.bean) == null;
+    if (!beanHolder.initialized && !circularReferencesAllowed) {
+      // the bean is being initialized by the current thread
+      throw new InjectionException("Circular dependency between beans: " + getCyclePath(beanHolder,
+          stack != null ? stack : INITIALIZATION_STACK.get()));
+    }
 
-        field.set(beanHolder.bean, getBean(field.getType()));
+    return false;
+  }
 
-        if (!wasAccessible) {
-          field.setAccessible(false);
-        }
+  private void completeInitialization(@Nonnull InitializationFrame frame, @Nullable InjectionListener listener)
+      throws IllegalAccessException, InvocationTargetException {
+    final Object bean = frame.beanHolder.bean;
+
+    // dependencies should be completely initialized before post-construct methods of the dependent bean
+    if (frame.pendingDependencies != null) {
+      for (final BeanHolder<?> dependency : frame.pendingDependencies) {
+        dependency.awaitInitialization();
       }
     }
 
-    // invoke post-construct methods
-    assert beanImplClass != null;
-    for (final Method method : beanImplClass.getMethods()) {
-      if (method.getAnnotation(PostConstruct.class) == null) {
-        continue;
-      }
+    long start = 0L;
+    if (listener != null) {
+      start = System.nanoTime();
+      listener.fieldsInjected(bean, start - frame.startNanos);
+    }
 
-      // validate and invoke post-construct method
-      if (method.getParameterTypes().length > 0) {
-        throw new UnsupportedOperationException("Method " + method + " is declared as post construct, but " +
-            "it takes parameters which is not supported");
-      }
+    // invoke post-construct methods
+    frame.beanHolder.pendingFutures = frame.plan.invokePostConstruct(bean);
 
-      method.invoke(beanHolder.bean);
+    if (listener != null) {
+      listener.postConstructInvoked(bean, System.nanoTime() - start);
     }
 
     // mark this bean as initialized one.
-    beanHolder.initialized = true;
+    frame.beanHolder.initialized = true;
+    frame.beanHolder.release();
+  }
+
+  @Nonnull
+  private static String getCyclePath(@Nonnull BeanHolder<?> beanHolder, @Nullable List<InitializationFrame> stack) {
+    final StringBuilder path = new StringBuilder();
+    boolean inCycle = false;
+    if (stack != null) {
+      for (final InitializationFrame frame : stack) {
+        inCycle = inCycle || frame.beanHolder == beanHolder;
+        if (inCycle) {
+          path.append(frame.beanHolder.bean.getClass().getName()).append(" -> ");
+        }
+      }
+    }
+    return path.append(beanHolder.bean.getClass().getName()).toString();
   }
 }
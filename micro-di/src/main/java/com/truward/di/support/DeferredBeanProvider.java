@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.Provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Provider, that resolves the bean in the given context on the first access.
+ * Also serves as an invocation handler of the lazy proxies.
+ * The resolved bean is memoized along with the version of the type index of the context, so that the bean is
+ * resolved again, once the beans of the context are replaced.
+ *
+ * @author Alexander Shabanov
+ */
+final class DeferredBeanProvider<T> implements Provider<T>, InvocationHandler {
+  private final InjectionContext context;
+  private final Class<T> beanType;
+  private final String beanName;
+  private volatile Resolution<T> resolution;
+
+  /**
+   * Resolved bean along with the version of the type index, it has been resolved by.
+   */
+  private static final class Resolution<T> {
+    final T bean;
+    final int indexVersion;
+
+    Resolution(@Nonnull T bean, int indexVersion) {
+      this.bean = bean;
+      this.indexVersion = indexVersion;
+    }
+  }
+
+  DeferredBeanProvider(@Nonnull InjectionContext context, @Nonnull Class<T> beanType, @Nullable String beanName) {
+    this.context = context;
+    this.beanType = beanType;
+    this.beanName = beanName;
+  }
+
+  @Nonnull
+  @Override
+  public T get() {
+    final int indexVersion = context instanceof DefaultInjectionContext ?
+        ((DefaultInjectionContext) context).getIndexVersion() : 0;
+    Resolution<T> result = resolution;
+    if (result == null || result.indexVersion != indexVersion) {
+      // the context returns the same bean for the same version, so concurrent resolution is harmless
+      result = new Resolution<T>(beanName != null ? context.getBean(beanName, beanType) : context.getBean(beanType),
+          indexVersion);
+      resolution = result;
+    }
+    return result.bean;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(get(), args);
+    } catch (InvocationTargetException e) {
+      throw e.getTargetException();
+    }
+  }
+
+  /**
+   * Creates proxy, that delegates all the calls to the bean resolved by this provider.
+   *
+   * @return Proxy instance.
+   */
+  @Nonnull
+  Object createProxy() {
+    return Proxy.newProxyInstance(beanType.getClassLoader(), new Class<?>[] { beanType }, this);
+  }
+
+  @Override
+  public String toString() {
+    return "DeferredBeanProvider{beanType=" + beanType + (beanName != null ? ", beanName=" + beanName : "") + '}';
+  }
+}
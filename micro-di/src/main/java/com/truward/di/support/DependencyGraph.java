@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Resource;
+import java.util.*;
+
+/**
+ * Dependency graph of the beans registered in the frozen context.
+ * Edges are built from the fields annotated with {@link Resource} and from the constructor parameters of the beans,
+ * created by the context, as the constructors of the beans registered as instances are never invoked by it,
+ * the named resources are resolved by their names and the collections depend on all the beans of their type.
+ * Beans are identified by their ids, i.e. by their position in the list of bean holders.
+ * The dependencies, that can not be resolved to the single bean, are omitted,
+ * the corresponding error is reported when the dependent bean is initialized.
+ *
+ * @author Alexander Shabanov
+ */
+final class DependencyGraph {
+  private static final int[] NO_EDGES = new int[0];
+
+  private final List<BeanHolder<?>> beanHolders;
+  private final int[][] dependencies;
+  private final int[][] dependents;
+
+  private DependencyGraph(@Nonnull List<BeanHolder<?>> beanHolders,
+                          @Nonnull int[][] dependencies,
+                          @Nonnull int[][] dependents) {
+    this.beanHolders = beanHolders;
+    this.dependencies = dependencies;
+    this.dependents = dependents;
+  }
+
+  int size() {
+    return beanHolders.size();
+  }
+
+  @Nonnull
+  BeanHolder<?> getBeanHolder(int node) {
+    return beanHolders.get(node);
+  }
+
+  /**
+   * @param node Bean index.
+   * @return Indexes of the beans, that the given bean depends on.
+   */
+  @Nonnull
+  int[] getDependencies(int node) {
+    return dependencies[node];
+  }
+
+  /**
+   * @param node Bean index.
+   * @return Indexes of the beans, that depend on the given bean.
+   */
+  @Nonnull
+  int[] getDependents(int node) {
+    return dependents[node];
+  }
+
+  /**
+   * @return Beans in the order, in which each bean goes after all of its dependencies; the beans, that are
+   * reachable from the cycles, are not included.
+   */
+  @Nonnull
+  int[] getTopologicalOrder() {
+    final int size = size();
+    final int[] pendingCounts = new int[size];
+    final int[] queue = new int[size];
+    int tail = 0;
+    for (int i = 0; i < size; ++i) {
+      pendingCounts[i] = dependencies[i].length;
+      if (pendingCounts[i] == 0) {
+        queue[tail++] = i;
+      }
+    }
+
+    for (int head = 0; head < tail; ++head) {
+      for (final int dependent : dependents[queue[head]]) {
+        if (--pendingCounts[dependent] == 0) {
+          queue[tail++] = dependent;
+        }
+      }
+    }
+
+    return tail == size ? queue : Arrays.copyOf(queue, tail);
+  }
+
+  @Nonnull
+  static DependencyGraph build(@Nonnull List<BeanHolder<?>> beanHolders, @Nonnull TypeIndex typeIndex,
+                               @Nonnull BitSet constructedBeanIds) {
+    final int size = beanHolders.size();
+    final int[][] dependencies = new int[size][];
+    final int[] dependentCounts = new int[size];
+    final Set<Integer> nodeSink = new LinkedHashSet<Integer>();
+    for (int i = 0; i < size; ++i) {
+      nodeSink.clear();
+      final InjectionPlan plan = InjectionPlan.forClass(beanHolders.get(i).bean.getClass());
+      for (final InjectionPoint dependency : plan.getDependencies(constructedBeanIds.get(i))) {
+        if (dependency.beanName != null) {
+          final BeanHolder<?> namedHolder = typeIndex.getBeanHolder(dependency.beanName);
+          if (namedHolder != null) {
+            nodeSink.add(namedHolder.id);
+          }
+          continue;
+        }
+
+        final TypeIndex.Entry entry = typeIndex.get(dependency.beanType);
+        if (entry == null) {
+          continue;
+        }
+
+        if (dependency.isCollection()) {
+          for (int j = 0; j < entry.size(); ++j) {
+            if (entry.getBeanId(j) != i) {
+              nodeSink.add(entry.getBeanId(j)); // collection, that includes the bean itself, is not a dependency
+            }
+          }
+        } else if (entry.size() == 1) {
+          nodeSink.add(entry.getBeanId(0));
+        }
+      }
+
+      dependencies[i] = toArray(nodeSink);
+      for (final int dependency : dependencies[i]) {
+        ++dependentCounts[dependency];
+      }
+    }
+
+    // build reverse edges
+    final int[][] dependents = new int[size][];
+    for (int i = 0; i < size; ++i) {
+      dependents[i] = dependentCounts[i] == 0 ? NO_EDGES : new int[dependentCounts[i]];
+      dependentCounts[i] = 0;
+    }
+    for (int i = 0; i < size; ++i) {
+      for (final int dependency : dependencies[i]) {
+        dependents[dependency][dependentCounts[dependency]++] = i;
+      }
+    }
+
+    return new DependencyGraph(beanHolders, dependencies, dependents);
+  }
+
+  //
+  // Private
+  //
+
+  @Nonnull
+  private static int[] toArray(@Nonnull Collection<Integer> nodes) {
+    if (nodes.isEmpty()) {
+      return NO_EDGES;
+    }
+
+    final int[] result = new int[nodes.size()];
+    int i = 0;
+    for (final Integer node : nodes) {
+      result[i++] = node;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the dependency graph of the frozen context, that can be exported in DOT or JSON format.
+ * <p>
+ * Each node is a bean and each edge goes from the bean to its dependency, declared by the field annotated with
+ * the Resource annotation or by the constructor parameter. Providers and lazy references do not produce edges,
+ * as they do not require the dependency to be initialized first.
+ * </p>
+ * <p>
+ * If the report is built with {@link InjectionStatistics}, each node carries the own initialization time
+ * of the bean: the constructor time plus the post-construct time, the initialization of the dependencies
+ * is not included. The critical path is the chain of dependencies with the greatest total time, i.e. the lower
+ * bound of the startup time even if all the independent beans are initialized in parallel.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ * @see DefaultInjectionContext#getDependencyReport(InjectionStatistics)
+ */
+public final class DependencyReport {
+  private final List<Node> nodes;
+  private final List<Node> criticalPath;
+  private final long criticalPathNanos;
+
+  /**
+   * Bean in the dependency graph.
+   */
+  public static final class Node {
+    private final int id;
+    private final Class<?> beanClass;
+    private final long durationNanos;
+    private final boolean initialized;
+    private List<Node> dependencies = Collections.emptyList();
+
+    Node(int id, @Nonnull Class<?> beanClass, long durationNanos, boolean initialized) {
+      this.id = id;
+      this.beanClass = beanClass;
+      this.durationNanos = durationNanos;
+      this.initialized = initialized;
+    }
+
+    /**
+     * @return Position of the bean in the registration order.
+     */
+    public int getId() {
+      return id;
+    }
+
+    @Nonnull
+    public Class<?> getBeanClass() {
+      return beanClass;
+    }
+
+    /**
+     * @return Own initialization time of the bean or zero, if it has not been measured.
+     */
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    public boolean isInitialized() {
+      return initialized;
+    }
+
+    @Nonnull
+    public List<Node> getDependencies() {
+      return dependencies;
+    }
+
+    @Override
+    public String toString() {
+      return "Node{id=" + id + ", beanClass=" + beanClass.getName() + ", durationNanos=" + durationNanos + '}';
+    }
+  }
+
+  private DependencyReport(@Nonnull List<Node> nodes, @Nonnull List<Node> criticalPath, long criticalPathNanos) {
+    this.nodes = nodes;
+    this.criticalPath = criticalPath;
+    this.criticalPathNanos = criticalPathNanos;
+  }
+
+  @Nonnull
+  public List<Node> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * @return Chain of the beans with the greatest total initialization time, starting from the bean,
+   * that has no dependencies. Beans, that are part of the dependency cycles, are not considered.
+   */
+  @Nonnull
+  public List<Node> getCriticalPath() {
+    return criticalPath;
+  }
+
+  public long getCriticalPathNanos() {
+    return criticalPathNanos;
+  }
+
+  /**
+   * Writes this report in the DOT format, the critical path is highlighted.
+   *
+   * @param out Target.
+   * @throws IOException On write error.
+   */
+  public void writeDot(@Nonnull Appendable out) throws IOException {
+    final boolean[] critical = getCriticalNodes();
+    out.append("digraph beans {\n");
+    out.append("  node [shape=box];\n");
+    for (final Node node : nodes) {
+      out.append("  n").append(Integer.toString(node.id)).append(" [label=\"")
+          .append(escape(node.beanClass.getName())).append("\\n")
+          .append(Long.toString(node.durationNanos / 1000L)).append(" us\"");
+      if (critical[node.id]) {
+        out.append(", color=red, penwidth=2");
+      }
+      if (!node.initialized) {
+        out.append(", style=dashed");
+      }
+      out.append("];\n");
+    }
+
+    for (final Node node : nodes) {
+      for (final Node dependency : node.dependencies) {
+        out.append("  n").append(Integer.toString(node.id)).append(" -> n").append(Integer.toString(dependency.id));
+        if (critical[node.id] && critical[dependency.id] && isCriticalEdge(node, dependency)) {
+          out.append(" [color=red, penwidth=2]");
+        }
+        out.append(";\n");
+      }
+    }
+    out.append("}\n");
+  }
+
+  /**
+   * Writes this report in the JSON format:
+   * <pre>
+   * {"beans":[{"id":0,"class":"...","durationNanos":0,"initialized":true,"dependencies":[1]},...],
+   *  "criticalPath":[1,0],"criticalPathNanos":0}
+   * </pre>
+   *
+   * @param out Target.
+   * @throws IOException On write error.
+   */
+  public void writeJson(@Nonnull Appendable out) throws IOException {
+    out.append("{\"beans\":[");
+    for (int i = 0; i < nodes.size(); ++i) {
+      final Node node = nodes.get(i);
+      out.append(i > 0 ? ",{" : "{");
+      out.append("\"id\":").append(Integer.toString(node.id));
+      out.append(",\"class\":\"").append(escape(node.beanClass.getName())).append('"');
+      out.append(",\"durationNanos\":").append(Long.toString(node.durationNanos));
+      out.append(",\"initialized\":").append(Boolean.toString(node.initialized));
+      out.append(",\"dependencies\":");
+      appendIds(out, node.dependencies);
+      out.append('}');
+    }
+    out.append("],\"criticalPath\":");
+    appendIds(out, criticalPath);
+    out.append(",\"criticalPathNanos\":").append(Long.toString(criticalPathNanos)).append("}");
+  }
+
+  @Nonnull
+  static DependencyReport build(@Nonnull DependencyGraph graph, @Nullable InjectionStatistics statistics) {
+    final int size = graph.size();
+    final List<Node> nodes = new ArrayList<Node>(size);
+    for (int i = 0; i < size; ++i) {
+      final BeanHolder<?> beanHolder = graph.getBeanHolder(i);
+      final Class<?> beanClass = beanHolder.bean.getClass();
+      long durationNanos = 0L;
+      if (statistics != null) {
+        final InjectionStatistics.BeanTimes times = statistics.getInstanceTimes(beanHolder.bean);
+        if (times != null) {
+          durationNanos = times.getConstructorNanos() + times.getPostConstructNanos();
+        }
+      }
+      nodes.add(new Node(i, beanClass, durationNanos, beanHolder.initialized));
+    }
+
+    for (int i = 0; i < size; ++i) {
+      final int[] dependencies = graph.getDependencies(i);
+      if (dependencies.length > 0) {
+        final Node[] dependencyNodes = new Node[dependencies.length];
+        for (int j = 0; j < dependencies.length; ++j) {
+          dependencyNodes[j] = nodes.get(dependencies[j]);
+        }
+        nodes.get(i).dependencies = Collections.unmodifiableList(Arrays.asList(dependencyNodes));
+      }
+    }
+
+    // longest path in the topological order, the dependencies go first
+    final int[] pendingCounts = new int[size];
+    final int[] queue = new int[size];
+    int tail = 0;
+    for (int i = 0; i < size; ++i) {
+      pendingCounts[i] = graph.getDependencies(i).length;
+      if (pendingCounts[i] == 0) {
+        queue[tail++] = i;
+      }
+    }
+
+    final long[] finishNanos = new long[size];
+    final int[] predecessors = new int[size];
+    Arrays.fill(predecessors, -1);
+    int last = -1;
+    for (int head = 0; head < tail; ++head) {
+      final int node = queue[head];
+      finishNanos[node] += nodes.get(node).durationNanos;
+      if (last < 0 || finishNanos[node] > finishNanos[last]) {
+        last = node;
+      }
+
+      for (final int dependent : graph.getDependents(node)) {
+        if (predecessors[dependent] < 0 || finishNanos[node] > finishNanos[dependent]) {
+          finishNanos[dependent] = finishNanos[node];
+          predecessors[dependent] = node;
+        }
+        if (--pendingCounts[dependent] == 0) {
+          queue[tail++] = dependent;
+        }
+      }
+    }
+
+    final List<Node> criticalPath = new ArrayList<Node>();
+    for (int node = last; node >= 0; node = predecessors[node]) {
+      criticalPath.add(nodes.get(node));
+    }
+    Collections.reverse(criticalPath);
+
+    return new DependencyReport(Collections.unmodifiableList(nodes), Collections.unmodifiableList(criticalPath),
+        last >= 0 ? finishNanos[last] : 0L);
+  }
+
+  //
+  // Private
+  //
+
+  @Nonnull
+  private boolean[] getCriticalNodes() {
+    final boolean[] result = new boolean[nodes.size()];
+    for (final Node node : criticalPath) {
+      result[node.id] = true;
+    }
+    return result;
+  }
+
+  private boolean isCriticalEdge(@Nonnull Node node, @Nonnull Node dependency) {
+    for (int i = 1; i < criticalPath.size(); ++i) {
+      if (criticalPath.get(i) == node) {
+        return criticalPath.get(i - 1) == dependency;
+      }
+    }
+    return false;
+  }
+
+  private static void appendIds(@Nonnull Appendable out, @Nonnull List<Node> nodes) throws IOException {
+    out.append('[');
+    for (int i = 0; i < nodes.size(); ++i) {
+      if (i > 0) {
+        out.append(',');
+      }
+      out.append(Integer.toString(nodes.get(i).id));
+    }
+    out.append(']');
+  }
+
+  // escapes string for both JSON and DOT string literals
+  @Nonnull
+  private static String escape(@Nonnull String value) {
+    final StringBuilder result = new StringBuilder(value.length() + 8);
+    for (int i = 0; i < value.length(); ++i) {
+      final char ch = value.charAt(i);
+      if (ch == '"' || ch == '\\') {
+        result.append('\\').append(ch);
+      } else if (ch < ' ') {
+        result.append(String.format("\\u%04x", (int) ch));
+      } else {
+        result.append(ch);
+      }
+    }
+    return result.toString();
+  }
+}
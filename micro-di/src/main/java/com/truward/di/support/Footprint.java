@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Estimates of the shallow sizes of the objects and arrays, that assume 64-bit JVM with compressed references:
+ * 12-byte object headers, 16-byte array headers, 4-byte references and 8-byte alignment.
+ * The sizes of the objects are derived from the fields, declared by their classes, so that the estimates follow
+ * the changes of the classes. The estimates are meant to track the footprint of the contexts rather than to measure
+ * it precisely, e.g. the field packing is not taken into account.
+ *
+ * @author Alexander Shabanov
+ */
+final class Footprint {
+  static final int REFERENCE = 4;
+
+  private static final int OBJECT_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+
+  /**
+   * Entry of {@link HashMap}: the key, the value and the next entry along with the int hash.
+   * The entry of {@link LinkedHashMap} additionally references the previous and the next entries of the list.
+   */
+  private static final long HASH_MAP_NODE = object(3, 4);
+  private static final long LINKED_HASH_MAP_NODE = object(5, 4);
+
+  private static final ConcurrentMap<Class<?>, Long> SHALLOW_SIZES = new ConcurrentHashMap<Class<?>, Long>();
+
+  private Footprint() {
+  }
+
+  /**
+   * @param type Class of the object.
+   * @return Size of the object of the given class, derived from the instance fields of the class and of its
+   * superclasses.
+   */
+  static long shallowSize(Class<?> type) {
+    final Long cachedSize = SHALLOW_SIZES.get(type);
+    if (cachedSize != null) {
+      return cachedSize;
+    }
+
+    long size = OBJECT_HEADER;
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      for (final Field field : c.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers())) {
+          size += getFieldSize(field.getType());
+        }
+      }
+    }
+
+    size = align(size);
+    SHALLOW_SIZES.putIfAbsent(type, size);
+    return size;
+  }
+
+  /**
+   * @param referenceCount Number of the reference fields.
+   * @param primitiveBytes Total size of the primitive fields.
+   * @return Size of the object with the given fields.
+   */
+  static long object(int referenceCount, int primitiveBytes) {
+    return align(OBJECT_HEADER + (long) referenceCount * REFERENCE + primitiveBytes);
+  }
+
+  /**
+   * @param length Array length.
+   * @param elementBytes Size of the element, e.g. {@link #REFERENCE}.
+   * @return Size of the array.
+   */
+  static long array(int length, int elementBytes) {
+    return align(ARRAY_HEADER + (long) length * elementBytes);
+  }
+
+  /**
+   * @param size Number of the entries.
+   * @return Size of {@link HashMap} along with its table and the entries, not including the keys and the values.
+   */
+  static long hashMap(int size) {
+    return shallowSize(HashMap.class) + getHashTableSize(size) + size * HASH_MAP_NODE;
+  }
+
+  /**
+   * @param size Number of the elements.
+   * @return Size of {@link HashSet} along with its map, not including the elements.
+   */
+  static long hashSet(int size) {
+    return shallowSize(HashSet.class) + hashMap(size);
+  }
+
+  /**
+   * @param size Number of the elements.
+   * @return Size of {@link LinkedHashSet} along with its map, not including the elements.
+   */
+  static long linkedHashSet(int size) {
+    return shallowSize(LinkedHashSet.class) + linkedHashMap(size);
+  }
+
+  /**
+   * @param size Number of the entries.
+   * @return Size of {@link LinkedHashMap} along with its table and the entries.
+   */
+  static long linkedHashMap(int size) {
+    return shallowSize(LinkedHashMap.class) + getHashTableSize(size) + size * LINKED_HASH_MAP_NODE;
+  }
+
+  /**
+   * @param size Number of the entries.
+   * @return Size of {@link IdentityHashMap}, that keeps the keys and the values in the single table.
+   */
+  static long identityHashMap(int size) {
+    int capacity = 32;
+    while (capacity * 2 / 3 < size) {
+      capacity <<= 1;
+    }
+    return shallowSize(IdentityHashMap.class) + array(capacity * 2, REFERENCE);
+  }
+
+  //
+  // Private
+  //
+
+  // table of the hash map with the default load factor
+  private static long getHashTableSize(int size) {
+    if (size == 0) {
+      return 0L;
+    }
+
+    int capacity = 16;
+    while (capacity * 3 / 4 < size) {
+      capacity <<= 1;
+    }
+    return array(capacity, REFERENCE);
+  }
+
+  private static int getFieldSize(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    }
+    if (type == int.class || type == float.class) {
+      return 4;
+    }
+    if (type == short.class || type == char.class) {
+      return 2;
+    }
+    if (type == byte.class || type == boolean.class) {
+      return 1;
+    }
+    return REFERENCE;
+  }
+
+  private static long align(long size) {
+    return (size + 7L) & ~7L;
+  }
+}
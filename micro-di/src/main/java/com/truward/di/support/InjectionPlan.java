@@ -0,0 +1,598 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.InjectionException;
+import com.truward.di.Injector;
+import com.truward.di.Lazy;
+import com.truward.di.Warmup;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.Closeable;
+import java.lang.annotation.Annotation;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * Reflection data, needed to construct and initialize beans of a certain class.
+ * The plan is created once per bean class and shared across all the injection contexts,
+ * so that the class hierarchy is scanned for the injected fields, constructors and post-construct methods
+ * only once. The fields and methods of the plan are made accessible upfront.
+ * <p>
+ * If there is an {@link Injector} generated for the bean class at compile time, the plan uses it to create
+ * beans, inject fields and invoke post-construct methods instead of reflection.
+ * </p>
+ * <p>
+ * Plans are cached in the weak map keyed by the bean class and referenced softly, so that the cached plans
+ * can be reclaimed and the corresponding classes unloaded. The plans can also be restored from the members,
+ * recorded by {@link StartupSnapshot}, without scanning the class hierarchy.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+final class InjectionPlan {
+  private static final Map<Class<?>, SoftReference<InjectionPlan>> PLANS =
+      new WeakHashMap<Class<?>, SoftReference<InjectionPlan>>();
+
+  private static final InjectionPoint[] NO_INJECTION_POINTS = new InjectionPoint[0];
+
+  /**
+   * {@code java.lang.AutoCloseable} or null, if it is not available in the current JRE.
+   */
+  private static final Class<?> AUTO_CLOSEABLE = loadAutoCloseable();
+
+  private final Class<?> beanClass;
+  private final Field[] fields;
+  private final InjectionPoint[] fieldInjectionPoints;
+  private final Method[] postConstructMethods;
+
+  /**
+   * Methods, annotated with {@link Warmup}.
+   */
+  private final Method[] warmupMethods;
+
+  /**
+   * True, if any of the post-construct methods returns {@link Future}.
+   */
+  private final boolean asyncPostConstruct;
+
+  /**
+   * Methods, annotated with {@link PreDestroy}, followed by the close method of {@link Closeable} beans.
+   */
+  private final Method[] destroyMethods;
+  private final Constructor<?> constructor;
+  private final InjectionPoint[] constructorInjectionPoints;
+  private final boolean multipleConstructors;
+
+  /**
+   * Generated injector or null if there is no such or if it does not match the bean class.
+   */
+  private final Injector<Object> injector;
+  private final int[] injectorFieldIndexes;
+
+  private InjectionPlan(@Nonnull Class<?> beanClass) {
+    this.beanClass = beanClass;
+
+    // collect fields annotated with Resource, starting from the bean class itself
+    final List<Field> fieldList = new ArrayList<Field>();
+    for (Class<?> c = beanClass; c != null && !c.equals(Object.class); c = c.getSuperclass()) {
+      for (final Field field : c.getDeclaredFields()) {
+        final Resource resourceAnnotation = field.getAnnotation(Resource.class);
+        if (resourceAnnotation == null) {
+          continue;
+        }
+
+        field.setAccessible(true);
+        fieldList.add(field);
+      }
+    }
+    this.fields = fieldList.toArray(new Field[fieldList.size()]);
+    this.fieldInjectionPoints = getInjectionPoints(fields);
+
+    // collect post-construct methods
+    final List<Method> methodList = new ArrayList<Method>();
+    final List<Method> destroyMethodList = new ArrayList<Method>();
+    final List<Method> warmupMethodList = new ArrayList<Method>();
+    boolean async = false;
+    boolean closeAnnotated = false;
+    for (final Method method : beanClass.getMethods()) {
+      final boolean postConstruct = method.getAnnotation(PostConstruct.class) != null;
+      final boolean preDestroy = method.getAnnotation(PreDestroy.class) != null;
+      final boolean warmup = method.getAnnotation(Warmup.class) != null;
+      if (!postConstruct && !preDestroy && !warmup) {
+        continue;
+      }
+
+      if (method.getParameterTypes().length > 0) {
+        throw new UnsupportedOperationException("Method " + method + " is declared as " +
+            (postConstruct ? "post construct" : (preDestroy ? "pre destroy" : "warmup")) +
+            ", but it takes parameters which is not supported");
+      }
+
+      method.setAccessible(true);
+      if (postConstruct) {
+        methodList.add(method);
+        async |= Future.class.isAssignableFrom(method.getReturnType());
+      }
+      if (preDestroy) {
+        destroyMethodList.add(method);
+        closeAnnotated |= method.getName().equals("close");
+      }
+      if (warmup) {
+        warmupMethodList.add(method);
+      }
+    }
+    this.warmupMethods = warmupMethodList.toArray(new Method[warmupMethodList.size()]);
+    this.postConstructMethods = methodList.toArray(new Method[methodList.size()]);
+    this.asyncPostConstruct = async;
+
+    // closeable beans are closed after the pre-destroy methods, unless the close method is annotated itself
+    if (!closeAnnotated) {
+      final Class<?> closeableClass = Closeable.class.isAssignableFrom(beanClass) ? Closeable.class :
+          (AUTO_CLOSEABLE != null && AUTO_CLOSEABLE.isAssignableFrom(beanClass) ? AUTO_CLOSEABLE : null);
+      if (closeableClass != null) {
+        try {
+          destroyMethodList.add(closeableClass.getMethod("close"));
+        } catch (NoSuchMethodException e) {
+          throw new IllegalStateException(e); // should not happen
+        }
+      }
+    }
+    this.destroyMethods = destroyMethodList.toArray(new Method[destroyMethodList.size()]);
+
+    // resolve constructor, default constructor is used if there is no public one
+    final Constructor<?>[] constructors = beanClass.getConstructors();
+    this.multipleConstructors = constructors.length > 1;
+    this.constructor = constructors.length == 1 ? constructors[0] : null;
+    this.constructorInjectionPoints = constructor != null ? getInjectionPoints(constructor) : NO_INJECTION_POINTS;
+
+    // use generated injector if it matches the reflection data
+    final Injector<Object> generatedInjector = loadInjector(beanClass);
+    this.injectorFieldIndexes = generatedInjector != null ? getInjectorFieldIndexes(generatedInjector) : null;
+    this.injector = injectorFieldIndexes != null ? generatedInjector : null;
+  }
+
+  // creates plan from the members, that have been collected by the other plan for the same class
+  private InjectionPlan(@Nonnull Class<?> beanClass, @Nonnull Field[] fields, @Nullable Constructor<?> constructor,
+                        boolean multipleConstructors, @Nonnull Method[] postConstructMethods,
+                        @Nonnull Method[] destroyMethods, @Nonnull Method[] warmupMethods) {
+    this.beanClass = beanClass;
+    for (final Field field : fields) {
+      field.setAccessible(true);
+    }
+    this.fields = fields;
+    this.fieldInjectionPoints = getInjectionPoints(fields);
+
+    boolean async = false;
+    for (final Method method : postConstructMethods) {
+      method.setAccessible(true);
+      async |= Future.class.isAssignableFrom(method.getReturnType());
+    }
+    for (final Method method : destroyMethods) {
+      method.setAccessible(true);
+    }
+    for (final Method method : warmupMethods) {
+      method.setAccessible(true);
+    }
+    this.postConstructMethods = postConstructMethods;
+    this.asyncPostConstruct = async;
+    this.destroyMethods = destroyMethods;
+    this.warmupMethods = warmupMethods;
+
+    this.multipleConstructors = multipleConstructors;
+    this.constructor = constructor;
+    this.constructorInjectionPoints = constructor != null ? getInjectionPoints(constructor) : NO_INJECTION_POINTS;
+
+    final Injector<Object> generatedInjector = loadInjector(beanClass);
+    this.injectorFieldIndexes = generatedInjector != null ? getInjectorFieldIndexes(generatedInjector) : null;
+    this.injector = injectorFieldIndexes != null ? generatedInjector : null;
+  }
+
+  /**
+   * Returns cached plan for the given class or creates a new one.
+   *
+   * @param beanClass Bean class.
+   * @return Injection plan.
+   */
+  @Nonnull
+  static InjectionPlan forClass(@Nonnull Class<?> beanClass) {
+    final InjectionPlan cachedPlan = getCachedPlan(beanClass);
+    if (cachedPlan != null) {
+      return cachedPlan;
+    }
+
+    // create plan outside of the lock, the plans created concurrently for the same class are equivalent
+    return cache(new InjectionPlan(beanClass));
+  }
+
+  /**
+   * Returns cached plan for the given class or creates a new one from the given members, which have been
+   * collected by the plan for the same class before, e.g. by the previous run of the application.
+   * Unlike {@link #forClass(Class)}, the class hierarchy is not scanned.
+   *
+   * @param beanClass Bean class.
+   * @param fields Fields annotated with the Resource annotation.
+   * @param constructor Constructor, that is used to create the bean, or null if the default constructor is used.
+   * @param multipleConstructors True, if the bean class defines multiple public constructors.
+   * @param postConstructMethods Methods annotated with the PostConstruct annotation.
+   * @param destroyMethods Methods annotated with the PreDestroy annotation, followed by the close method.
+   * @param warmupMethods Methods annotated with {@link Warmup}.
+   * @return Injection plan.
+   */
+  @Nonnull
+  static InjectionPlan restore(@Nonnull Class<?> beanClass, @Nonnull Field[] fields,
+                               @Nullable Constructor<?> constructor, boolean multipleConstructors,
+                               @Nonnull Method[] postConstructMethods, @Nonnull Method[] destroyMethods,
+                               @Nonnull Method[] warmupMethods) {
+    final InjectionPlan cachedPlan = getCachedPlan(beanClass);
+    if (cachedPlan != null) {
+      return cachedPlan;
+    }
+
+    return cache(new InjectionPlan(beanClass, fields, constructor, multipleConstructors, postConstructMethods,
+        destroyMethods, warmupMethods));
+  }
+
+  @Nonnull
+  Class<?> getBeanClass() {
+    return beanClass;
+  }
+
+  int getFieldCount() {
+    return fields.length;
+  }
+
+  @Nonnull
+  InjectionPoint getField(int index) {
+    return fieldInjectionPoints[index];
+  }
+
+  /**
+   * @param index Field index.
+   * @return Field, that the value of the injection point with the same index is assigned to.
+   */
+  @Nonnull
+  Field getFieldTarget(int index) {
+    return fields[index];
+  }
+
+  /**
+   * @return Constructor, that is used to create the bean, or null if the default constructor is used.
+   */
+  @Nullable
+  Constructor<?> getConstructor() {
+    return constructor;
+  }
+
+  boolean hasMultipleConstructors() {
+    return multipleConstructors;
+  }
+
+  @Nonnull
+  Method[] getPostConstructMethods() {
+    return postConstructMethods.clone();
+  }
+
+  @Nonnull
+  Method[] getDestroyMethods() {
+    return destroyMethods.clone();
+  }
+
+  void injectField(@Nonnull Object bean, int index, @Nonnull Object value) throws IllegalAccessException {
+    // normally we'd expect that fields are not initialized
+    assert fields[index].get(bean) == null;
+
+    reinjectField(bean, index, value);
+  }
+
+  /**
+   * Injects the given value to the field, that might have been already injected, e.g. when the bean, injected
+   * to the field, has been replaced.
+   *
+   * @param bean Bean instance.
+   * @param index Field index.
+   * @param value Value to inject.
+   * @throws IllegalAccessException On reflection error.
+   */
+  void reinjectField(@Nonnull Object bean, int index, @Nonnull Object value) throws IllegalAccessException {
+    if (injector != null) {
+      injector.inject(bean, injectorFieldIndexes[index], value);
+      return;
+    }
+
+    fields[index].set(bean, value);
+  }
+
+  /**
+   * Invokes post-construct methods of the given bean.
+   *
+   * @param bean Bean instance.
+   * @return Non-null futures, returned by the asynchronous post-construct methods, or null if there are no such.
+   * @throws IllegalAccessException On reflection error.
+   * @throws InvocationTargetException If any of the post-construct methods has thrown an exception.
+   */
+  @Nullable
+  Future<?>[] invokePostConstruct(@Nonnull Object bean) throws IllegalAccessException, InvocationTargetException {
+    if (injector != null && !asyncPostConstruct) {
+      try {
+        injector.postConstruct(bean);
+      } catch (RuntimeException e) {
+        throw new InvocationTargetException(unwrap(e));
+      }
+      return null;
+    }
+
+    if (!asyncPostConstruct) {
+      for (final Method method : postConstructMethods) {
+        method.invoke(bean);
+      }
+      return null;
+    }
+
+    // collect results of the asynchronous methods, the generated injector discards them
+    final List<Future<?>> futures = new ArrayList<Future<?>>(postConstructMethods.length);
+    for (final Method method : postConstructMethods) {
+      final Object result = method.invoke(bean);
+      if (result instanceof Future) {
+        futures.add((Future<?>) result);
+      }
+    }
+    return futures.isEmpty() ? null : futures.toArray(new Future<?>[futures.size()]);
+  }
+
+  @Nonnull
+  Method[] getWarmupMethods() {
+    return warmupMethods.clone();
+  }
+
+  /**
+   * @return True, if the bean has warm-up methods.
+   */
+  boolean hasWarmupMethods() {
+    return warmupMethods.length > 0;
+  }
+
+  /**
+   * Invokes warm-up methods of the given bean.
+   *
+   * @param bean Initialized bean instance.
+   * @throws IllegalAccessException On reflection error.
+   * @throws InvocationTargetException If any of the methods has thrown an exception.
+   */
+  void invokeWarmup(@Nonnull Object bean) throws IllegalAccessException, InvocationTargetException {
+    for (final Method method : warmupMethods) {
+      method.invoke(bean);
+    }
+  }
+
+  /**
+   * @return True, if the bean has pre-destroy methods or if it is closeable.
+   */
+  boolean hasDestroyMethods() {
+    return destroyMethods.length > 0;
+  }
+
+  /**
+   * Invokes pre-destroy methods of the given bean and closes it if it is closeable.
+   *
+   * @param bean Bean instance.
+   * @throws IllegalAccessException On reflection error.
+   * @throws InvocationTargetException If any of the methods has thrown an exception.
+   */
+  void invokeDestroy(@Nonnull Object bean) throws IllegalAccessException, InvocationTargetException {
+    for (final Method method : destroyMethods) {
+      method.invoke(bean);
+    }
+  }
+
+  @Nonnull
+  InjectionPoint[] getConstructorParameters() {
+    return constructorInjectionPoints;
+  }
+
+  @Nonnull
+  Object newInstance(@Nonnull Object[] parameters) throws IllegalAccessException,
+      InstantiationException, InvocationTargetException {
+    if (multipleConstructors) {
+      throw new InjectionException("Bean " + beanClass + " defines multiple constructors");
+    }
+
+    if (injector != null && injector.canCreate()) {
+      try {
+        return injector.create(parameters);
+      } catch (RuntimeException e) {
+        throw new InvocationTargetException(unwrap(e));
+      }
+    }
+
+    if (constructor == null) {
+      return beanClass.newInstance();
+    }
+
+    return constructor.newInstance(parameters);
+  }
+
+  /**
+   * @param constructed True, if the bean is created by the context, false if it is registered as an instance,
+   *                    so that its constructor is never invoked by the context.
+   * @return Injection points of the beans, that should be initialized before they are injected to the fields
+   * or to the constructor of the bean.
+   */
+  @Nonnull
+  List<InjectionPoint> getDependencies(boolean constructed) {
+    final List<InjectionPoint> result = new ArrayList<InjectionPoint>(fields.length +
+        (constructed ? constructorInjectionPoints.length : 0));
+    addDependencies(result, fieldInjectionPoints);
+    if (constructed) {
+      addDependencies(result, constructorInjectionPoints);
+    }
+    return result;
+  }
+
+  //
+  // Private
+  //
+
+  @Nullable
+  private static InjectionPlan getCachedPlan(@Nonnull Class<?> beanClass) {
+    synchronized (PLANS) {
+      final SoftReference<InjectionPlan> ref = PLANS.get(beanClass);
+      return ref != null ? ref.get() : null;
+    }
+  }
+
+  @Nonnull
+  private static InjectionPlan cache(@Nonnull InjectionPlan plan) {
+    synchronized (PLANS) {
+      PLANS.put(plan.beanClass, new SoftReference<InjectionPlan>(plan));
+    }
+    return plan;
+  }
+
+  @Nullable
+  private static Class<?> loadAutoCloseable() {
+    try {
+      return Class.forName("java.lang.AutoCloseable");
+    } catch (ClassNotFoundException e) {
+      return null; // Java 6
+    }
+  }
+
+  @Nullable
+  @SuppressWarnings("unchecked")
+  private static Injector<Object> loadInjector(@Nonnull Class<?> beanClass) {
+    final Class<?> injectorClass;
+    try {
+      injectorClass = Class.forName(beanClass.getName() + Injector.CLASS_NAME_SUFFIX, true,
+          beanClass.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      return null; // no generated injector, reflection will be used
+    }
+
+    if (!Injector.class.isAssignableFrom(injectorClass)) {
+      return null;
+    }
+
+    try {
+      return (Injector<Object>) injectorClass.newInstance();
+    } catch (InstantiationException e) {
+      throw new InjectionException("Unable to instantiate injector " + injectorClass, e);
+    } catch (IllegalAccessException e) {
+      throw new InjectionException("Unable to instantiate injector " + injectorClass, e);
+    }
+  }
+
+  // maps each field of this plan to the field index of the injector, returns null if injector is outdated
+  @Nullable
+  private int[] getInjectorFieldIndexes(@Nonnull Injector<Object> generatedInjector) {
+    final String[] fieldNames = generatedInjector.getFieldNames();
+    if (fieldNames.length != fields.length) {
+      return null;
+    }
+
+    final Map<String, Integer> injectorFields = new HashMap<String, Integer>(fieldNames.length * 2);
+    for (int i = 0; i < fieldNames.length; ++i) {
+      injectorFields.put(fieldNames[i], i);
+    }
+
+    final int[] result = new int[fields.length];
+    for (int i = 0; i < fields.length; ++i) {
+      final Integer injectorIndex = injectorFields.get(fields[i].getDeclaringClass().getName() + '#' +
+          fields[i].getName());
+      if (injectorIndex == null) {
+        return null;
+      }
+      result[i] = injectorIndex;
+    }
+
+    final Set<String> methodNames = new HashSet<String>();
+    for (final Method method : postConstructMethods) {
+      methodNames.add(method.getName());
+    }
+    if (!methodNames.equals(new HashSet<String>(Arrays.asList(generatedInjector.getPostConstructMethodNames())))) {
+      return null;
+    }
+
+    return result;
+  }
+
+  // generated code wraps checked exceptions into the undeclared throwable exception
+  @Nonnull
+  private static Throwable unwrap(@Nonnull RuntimeException e) {
+    return e instanceof UndeclaredThrowableException && e.getCause() != null ? e.getCause() : e;
+  }
+
+  private static void addDependencies(@Nonnull List<InjectionPoint> sink,
+                                      @Nonnull InjectionPoint[] injectionPoints) {
+    for (final InjectionPoint injectionPoint : injectionPoints) {
+      // context itself is not a bean
+      if (injectionPoint.isEager() && !injectionPoint.beanType.equals(InjectionContext.class)) {
+        sink.add(injectionPoint);
+      }
+    }
+  }
+
+  // the name of the resource or its mapped name, if the former is not specified
+  @Nullable
+  private static String getBeanName(@Nonnull Resource resource) {
+    if (!resource.name().isEmpty()) {
+      return resource.name();
+    }
+    return resource.mappedName().isEmpty() ? null : resource.mappedName();
+  }
+
+  @Nonnull
+  private static InjectionPoint[] getInjectionPoints(@Nonnull Field[] fields) {
+    final InjectionPoint[] result = new InjectionPoint[fields.length];
+    for (int i = 0; i < fields.length; ++i) {
+      final Field field = fields[i];
+      result[i] = InjectionPoint.create(field.getType(), field.getGenericType(),
+          field.getAnnotation(Lazy.class) != null, getBeanName(field.getAnnotation(Resource.class)), field);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static InjectionPoint[] getInjectionPoints(@Nonnull Constructor<?> constructor) {
+    final Class<?>[] parameterTypes = constructor.getParameterTypes();
+    final Type[] genericParameterTypes = constructor.getGenericParameterTypes();
+    final Annotation[][] parameterAnnotations = constructor.getParameterAnnotations();
+    final InjectionPoint[] result = new InjectionPoint[parameterTypes.length];
+    for (int i = 0; i < parameterTypes.length; ++i) {
+      boolean lazy = false;
+      for (final Annotation annotation : parameterAnnotations[i]) {
+        lazy |= annotation instanceof Lazy;
+      }
+
+      // generic parameter types of the inner class constructors do not include the enclosing instance
+      final Type genericType = genericParameterTypes.length == parameterTypes.length ?
+          genericParameterTypes[i] : parameterTypes[i];
+      result[i] = InjectionPoint.create(parameterTypes[i], genericType, lazy, null, constructor);
+    }
+    return result;
+  }
+}
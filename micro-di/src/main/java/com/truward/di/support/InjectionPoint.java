@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionException;
+import com.truward.di.Pool;
+import com.truward.di.Provider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes the value injected to the resource field or to the constructor parameter.
+ *
+ * @author Alexander Shabanov
+ */
+final class InjectionPoint {
+
+  enum Kind {
+    /**
+     * Initialized bean is injected.
+     */
+    BEAN,
+
+    /**
+     * {@link Provider} of the bean is injected.
+     */
+    PROVIDER,
+
+    /**
+     * Proxy, that initializes the bean on the first call, is injected.
+     */
+    LAZY,
+
+    /**
+     * Immutable list of all the initialized beans of the given type is injected.
+     */
+    LIST,
+
+    /**
+     * Immutable set of all the initialized beans of the given type is injected.
+     */
+    SET,
+
+    /**
+     * Immutable map of all the initialized beans of the given type by their names is injected,
+     * the unnamed beans are mapped by their class names.
+     */
+    MAP,
+
+    /**
+     * {@link Pool} of the pooled bean is injected.
+     */
+    POOL
+  }
+
+  /**
+   * Type of the bean to be resolved, for the collections - type of the collection elements.
+   */
+  @Nonnull
+  final Class<?> beanType;
+
+  @Nonnull
+  final Kind kind;
+
+  /**
+   * Name of the bean to be resolved or null if the bean is resolved by its type.
+   */
+  @Nullable
+  final String beanName;
+
+  private InjectionPoint(@Nonnull Class<?> beanType, @Nonnull Kind kind, @Nullable String beanName) {
+    this.beanType = beanType;
+    this.kind = kind;
+    this.beanName = beanName;
+  }
+
+  /**
+   * @return True, if the bean should be initialized before it is injected.
+   */
+  boolean isEager() {
+    return kind != Kind.PROVIDER && kind != Kind.LAZY && kind != Kind.POOL;
+  }
+
+  /**
+   * @return True, if all the beans of the given type are injected.
+   */
+  boolean isCollection() {
+    return kind == Kind.LIST || kind == Kind.SET || kind == Kind.MAP;
+  }
+
+  @Nonnull
+  static InjectionPoint create(@Nonnull Class<?> type, @Nonnull Type genericType, boolean lazy,
+                               @Nullable String beanName, @Nonnull Object location) {
+    if (type.equals(Provider.class)) {
+      return new InjectionPoint(getTypeArgument(genericType, 0, location), Kind.PROVIDER, beanName);
+    }
+    if (type.equals(Pool.class)) {
+      if (beanName != null) {
+        throw new InjectionException("Pools of the named beans are not supported, target: " + location);
+      }
+      return new InjectionPoint(getTypeArgument(genericType, 0, location), Kind.POOL, null);
+    }
+
+    // named collection is a bean itself
+    final Kind collectionKind = beanName == null ? getCollectionKind(type) : null;
+    if (collectionKind != null) {
+      if (lazy) {
+        throw new InjectionException("Lazy injection is not supported for collections, target: " + location);
+      }
+      if (collectionKind == Kind.MAP) {
+        if (!String.class.equals(getTypeArgument(genericType, 0, location))) {
+          throw new InjectionException("Only maps with String keys can be injected, target: " + location);
+        }
+        return new InjectionPoint(getTypeArgument(genericType, 1, location), collectionKind, null);
+      }
+      return new InjectionPoint(getTypeArgument(genericType, 0, location), collectionKind, null);
+    }
+
+    if (lazy) {
+      if (!type.isInterface()) {
+        throw new InjectionException("Lazy injection is supported for interfaces only, target: " + location);
+      }
+      return new InjectionPoint(type, Kind.LAZY, beanName);
+    }
+
+    return new InjectionPoint(type, Kind.BEAN, beanName);
+  }
+
+  //
+  // Private
+  //
+
+  @Nullable
+  private static Kind getCollectionKind(@Nonnull Class<?> type) {
+    if (type.equals(List.class)) {
+      return Kind.LIST;
+    }
+    if (type.equals(Set.class)) {
+      return Kind.SET;
+    }
+    return type.equals(Map.class) ? Kind.MAP : null;
+  }
+
+  // resolves the given type argument of the generic signature, e.g. Foo for Provider<Foo> or List<? extends Foo>
+  @Nonnull
+  private static Class<?> getTypeArgument(@Nonnull Type genericType, int index, @Nonnull Object location) {
+    if (genericType instanceof ParameterizedType) {
+      Type argument = ((ParameterizedType) genericType).getActualTypeArguments()[index];
+      if (argument instanceof WildcardType) {
+        argument = ((WildcardType) argument).getUpperBounds()[0];
+      }
+      if (argument instanceof Class) {
+        return (Class<?>) argument;
+      }
+      if (argument instanceof ParameterizedType) {
+        return (Class<?>) ((ParameterizedType) argument).getRawType();
+      }
+    }
+
+    throw new InjectionException("Unable to resolve the type of the injected bean, target: " + location);
+  }
+}
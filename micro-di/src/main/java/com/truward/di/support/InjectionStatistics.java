@@ -0,0 +1,259 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionListener;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe {@link InjectionListener}, that accumulates the initialization times per bean class and per bean
+ * instance and the lookup counts per class. The times of the instances are kept as long as the instances
+ * themselves are reachable, so that the prototype beans do not pile up in the statistics.
+ * <p>Sample usage:</p>
+ * <pre>
+ * final InjectionStatistics statistics = new InjectionStatistics();
+ * context.setInjectionListener(statistics);
+ * // register beans, freeze and initialize the context
+ * for (InjectionStatistics.BeanTimes times : statistics.getBeanTimes()) {
+ *   System.out.println(times);
+ * }
+ * </pre>
+ *
+ * @author Alexander Shabanov
+ */
+public class InjectionStatistics implements InjectionListener {
+  private final ConcurrentMap<Class<?>, BeanTimes> beanTimes = new ConcurrentHashMap<Class<?>, BeanTimes>();
+  private final ConcurrentMap<Class<?>, LookupCounter> lookups = new ConcurrentHashMap<Class<?>, LookupCounter>();
+  private final ConcurrentMap<InstanceKey, BeanTimes> instanceTimes = new ConcurrentHashMap<InstanceKey, BeanTimes>();
+  private final ReferenceQueue<Object> collectedInstances = new ReferenceQueue<Object>();
+
+  /**
+   * Accumulated initialization times of the beans of a certain class or of a single bean.
+   */
+  public static final class BeanTimes {
+    private final Class<?> beanClass;
+    private final AtomicLong constructorNanos = new AtomicLong();
+    private final AtomicLong fieldInjectionNanos = new AtomicLong();
+    private final AtomicLong postConstructNanos = new AtomicLong();
+
+    BeanTimes(@Nonnull Class<?> beanClass) {
+      this.beanClass = beanClass;
+    }
+
+    @Nonnull
+    public Class<?> getBeanClass() {
+      return beanClass;
+    }
+
+    public long getConstructorNanos() {
+      return constructorNanos.get();
+    }
+
+    /**
+     * @return Field injection time, including the initialization of the dependencies.
+     */
+    public long getFieldInjectionNanos() {
+      return fieldInjectionNanos.get();
+    }
+
+    public long getPostConstructNanos() {
+      return postConstructNanos.get();
+    }
+
+    public long getTotalNanos() {
+      return getConstructorNanos() + getFieldInjectionNanos() + getPostConstructNanos();
+    }
+
+    @Override
+    public String toString() {
+      return "BeanTimes{beanClass=" + beanClass.getName() +
+          ", constructorNanos=" + getConstructorNanos() +
+          ", fieldInjectionNanos=" + getFieldInjectionNanos() +
+          ", postConstructNanos=" + getPostConstructNanos() + '}';
+    }
+  }
+
+  @Override
+  public void beanConstructed(@Nonnull Object bean, long durationNanos) {
+    getOrCreateBeanTimes(bean.getClass()).constructorNanos.addAndGet(durationNanos);
+    getOrCreateInstanceTimes(bean).constructorNanos.addAndGet(durationNanos);
+  }
+
+  @Override
+  public void fieldsInjected(@Nonnull Object bean, long durationNanos) {
+    getOrCreateBeanTimes(bean.getClass()).fieldInjectionNanos.addAndGet(durationNanos);
+    getOrCreateInstanceTimes(bean).fieldInjectionNanos.addAndGet(durationNanos);
+  }
+
+  @Override
+  public void postConstructInvoked(@Nonnull Object bean, long durationNanos) {
+    getOrCreateBeanTimes(bean.getClass()).postConstructNanos.addAndGet(durationNanos);
+    getOrCreateInstanceTimes(bean).postConstructNanos.addAndGet(durationNanos);
+  }
+
+  @Override
+  public void beanRequested(@Nonnull Class<?> beanClass, boolean found) {
+    LookupCounter counter = lookups.get(beanClass);
+    if (counter == null) {
+      final LookupCounter newCounter = new LookupCounter();
+      counter = lookups.putIfAbsent(beanClass, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+
+    counter.lookupCount.incrementAndGet();
+    if (!found) {
+      counter.missCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return Snapshot of the bean times, sorted by the total time, the slowest beans go first.
+   */
+  @Nonnull
+  public List<BeanTimes> getBeanTimes() {
+    final List<BeanTimes> result = new ArrayList<BeanTimes>(beanTimes.values());
+    Collections.sort(result, new Comparator<BeanTimes>() {
+      @Override
+      public int compare(BeanTimes lhs, BeanTimes rhs) {
+        final long lhsTotal = lhs.getTotalNanos();
+        final long rhsTotal = rhs.getTotalNanos();
+        return lhsTotal > rhsTotal ? -1 : (lhsTotal == rhsTotal ? 0 : 1);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @param beanClass Bean class.
+   * @return Times of the beans of the given class, summed over all of its instances, or null, if no bean of
+   * this class has been initialized.
+   */
+  @Nullable
+  public BeanTimes getBeanTimes(@Nonnull Class<?> beanClass) {
+    return beanTimes.get(beanClass);
+  }
+
+  /**
+   * @param bean Bean instance.
+   * @return Times of the given bean, e.g. of one of the named beans, that share the class, or null, if this bean
+   * has not been initialized.
+   */
+  @Nullable
+  public BeanTimes getInstanceTimes(@Nonnull Object bean) {
+    return instanceTimes.get(new InstanceKey(bean, null));
+  }
+
+  /**
+   * @param beanClass Requested class.
+   * @return Number of the lookups of the given class.
+   */
+  public long getLookupCount(@Nonnull Class<?> beanClass) {
+    final LookupCounter counter = lookups.get(beanClass);
+    return counter != null ? counter.lookupCount.get() : 0L;
+  }
+
+  /**
+   * @param beanClass Requested class.
+   * @return Number of the lookups of the given class, that found no bean.
+   */
+  public long getMissCount(@Nonnull Class<?> beanClass) {
+    final LookupCounter counter = lookups.get(beanClass);
+    return counter != null ? counter.missCount.get() : 0L;
+  }
+
+  /**
+   * @return Classes, that have been requested at least once.
+   */
+  @Nonnull
+  public Set<Class<?>> getRequestedClasses() {
+    return Collections.unmodifiableSet(lookups.keySet());
+  }
+
+  //
+  // Private
+  //
+
+  private static final class LookupCounter {
+    final AtomicLong lookupCount = new AtomicLong();
+    final AtomicLong missCount = new AtomicLong();
+  }
+
+  // weak key, that compares the beans by identity, as the beans may override equals
+  private static final class InstanceKey extends WeakReference<Object> {
+    private final int hashCode;
+
+    InstanceKey(@Nonnull Object bean, @Nullable ReferenceQueue<Object> queue) {
+      super(bean, queue);
+      this.hashCode = System.identityHashCode(bean);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof InstanceKey)) {
+        return false;
+      }
+      final Object bean = get();
+      return bean != null && bean == ((InstanceKey) other).get();
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  @Nonnull
+  private BeanTimes getOrCreateInstanceTimes(@Nonnull Object bean) {
+    for (Object key = collectedInstances.poll(); key != null; key = collectedInstances.poll()) {
+      instanceTimes.remove(key);
+    }
+
+    BeanTimes times = instanceTimes.get(new InstanceKey(bean, null));
+    if (times == null) {
+      final BeanTimes newTimes = new BeanTimes(bean.getClass());
+      times = instanceTimes.putIfAbsent(new InstanceKey(bean, collectedInstances), newTimes);
+      if (times == null) {
+        times = newTimes;
+      }
+    }
+    return times;
+  }
+
+  @Nonnull
+  private BeanTimes getOrCreateBeanTimes(@Nonnull Class<?> beanClass) {
+    BeanTimes times = beanTimes.get(beanClass);
+    if (times == null) {
+      final BeanTimes newTimes = new BeanTimes(beanClass);
+      times = beanTimes.putIfAbsent(beanClass, newTimes);
+      if (times == null) {
+        times = newTimes;
+      }
+    }
+    return times;
+  }
+}
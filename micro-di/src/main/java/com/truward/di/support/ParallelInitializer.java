@@ -0,0 +1,246 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionException;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Eagerly initializes all the beans of the frozen context in topological order of the dependency graph.
+ * Each bean is submitted to the executor as soon as all of its dependencies are initialized,
+ * so that the beans, that don't depend on each other, are initialized in parallel.
+ * In the warm-up mode the initialized beans are warmed up in the same order instead.
+ * The beans, that are left over by the topological order because of the circular field dependencies,
+ * are initialized on the calling thread afterwards, if the context allows the circular references.
+ * The executor, that runs the submitted task on the submitting thread, e.g. the caller-runs one, does not nest
+ * the initialization of the dependents: the tasks, submitted from within the running task, are queued and run
+ * one after another by the outermost task, so that the stack depth does not grow with the dependency chain.
+ *
+ * @author Alexander Shabanov
+ */
+final class ParallelInitializer {
+  private final DefaultInjectionContext context;
+  private final DependencyGraph graph;
+  private final Executor executor;
+  private final boolean warmup;
+
+  private final AtomicInteger[] pendingDependencies;
+  private final AtomicInteger outstandingTasks = new AtomicInteger();
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  private final CountDownLatch completionLatch = new CountDownLatch(1);
+
+  /**
+   * Nodes, which tasks have been run re-entrantly by the executor, queued by the task running on the same thread.
+   */
+  private final ThreadLocal<Deque<Integer>> reentrantNodes = new ThreadLocal<Deque<Integer>>();
+
+  ParallelInitializer(@Nonnull DefaultInjectionContext context,
+                      @Nonnull DependencyGraph graph,
+                      @Nonnull Executor executor) {
+    this(context, graph, executor, false);
+  }
+
+  ParallelInitializer(@Nonnull DefaultInjectionContext context,
+                      @Nonnull DependencyGraph graph,
+                      @Nonnull Executor executor,
+                      boolean warmup) {
+    this.context = context;
+    this.graph = graph;
+    this.executor = executor;
+    this.warmup = warmup;
+    this.pendingDependencies = new AtomicInteger[graph.size()];
+  }
+
+  void initialize() {
+    final int size = graph.size();
+    if (size == 0) {
+      return;
+    }
+
+    final List<Integer> roots = new ArrayList<Integer>();
+    for (int i = 0; i < size; ++i) {
+      // already initialized beans are visited as well, so that they could schedule their dependents
+      final int pending = graph.getDependencies(i).length;
+      pendingDependencies[i] = new AtomicInteger(pending);
+      if (pending == 0) {
+        roots.add(i);
+      }
+    }
+
+    // count all the roots upfront, so that the completion is not signalled before all of them are submitted
+    outstandingTasks.set(roots.size() + 1);
+    for (final int root : roots) {
+      submit(root);
+    }
+    taskFinished();
+
+    try {
+      completionLatch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InjectionException("Interrupted while " + (warmup ? "warming up" : "initializing") + " beans", e);
+    }
+
+    final Throwable e = failure.get();
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e != null) {
+      throw new InjectionException("Error while " + (warmup ? "warming up" : "initializing") + " beans", e);
+    }
+
+    // the beans, that have not been submitted, are in the cycles or depend on them
+    final List<BeanHolder<?>> remainingHolders = new ArrayList<BeanHolder<?>>();
+    for (int i = 0; i < size; ++i) {
+      if (pendingDependencies[i].get() > 0) {
+        remainingHolders.add(graph.getBeanHolder(i));
+      }
+    }
+    if (remainingHolders.isEmpty()) {
+      return;
+    }
+
+    if (!warmup && !context.isCircularReferencesAllowed()) {
+      final List<Object> uninitializedBeans = getUninitializedBeans(remainingHolders);
+      if (!uninitializedBeans.isEmpty()) {
+        throw new InjectionException("Circular dependency between beans: " + uninitializedBeans);
+      }
+    }
+
+    // the serial initialization resolves the allowed cycles with the early references
+    for (final BeanHolder<?> beanHolder : remainingHolders) {
+      if (!beanHolder.initialized) {
+        context.initializeBean(beanHolder, beanHolder.bean.getClass());
+      }
+      beanHolder.awaitInitialization();
+      if (warmup) {
+        warmup(beanHolder);
+      }
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private void submit(final int node) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          runNode(node);
+        }
+      });
+    } catch (RuntimeException e) {
+      failure.compareAndSet(null, e);
+      taskFinished();
+    }
+  }
+
+  // runs the task of the given node along with the tasks, that the executor runs re-entrantly meanwhile
+  private void runNode(int node) {
+    final Deque<Integer> queuedNodes = reentrantNodes.get();
+    if (queuedNodes != null) {
+      queuedNodes.add(node); // the task of the outer node is running on this thread
+      return;
+    }
+
+    final Deque<Integer> nodes = new ArrayDeque<Integer>();
+    reentrantNodes.set(nodes);
+    try {
+      for (Integer next = node; next != null; next = nodes.poll()) {
+        initializeNode(next);
+      }
+    } finally {
+      reentrantNodes.remove();
+    }
+  }
+
+  private void initializeNode(int node) {
+    try {
+      if (failure.get() != null) {
+        return; // don't initialize the remaining beans if any of the beans has failed
+      }
+
+      final BeanHolder<?> beanHolder = graph.getBeanHolder(node);
+      if (!beanHolder.initialized) {
+        context.initializeBean(beanHolder, beanHolder.bean.getClass());
+      }
+      beanHolder.awaitInitialization(); // dependents should not start before asynchronous initialization completes
+      if (warmup) {
+        warmup(beanHolder);
+      }
+
+      // schedule dependents, that have no other pending dependencies
+      for (final int dependent : graph.getDependents(node)) {
+        if (pendingDependencies[dependent].decrementAndGet() == 0) {
+          outstandingTasks.incrementAndGet();
+          submit(dependent);
+        }
+      }
+    } catch (Throwable e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      taskFinished();
+    }
+  }
+
+  /**
+   * Invokes the warm-up methods of the initialized bean.
+   *
+   * @param beanHolder Initialized bean holder.
+   */
+  static void warmup(@Nonnull BeanHolder<?> beanHolder) {
+    final InjectionPlan plan = InjectionPlan.forClass(beanHolder.bean.getClass());
+    if (!plan.hasWarmupMethods()) {
+      return;
+    }
+
+    try {
+      plan.invokeWarmup(beanHolder.bean);
+    } catch (IllegalAccessException e) {
+      throw new InjectionException("Illegal access error when warming up bean " + beanHolder.bean, e);
+    } catch (InvocationTargetException e) {
+      throw new InjectionException("Exception while warming up bean " + beanHolder.bean, e.getTargetException());
+    }
+  }
+
+  private void taskFinished() {
+    if (outstandingTasks.decrementAndGet() == 0) {
+      completionLatch.countDown();
+    }
+  }
+
+  @Nonnull
+  private static List<Object> getUninitializedBeans(@Nonnull List<BeanHolder<?>> beanHolders) {
+    final List<Object> result = new ArrayList<Object>();
+    for (final BeanHolder<?> beanHolder : beanHolders) {
+      if (!beanHolder.initialized) {
+        result.add(beanHolder.bean);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionException;
+import com.truward.di.Pool;
+import com.truward.di.Provider;
+import com.truward.di.Scope;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Definition of the bean, that is not a singleton. Creates the beans of the given class on demand and keeps track
+ * of the thread-local and of the pooled beans, so that they are destroyed along with the context.
+ * The thread-local beans are tracked by the weak references to their threads, the beans of the terminated threads
+ * are destroyed, when the next thread-local bean is created, so that they do not pile up in the thread pools.
+ * Serves as the provider and as the invocation handler of the lazy proxies of the prototype and thread-local beans.
+ *
+ * @author Alexander Shabanov
+ */
+final class ScopedBean<T> implements Provider<T>, InvocationHandler {
+  final Class<T> beanClass;
+  final Scope scope;
+
+  private final DefaultInjectionContext context;
+  private final ThreadLocal<T> threadBeans;
+  private final StripedPool<T> pool;
+
+  /**
+   * Pooled beans, prototypes are not tracked.
+   */
+  private final Queue<Object> createdBeans = new ConcurrentLinkedQueue<Object>();
+
+  /**
+   * Thread-local beans along with their threads and the failures of destruction of the beans of the terminated
+   * threads, that are reported once the context is closed.
+   */
+  private final Queue<ThreadBean> threadBeanRefs = new ConcurrentLinkedQueue<ThreadBean>();
+  private final Queue<Throwable> sweepFailures = new ConcurrentLinkedQueue<Throwable>();
+
+  private static final class ThreadBean extends WeakReference<Thread> {
+    final Object bean;
+
+    ThreadBean(@Nonnull Thread thread, @Nonnull Object bean) {
+      super(thread);
+      this.bean = bean;
+    }
+
+    boolean isTerminated() {
+      final Thread thread = get();
+      return thread == null || !thread.isAlive();
+    }
+  }
+
+  ScopedBean(@Nonnull DefaultInjectionContext context, @Nonnull Class<T> beanClass, @Nonnull Scope scope) {
+    this.context = context;
+    this.beanClass = beanClass;
+    this.scope = scope;
+    this.threadBeans = scope.getKind() == Scope.Kind.THREAD ? new ThreadLocal<T>() : null;
+    this.pool = scope.getKind() == Scope.Kind.POOLED ? new StripedPool<T>(this, scope.getCapacity()) : null;
+  }
+
+  /**
+   * Gets new prototype bean or the bean of the current thread.
+   *
+   * @return Initialized bean.
+   */
+  @Nonnull
+  @Override
+  public T get() {
+    switch (scope.getKind()) {
+      case PROTOTYPE:
+        return context.createScopedBean(beanClass);
+      case THREAD:
+        T bean = threadBeans.get();
+        if (bean == null) {
+          sweepTerminatedThreads();
+          bean = context.createScopedBean(beanClass);
+          threadBeanRefs.add(new ThreadBean(Thread.currentThread(), bean));
+          threadBeans.set(bean);
+        }
+        return bean;
+      default:
+        throw new InjectionException("The bean of " + beanClass + " is pooled, it should be borrowed from the " +
+            "injected " + Pool.class.getName());
+    }
+  }
+
+  @Nonnull
+  Pool<T> getPool() {
+    if (pool == null) {
+      throw new InjectionException("The bean of " + beanClass + " has scope " + scope + " and can not be pooled");
+    }
+    return pool;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(get(), args);
+    } catch (InvocationTargetException e) {
+      throw e.getTargetException();
+    }
+  }
+
+  /**
+   * Creates proxy, that delegates each call to the bean returned by {@link #get()}.
+   *
+   * @param proxyType Interface implemented by the proxy.
+   * @return Proxy instance.
+   */
+  @Nonnull
+  Object createProxy(@Nonnull Class<?> proxyType) {
+    if (pool != null) {
+      throw new InjectionException("Lazy injection is not supported for pooled " + beanClass);
+    }
+    return Proxy.newProxyInstance(proxyType.getClassLoader(), new Class<?>[] { proxyType }, this);
+  }
+
+  @Nonnull
+  T createTrackedBean() {
+    final T bean = context.createScopedBean(beanClass);
+    createdBeans.add(bean);
+    return bean;
+  }
+
+  /**
+   * Destroys the thread-local and the pooled beans.
+   *
+   * @param failures Sink for the destruction failures.
+   */
+  void destroy(@Nonnull List<Throwable> failures) {
+    for (Throwable failure = sweepFailures.poll(); failure != null; failure = sweepFailures.poll()) {
+      failures.add(failure);
+    }
+    for (ThreadBean threadBean = threadBeanRefs.poll(); threadBean != null; threadBean = threadBeanRefs.poll()) {
+      createdBeans.add(threadBean.bean);
+    }
+
+    final InjectionPlan plan = InjectionPlan.forClass(beanClass);
+    if (!plan.hasDestroyMethods()) {
+      createdBeans.clear();
+      return;
+    }
+
+    for (Object bean = createdBeans.poll(); bean != null; bean = createdBeans.poll()) {
+      destroyBean(plan, bean, failures);
+    }
+  }
+
+  //
+  // Private
+  //
+
+  // destroys the thread-local beans of the terminated threads
+  private void sweepTerminatedThreads() {
+    final InjectionPlan plan = InjectionPlan.forClass(beanClass);
+    for (final ThreadBean threadBean : threadBeanRefs) {
+      if (threadBean.isTerminated() && threadBeanRefs.remove(threadBean) && plan.hasDestroyMethods()) {
+        destroyBean(plan, threadBean.bean, sweepFailures);
+      }
+    }
+  }
+
+  private static void destroyBean(@Nonnull InjectionPlan plan, @Nonnull Object bean,
+                                  @Nonnull Collection<Throwable> failures) {
+    try {
+      plan.invokeDestroy(bean);
+    } catch (IllegalAccessException e) {
+      failures.add(e);
+    } catch (InvocationTargetException e) {
+      failures.add(e.getTargetException());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ScopedBean{beanClass=" + beanClass + ", scope=" + scope + '}';
+  }
+}
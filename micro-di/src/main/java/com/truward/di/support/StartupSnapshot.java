@@ -0,0 +1,417 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.FreezeOptions;
+import com.truward.di.InjectionException;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+
+/**
+ * Persists the resolved wiring of the frozen context to the compact binary snapshot and restores the context
+ * from it on the next start of the application, similar to the class data sharing of the JVM.
+ * <p>
+ * The snapshot records the bean classes in the order of their registration, the constructors, the fields annotated
+ * with the Resource annotation, the lifecycle methods, the types each bean is assignable to and the order of
+ * initialization. The restored context looks up the recorded members directly instead of scanning the class
+ * hierarchies of the beans and takes the assignable types from the snapshot instead of walking the superclasses
+ * and the interfaces.
+ * </p>
+ * <p>
+ * The snapshot is bound to the hash of the classpath it has been written with, see {@link #getClasspathHash},
+ * so that the stale snapshot is ignored, e.g. after the new version of the application is deployed:
+ * </p>
+ * <pre>
+ * final long classpathHash = StartupSnapshot.getClasspathHash(classLoader);
+ * if (!snapshotFile.exists() || !StartupSnapshot.load(context, in, classpathHash, classLoader, options)) {
+ *   BeanIndexLoader.registerBeans(context, classLoader);
+ *   context.freeze(options);
+ *   StartupSnapshot.write(context, classpathHash, out);
+ * }
+ * </pre>
+ * <p>
+ * The beans, registered as instances, can not be recreated, so they are passed to {@link #load} in the order of
+ * their registration. The contexts with the scoped beans are not supported.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+public final class StartupSnapshot {
+  private static final int MAGIC = 0x4d444953; // "MDIS"
+  private static final int VERSION = 1;
+
+  private static final byte DEFAULT_CONSTRUCTOR = 0;
+  private static final byte SINGLE_CONSTRUCTOR = 1;
+  private static final byte MULTIPLE_CONSTRUCTORS = 2;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Primitive types, that might be the parameters of the constructors of the bean instances.
+   */
+  private static final Map<String, Class<?>> PRIMITIVE_TYPES = new HashMap<String, Class<?>>();
+
+  static {
+    for (final Class<?> type : new Class<?>[] { boolean.class, byte.class, char.class, short.class, int.class,
+        long.class, float.class, double.class }) {
+      PRIMITIVE_TYPES.put(type.getName(), type);
+    }
+  }
+
+  private StartupSnapshot() {
+  }
+
+  /**
+   * Computes the hash of the classpath, visible to the given class loader: the paths of its entries along with
+   * their sizes and modification times. The directory entries, e.g. the build output or the exploded deployment,
+   * are walked, so that the hash covers the sizes and the modification times of all the nested files.
+   *
+   * @param classLoader Class loader of the application.
+   * @return Classpath hash.
+   */
+  public static long getClasspathHash(@Nonnull ClassLoader classLoader) {
+    final Set<File> entries = new LinkedHashSet<File>();
+    for (ClassLoader loader = classLoader; loader != null; loader = loader.getParent()) {
+      if (loader instanceof URLClassLoader) {
+        for (final URL url : ((URLClassLoader) loader).getURLs()) {
+          if ("file".equals(url.getProtocol())) {
+            try {
+              entries.add(new File(url.toURI()));
+            } catch (URISyntaxException e) {
+              entries.add(new File(url.getPath()));
+            }
+          }
+        }
+      }
+    }
+    final String classPath = System.getProperty("java.class.path", "");
+    for (final String path : classPath.split(File.pathSeparator)) {
+      if (!path.isEmpty()) {
+        entries.add(new File(path).getAbsoluteFile());
+      }
+    }
+
+    long hash = FNV_OFFSET_BASIS;
+    for (final File entry : entries) {
+      hash = hash(hash, entry.getPath());
+      hash = hash(hash, entry.length());
+      hash = hash(hash, entry.lastModified());
+      if (entry.isDirectory()) {
+        hash = hashDirectory(hash, entry, "");
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Writes the snapshot of the given context.
+   *
+   * @param context Frozen context, that is not a child one.
+   * @param classpathHash Hash of the current classpath.
+   * @param out Output stream, it is not closed by this method.
+   * @throws IOException On write error.
+   * @throws InjectionException If any bean dependency can not be resolved or if the dependencies are circular.
+   */
+  public static void write(@Nonnull DefaultInjectionContext context, long classpathHash,
+                           @Nonnull OutputStream out) throws IOException {
+    final WiringPlan plan = context.getWiringPlan();
+
+    // types of each bean in the order of the type index
+    final List<List<Class<?>>> beanTypes = new ArrayList<List<Class<?>>>(plan.size());
+    for (int id = 0; id < plan.size(); ++id) {
+      beanTypes.add(new ArrayList<Class<?>>());
+    }
+    for (final Map.Entry<Class<?>, int[]> entry : plan.getAssignableBeans().entrySet()) {
+      for (final int id : entry.getValue()) {
+        beanTypes.get(id).add(entry.getKey());
+      }
+    }
+
+    // the body refers to the classes by their indexes in the class table, that precedes it
+    final Map<Class<?>, Integer> classTable = new LinkedHashMap<Class<?>, Integer>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final DataOutputStream bodyOutput = new DataOutputStream(body);
+    bodyOutput.writeInt(plan.size());
+    for (int id = 0; id < plan.size(); ++id) {
+      final WiringPlan.BeanWiring bean = plan.getBean(id);
+      final InjectionPlan beanPlan = InjectionPlan.forClass(bean.beanClass);
+      writeClass(bodyOutput, classTable, bean.beanClass);
+      bodyOutput.writeBoolean(bean.name != null);
+      if (bean.name != null) {
+        bodyOutput.writeUTF(bean.name);
+      }
+      bodyOutput.writeBoolean(bean.constructed);
+
+      final Constructor<?> constructor = beanPlan.getConstructor();
+      if (beanPlan.hasMultipleConstructors()) {
+        bodyOutput.writeByte(MULTIPLE_CONSTRUCTORS);
+      } else if (constructor != null) {
+        bodyOutput.writeByte(SINGLE_CONSTRUCTOR);
+        writeClasses(bodyOutput, classTable, Arrays.asList(constructor.getParameterTypes()));
+      } else {
+        bodyOutput.writeByte(DEFAULT_CONSTRUCTOR);
+      }
+
+      bodyOutput.writeInt(beanPlan.getFieldCount());
+      for (int i = 0; i < beanPlan.getFieldCount(); ++i) {
+        final Field field = beanPlan.getFieldTarget(i);
+        writeClass(bodyOutput, classTable, field.getDeclaringClass());
+        bodyOutput.writeUTF(field.getName());
+      }
+      writeMethods(bodyOutput, bean.postConstructMethods);
+      writeMethods(bodyOutput, bean.destroyMethods);
+      writeMethods(bodyOutput, bean.warmupMethods);
+      writeClasses(bodyOutput, classTable, beanTypes.get(id));
+    }
+
+    final int[] initializationOrder = plan.getInitializationOrder();
+    bodyOutput.writeInt(initializationOrder.length);
+    for (final int id : initializationOrder) {
+      bodyOutput.writeInt(id);
+    }
+    bodyOutput.flush();
+
+    final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    output.writeLong(classpathHash);
+    output.writeInt(classTable.size());
+    for (final Class<?> type : classTable.keySet()) {
+      output.writeUTF(type.getName());
+    }
+    body.writeTo(output);
+    output.flush();
+  }
+
+  /**
+   * Registers the beans, recorded in the snapshot, in the given context and freezes it.
+   *
+   * @param context Empty context, that is not frozen.
+   * @param in Input stream of the snapshot, it is not closed by this method.
+   * @param classpathHash Hash of the current classpath.
+   * @param classLoader Class loader, used to load the bean classes.
+   * @param options Options to freeze the context with, the eager initialization follows the recorded order.
+   * @param instances Beans, that have been registered as instances, in the order of their registration.
+   * @return True, if the context has been restored, false if the snapshot has been written by the other version
+   * or with the other classpath, in this case the context is left intact.
+   * @throws IOException On read error.
+   * @throws InjectionException If the snapshot is malformed, if the given instances do not match the recorded
+   * ones or if the beans can not be registered.
+   */
+  public static boolean load(@Nonnull DefaultInjectionContext context, @Nonnull InputStream in, long classpathHash,
+                             @Nonnull ClassLoader classLoader, @Nonnull FreezeOptions options,
+                             @Nonnull Object... instances) throws IOException {
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+    if (input.readInt() != MAGIC) {
+      throw new InjectionException("Malformed startup snapshot");
+    }
+    if (input.readInt() != VERSION || input.readLong() != classpathHash) {
+      return false;
+    }
+
+    final Class<?>[] classTable = new Class<?>[input.readInt()];
+    for (int i = 0; i < classTable.length; ++i) {
+      classTable[i] = loadClass(input.readUTF(), classLoader);
+    }
+
+    final int beanCount = input.readInt();
+    int instanceIndex = 0;
+    for (int id = 0; id < beanCount; ++id) {
+      final Class<?> beanClass = readClass(input, classTable);
+      final String name = input.readBoolean() ? input.readUTF() : null;
+      final boolean constructed = input.readBoolean();
+      restorePlan(input, beanClass, classTable);
+      final Class<?>[] assignableTypes = readClasses(input, classTable);
+
+      if (constructed) {
+        context.registerIndexedBean(beanClass, assignableTypes);
+        continue;
+      }
+
+      if (instanceIndex >= instances.length || instances[instanceIndex].getClass() != beanClass) {
+        throw new InjectionException("Expected bean instance of " + beanClass + " at position " + instanceIndex);
+      }
+      context.registerIndexedBean(name, instances[instanceIndex++], assignableTypes);
+    }
+    if (instanceIndex != instances.length) {
+      throw new InjectionException("Expected " + instanceIndex + " bean instances, got " + instances.length);
+    }
+
+    final int[] initializationOrder = new int[input.readInt()];
+    for (int i = 0; i < initializationOrder.length; ++i) {
+      initializationOrder[i] = input.readInt();
+    }
+
+    context.freeze();
+    if (options.isEager() && options.getExecutor() == null) {
+      context.initializeBeans(initializationOrder);
+    }
+    context.freeze(options);
+    return true;
+  }
+
+  //
+  // Private
+  //
+
+  // hashes the relative paths, the sizes and the modification times of the files in the given directory
+  private static long hashDirectory(long hash, @Nonnull File directory, @Nonnull String prefix) {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return hash;
+    }
+
+    Arrays.sort(files); // the order of the listed files is not specified
+    for (final File file : files) {
+      final String path = prefix + file.getName();
+      if (file.isDirectory()) {
+        hash = hashDirectory(hash, file, path + '/');
+      } else {
+        hash = hash(hash, path);
+        hash = hash(hash, file.length());
+        hash = hash(hash, file.lastModified());
+      }
+    }
+    return hash;
+  }
+
+  private static long hash(long hash, @Nonnull String value) {
+    for (int i = 0; i < value.length(); ++i) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private static long hash(long hash, long value) {
+    for (int i = 0; i < 8; ++i) {
+      hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+      value >>>= 8;
+    }
+    return hash;
+  }
+
+  private static void writeClass(@Nonnull DataOutput output, @Nonnull Map<Class<?>, Integer> classTable,
+                                 @Nonnull Class<?> type) throws IOException {
+    Integer index = classTable.get(type);
+    if (index == null) {
+      index = classTable.size();
+      classTable.put(type, index);
+    }
+    output.writeInt(index);
+  }
+
+  private static void writeClasses(@Nonnull DataOutput output, @Nonnull Map<Class<?>, Integer> classTable,
+                                   @Nonnull List<Class<?>> types) throws IOException {
+    output.writeInt(types.size());
+    for (final Class<?> type : types) {
+      writeClass(output, classTable, type);
+    }
+  }
+
+  // lifecycle methods are public and take no parameters, so that the names identify them
+  private static void writeMethods(@Nonnull DataOutput output, @Nonnull Method[] methods) throws IOException {
+    output.writeInt(methods.length);
+    for (final Method method : methods) {
+      output.writeUTF(method.getName());
+    }
+  }
+
+  @Nonnull
+  private static Class<?> readClass(@Nonnull DataInput input, @Nonnull Class<?>[] classTable) throws IOException {
+    final int index = input.readInt();
+    if (index < 0 || index >= classTable.length) {
+      throw new InjectionException("Malformed startup snapshot, unknown class " + index);
+    }
+    return classTable[index];
+  }
+
+  @Nonnull
+  private static Class<?>[] readClasses(@Nonnull DataInput input, @Nonnull Class<?>[] classTable) throws IOException {
+    final Class<?>[] result = new Class<?>[input.readInt()];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = readClass(input, classTable);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static Method[] readMethods(@Nonnull DataInput input, @Nonnull Class<?> beanClass) throws IOException {
+    final Method[] result = new Method[input.readInt()];
+    for (int i = 0; i < result.length; ++i) {
+      final String name = input.readUTF();
+      try {
+        result[i] = beanClass.getMethod(name);
+      } catch (NoSuchMethodException e) {
+        throw new InjectionException("Startup snapshot does not match " + beanClass + ", no method " + name, e);
+      }
+    }
+    return result;
+  }
+
+  // restores the injection plan of the bean class from the recorded members
+  private static void restorePlan(@Nonnull DataInput input, @Nonnull Class<?> beanClass,
+                                  @Nonnull Class<?>[] classTable) throws IOException {
+    final byte constructorKind = input.readByte();
+    Constructor<?> constructor = null;
+    if (constructorKind == SINGLE_CONSTRUCTOR) {
+      final Class<?>[] parameterTypes = readClasses(input, classTable);
+      try {
+        constructor = beanClass.getConstructor(parameterTypes);
+      } catch (NoSuchMethodException e) {
+        throw new InjectionException("Startup snapshot does not match constructor of " + beanClass, e);
+      }
+    }
+
+    final Field[] fields = new Field[input.readInt()];
+    for (int i = 0; i < fields.length; ++i) {
+      final Class<?> declaringClass = readClass(input, classTable);
+      final String name = input.readUTF();
+      try {
+        fields[i] = declaringClass.getDeclaredField(name);
+      } catch (NoSuchFieldException e) {
+        throw new InjectionException("Startup snapshot does not match " + declaringClass + ", no field " + name, e);
+      }
+    }
+
+    final Method[] postConstructMethods = readMethods(input, beanClass);
+    final Method[] destroyMethods = readMethods(input, beanClass);
+    final Method[] warmupMethods = readMethods(input, beanClass);
+    InjectionPlan.restore(beanClass, fields, constructor, constructorKind == MULTIPLE_CONSTRUCTORS,
+        postConstructMethods, destroyMethods, warmupMethods);
+  }
+
+  @Nonnull
+  private static Class<?> loadClass(@Nonnull String className, @Nonnull ClassLoader classLoader) {
+    final Class<?> primitiveType = PRIMITIVE_TYPES.get(className);
+    if (primitiveType != null) {
+      return primitiveType;
+    }
+
+    try {
+      return Class.forName(className, false, classLoader);
+    } catch (ClassNotFoundException e) {
+      throw new InjectionException("Unable to load class " + className + " recorded in the startup snapshot", e);
+    }
+  }
+}
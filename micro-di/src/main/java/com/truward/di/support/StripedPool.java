@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionException;
+import com.truward.di.Pool;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded pool, which idle beans are kept in the slots, split into the stripes.
+ * Each thread starts looking for the idle bean or for the empty slot in its own stripe, so that the threads,
+ * that borrow and release the beans at the same time, rarely touch the same slots. The stripes are padded,
+ * so that the slots of the different stripes do not share the cache lines.
+ * The pool creates the beans on demand and takes the lock only when it is exhausted.
+ * <p>
+ * Each created bean is a member of the pool with the fixed index, the slots keep the indexes of the idle members
+ * and the pool tracks, which members are borrowed, so that the bean, that is released twice or that has not been
+ * borrowed from this pool, is rejected rather than lent to two borrowers at once.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+final class StripedPool<T> implements Pool<T> {
+  /**
+   * Slots per cache line, assuming 64 byte lines and 4 byte compressed references.
+   */
+  private static final int CACHE_LINE_SLOTS = 16;
+
+  private final ScopedBean<T> scopedBean;
+  private final int capacity;
+  private final int stripeMask;
+  private final int stripeSize;
+  private final int stripeStride;
+
+  /**
+   * Indexes of the idle members plus one, zero marks the empty slot.
+   */
+  private final AtomicIntegerArray slots;
+
+  /**
+   * Created beans by their member indexes and the flags of the borrowed members.
+   */
+  private final AtomicReferenceArray<T> members;
+  private final AtomicIntegerArray borrowed;
+  private final AtomicInteger createdCount = new AtomicInteger();
+
+  private final Object waitLock = new Object();
+  private volatile int waiterCount;
+
+  StripedPool(@Nonnull ScopedBean<T> scopedBean, int capacity) {
+    this.scopedBean = scopedBean;
+    this.capacity = capacity;
+
+    int stripeCount = 1;
+    final int maxStripeCount = Math.min(capacity, Runtime.getRuntime().availableProcessors());
+    while (stripeCount * 2 <= maxStripeCount) {
+      stripeCount *= 2;
+    }
+    this.stripeMask = stripeCount - 1;
+    this.stripeSize = (capacity + stripeCount - 1) / stripeCount;
+    this.stripeStride = stripeCount == 1 ? stripeSize :
+        (stripeSize + CACHE_LINE_SLOTS - 1) / CACHE_LINE_SLOTS * CACHE_LINE_SLOTS;
+    this.slots = new AtomicIntegerArray(stripeStride * stripeCount);
+    this.members = new AtomicReferenceArray<T>(capacity);
+    this.borrowed = new AtomicIntegerArray(capacity);
+  }
+
+  @Nonnull
+  @Override
+  public T borrow() {
+    final T bean = borrow(-1L);
+    assert bean != null;
+    return bean;
+  }
+
+  @Nullable
+  @Override
+  public T borrow(long timeout, @Nonnull TimeUnit unit) {
+    return borrow(Math.max(0L, unit.toNanos(timeout)));
+  }
+
+  @Override
+  public void release(@Nonnull T bean) {
+    final int member = getMemberIndex(bean);
+    if (member < 0) {
+      throw new IllegalArgumentException("The bean " + bean + " does not belong to the pool of " +
+          scopedBean.beanClass);
+    }
+    if (!borrowed.compareAndSet(member, 1, 0)) {
+      throw new IllegalStateException("The bean " + bean + " is not borrowed from the pool of " +
+          scopedBean.beanClass + ", it might have been released twice");
+    }
+
+    final int home = getHomeStripe();
+    for (int i = 0; i <= stripeMask; ++i) {
+      final int start = ((home + i) & stripeMask) * stripeStride;
+      for (int slot = start; slot < start + stripeSize; ++slot) {
+        if (slots.get(slot) == 0 && slots.compareAndSet(slot, 0, member + 1)) {
+          notifyWaiter();
+          return;
+        }
+      }
+    }
+
+    // there is a slot for each created bean
+    throw new IllegalStateException("The pool of " + scopedBean.beanClass + " has no slot for the bean " + bean);
+  }
+
+  @Override
+  public String toString() {
+    return "StripedPool{beanClass=" + scopedBean.beanClass + ", capacity=" + capacity +
+        ", created=" + createdCount.get() + '}';
+  }
+
+  //
+  // Private
+  //
+
+  // waits indefinitely if the timeout is negative
+  @Nullable
+  private T borrow(long timeoutNanos) {
+    T bean = pollOrCreate();
+    if (bean != null) {
+      return bean;
+    }
+
+    // all the beans are borrowed
+    final long deadline = System.nanoTime() + timeoutNanos;
+    synchronized (waitLock) {
+      ++waiterCount;
+      try {
+        for (;;) {
+          // poll after the waiter is counted, so that the bean, released in the meantime, is either found here
+          // or the releasing thread notifies this one
+          bean = pollOrCreate();
+          if (bean != null) {
+            return bean;
+          }
+
+          if (timeoutNanos < 0) {
+            waitLock.wait();
+            continue;
+          }
+
+          final long remainingNanos = deadline - System.nanoTime();
+          if (remainingNanos <= 0) {
+            return null;
+          }
+          TimeUnit.NANOSECONDS.timedWait(waitLock, remainingNanos);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InjectionException("Interrupted while waiting for the pooled bean of " + scopedBean.beanClass, e);
+      } finally {
+        --waiterCount;
+      }
+    }
+  }
+
+  @Nullable
+  private T pollOrCreate() {
+    final int home = getHomeStripe();
+    for (int i = 0; i <= stripeMask; ++i) {
+      final int start = ((home + i) & stripeMask) * stripeStride;
+      for (int slot = start; slot < start + stripeSize; ++slot) {
+        final int idle = slots.get(slot);
+        if (idle != 0 && slots.compareAndSet(slot, idle, 0)) {
+          return lend(idle - 1);
+        }
+      }
+    }
+
+    for (int count = createdCount.get(); count < capacity; count = createdCount.get()) {
+      if (createdCount.compareAndSet(count, count + 1)) {
+        T bean = null;
+        try {
+          bean = scopedBean.createTrackedBean();
+        } finally {
+          if (bean == null) {
+            // the failed creation releases its count, so the waiter, that has found the pool exhausted, may create
+            // the bean instead
+            createdCount.decrementAndGet();
+            notifyWaiter();
+          }
+        }
+
+        // there is a free member index for each created bean, as the failed creations release their counts
+        for (int member = 0;; ++member) {
+          if (members.get(member) == null && members.compareAndSet(member, null, bean)) {
+            return lend(member);
+          }
+        }
+      }
+    }
+
+    return null;
+  }
+
+  private void notifyWaiter() {
+    if (waiterCount > 0) {
+      synchronized (waitLock) {
+        waitLock.notify();
+      }
+    }
+  }
+
+  @Nonnull
+  private T lend(int member) {
+    borrowed.set(member, 1);
+    return members.get(member);
+  }
+
+  // returns -1 if the given bean has not been created by this pool, the capacity of the pool is expected to be small
+  private int getMemberIndex(@Nonnull T bean) {
+    for (int member = 0; member < capacity; ++member) {
+      if (members.get(member) == bean) {
+        return member;
+      }
+    }
+    return -1;
+  }
+
+  private int getHomeStripe() {
+    // thread ids are sequential, so that the threads, that are started together, use the different stripes
+    return (int) Thread.currentThread().getId() & stripeMask;
+  }
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.Order;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Index, that maps every class, superclass and interface of the registered beans to the beans assignable to it.
+ * <p>
+ * Each bean is identified by the dense int id, i.e. by its position in the list of the bean holders,
+ * and each entry keeps the sorted array of the ids of the beans assignable to the indexed type, so that
+ * each lookup is a single hash probe and the ambiguity check is a comparison of the entry size:
+ * </p>
+ * <ul>
+ *   <li>absent type - no entry,</li>
+ *   <li>unique type - entry with exactly one bean,</li>
+ *   <li>ambiguous type - entry with several beans.</li>
+ * </ul>
+ * <p>
+ * The index is maintained incrementally as the beans are registered and compacted once, when the context
+ * gets frozen: the ids of each entry are then sorted according to the {@link Order} annotation of the bean classes
+ * and then in the order of their registration, and the index is never modified afterwards.
+ * The compaction moves the bean holders to the array and the entries and the names to the open-addressing tables,
+ * the types are compared by identity, and releases the growable collections, that are needed only for registration.
+ * </p>
+ * <p>
+ * The names of the named beans are kept in the separate hash index, that is frozen along with the type index.
+ * </p>
+ * <p>
+ * The compacted index is replaced as a whole, when the bean is replaced: see {@link #replace(BeanHolder)}.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+final class TypeIndex {
+  private static final int[] NO_IDS = new int[0];
+
+  /**
+   * Beans assignable to a certain type.
+   */
+  static final class Entry {
+    private int[] beanIds = NO_IDS;
+    private int size;
+
+    /**
+     * Memoized collections of the beans, set on the first request to the compacted index.
+     */
+    volatile Memo memo;
+
+    /**
+     * @return Number of the beans assignable to the indexed type.
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * @param position Position of the bean within this entry.
+     * @return Id of the bean.
+     */
+    int getBeanId(int position) {
+      if (position >= size) {
+        throw new IndexOutOfBoundsException("position=" + position);
+      }
+      return beanIds[position];
+    }
+
+    private void add(int beanId) {
+      if (size == beanIds.length) {
+        beanIds = Arrays.copyOf(beanIds, size == 0 ? 1 : size * 2);
+      }
+      beanIds[size++] = beanId;
+    }
+
+    private long estimateFootprint() {
+      final Memo memo = this.memo;
+      long footprint = Footprint.shallowSize(Entry.class) + Footprint.array(beanIds.length, 4);
+      if (memo == null) {
+        return footprint;
+      }
+
+      // memoized collections are the unmodifiable views of the array list, the linked hash set and map
+      final List<?> beans = memo.beans;
+      final Set<?> beanSet = memo.beanSet;
+      final Map<String, ?> beanMap = memo.beanMap;
+      footprint += Footprint.shallowSize(Memo.class);
+      if (beans != null && !beans.isEmpty()) {
+        footprint += Footprint.shallowSize(beans.getClass()) + Footprint.shallowSize(ArrayList.class) +
+            Footprint.array(beans.size(), Footprint.REFERENCE);
+      }
+      if (beanSet != null && !beanSet.isEmpty()) {
+        footprint += Footprint.shallowSize(beanSet.getClass()) + Footprint.linkedHashSet(beanSet.size());
+      }
+      if (beanMap != null && !beanMap.isEmpty()) {
+        footprint += Footprint.shallowSize(beanMap.getClass()) + Footprint.linkedHashMap(beanMap.size());
+      }
+      return footprint;
+    }
+  }
+
+  /**
+   * Immutable collections of the initialized beans of the certain type, that are visible through the context,
+   * i.e. the beans of the context followed by the beans of its parent, if any. The collections are injected to
+   * the collection fields and returned by the lookups, they are valid as long as the version of the parent
+   * context remains the same.
+   */
+  static final class Memo {
+    final int parentVersion;
+    volatile List<?> beans;
+    volatile Set<?> beanSet;
+    volatile Map<String, ?> beanMap;
+
+    Memo(int parentVersion) {
+      this.parentVersion = parentVersion;
+    }
+  }
+
+  /**
+   * Registration-time structures: the bean holders by their ids, the entries and the ids of the named beans,
+   * released once the index is compacted.
+   */
+  private List<BeanHolder<?>> beanHolders;
+  private Map<Class<?>, Entry> entries;
+  private Map<String, Integer> namedBeanIds;
+  private Set<Class<?>> typeSink = new HashSet<Class<?>>();
+
+  /**
+   * Orders of the beans by their ids, {@link Integer#MAX_VALUE} for the beans without {@link Order} annotation.
+   * Discarded once the index is compacted.
+   */
+  private int[] beanOrders = NO_IDS;
+  private boolean ordered;
+
+  /**
+   * Compacted structures: the bean holders by their ids, the open-addressing table of the entries, which types are
+   * compared by identity, and the open-addressing table of the ids of the named beans, or null until the index is
+   * compacted.
+   */
+  private BeanHolder<?>[] holderArray;
+  private Class<?>[] tableTypes;
+  private Entry[] tableEntries;
+  private String[] tableNames;
+  private int[] tableNameIds;
+
+  /**
+   * Number of the replacements, that have led to this index.
+   */
+  private final int version;
+
+  TypeIndex() {
+    this.beanHolders = new ArrayList<BeanHolder<?>>();
+    this.entries = new HashMap<Class<?>, Entry>();
+    this.namedBeanIds = new HashMap<String, Integer>();
+    this.version = 0;
+  }
+
+  private TypeIndex(@Nonnull BeanHolder<?>[] holderArray, @Nonnull Map<Class<?>, Entry> typeEntries,
+                    @Nonnull String[] tableNames, @Nonnull int[] tableNameIds, int version) {
+    this.holderArray = holderArray;
+    setTypeTable(typeEntries);
+    this.tableNames = tableNames;
+    this.tableNameIds = tableNameIds;
+    this.typeSink = null;
+    this.version = version;
+  }
+
+  /**
+   * @return Number of the indexed beans, the id of the next bean.
+   */
+  int size() {
+    return holderArray != null ? holderArray.length : beanHolders.size();
+  }
+
+  /**
+   * @return Version of this index, that grows with each replacement.
+   */
+  int getVersion() {
+    return version;
+  }
+
+  /**
+   * @return Bean holders, the position of each holder in this list is its id.
+   */
+  @Nonnull
+  List<BeanHolder<?>> getBeanHolders() {
+    return Collections.unmodifiableList(holderArray != null ? Arrays.asList(holderArray) : beanHolders);
+  }
+
+  /**
+   * @param type Requested type.
+   * @return Entry with the ids of the beans assignable to the given type or null if there is no such bean.
+   */
+  @Nullable
+  Entry get(@Nonnull Class<?> type) {
+    final Class<?>[] types = tableTypes;
+    if (types == null) {
+      return entries.get(type);
+    }
+
+    final int mask = types.length - 1;
+    for (int i = hash(System.identityHashCode(type)) & mask;; i = (i + 1) & mask) {
+      final Class<?> tableType = types[i];
+      if (tableType == type) {
+        return tableEntries[i];
+      }
+      if (tableType == null) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * @return All the indexed types.
+   */
+  @Nonnull
+  Set<Class<?>> getTypes() {
+    if (tableTypes == null) {
+      return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    final Set<Class<?>> types = new HashSet<Class<?>>();
+    for (final Class<?> type : tableTypes) {
+      if (type != null) {
+        types.add(type);
+      }
+    }
+    return Collections.unmodifiableSet(types);
+  }
+
+  @Nonnull
+  BeanHolder<?> getBeanHolder(@Nonnull Entry entry, int position) {
+    final int beanId = entry.getBeanId(position);
+    return holderArray != null ? holderArray[beanId] : beanHolders.get(beanId);
+  }
+
+  /**
+   * @param name Bean name.
+   * @return Holder of the bean with the given name or null if there is no such bean.
+   */
+  @Nullable
+  BeanHolder<?> getBeanHolder(@Nonnull String name) {
+    final String[] names = tableNames;
+    if (names == null) {
+      final Integer beanId = namedBeanIds.get(name);
+      return beanId != null ? beanHolders.get(beanId) : null;
+    }
+
+    final int mask = names.length - 1;
+    for (int i = hash(name.hashCode()) & mask;; i = (i + 1) & mask) {
+      final String tableName = names[i];
+      if (tableName == null) {
+        return null;
+      }
+      if (tableName.equals(name)) {
+        return holderArray[tableNameIds[i]];
+      }
+    }
+  }
+
+  /**
+   * Appends the bean holder, which id should be equal to the {@link #size()} of this index, and indexes it.
+   * The name of the bean, if any, should not be used by the other beans.
+   *
+   * @param beanHolder Bean holder.
+   */
+  void add(@Nonnull BeanHolder<?> beanHolder) {
+    if (holderArray != null) {
+      throw new IllegalStateException("Compacted index can not be modified");
+    }
+
+    final int beanId = beanHolder.id;
+    final Class<?> beanClass = beanHolder.bean.getClass();
+    beanHolders.add(beanHolder);
+    if (beanHolder.name != null) {
+      namedBeanIds.put(beanHolder.name, beanId);
+    }
+
+    if (beanId == beanOrders.length) {
+      beanOrders = Arrays.copyOf(beanOrders, Math.max(8, beanId * 2));
+    }
+    final Order order = beanClass.getAnnotation(Order.class);
+    beanOrders[beanId] = order != null ? order.value() : Integer.MAX_VALUE;
+    ordered = ordered || order != null;
+
+    typeSink.clear();
+    addTypesToSink(typeSink, beanHolder);
+
+    for (final Class<?> type : typeSink) {
+      Entry entry = entries.get(type);
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(type, entry);
+      }
+      entry.add(beanId); // ids are growing, so that the entry remains sorted
+    }
+  }
+
+  /**
+   * Orders the beans of each entry, trims the entries and moves them to the compacted structures,
+   * the index should not be modified afterwards.
+   * The assignable types of the bean holders are released as well, as the index is no longer built from them.
+   */
+  void compact() {
+    if (holderArray != null) {
+      return;
+    }
+
+    for (final Entry entry : entries.values()) {
+      if (ordered && entry.size > 1) {
+        sortByOrder(entry);
+      }
+      if (entry.beanIds.length != entry.size) {
+        entry.beanIds = Arrays.copyOf(entry.beanIds, entry.size);
+      }
+    }
+
+    holderArray = beanHolders.toArray(new BeanHolder<?>[beanHolders.size()]);
+    for (final BeanHolder<?> beanHolder : holderArray) {
+      beanHolder.assignableTypes = null;
+    }
+    setTypeTable(entries);
+    setNameTable(namedBeanIds);
+
+    beanHolders = null;
+    entries = null;
+    namedBeanIds = null;
+    typeSink = null;
+    beanOrders = NO_IDS;
+  }
+
+  /**
+   * Creates the copy of this compacted index, in which the bean with the id of the given holder is replaced by it.
+   * Only the entries of the types of the replaced and of the replacing beans are copied, the other entries and
+   * the name table are shared with this index. This index is not modified, so that the readers, which are still
+   * using it, observe the consistent state.
+   *
+   * @param beanHolder Holder of the replacing bean, that has the name and the id of the replaced one.
+   * @return New index.
+   */
+  @Nonnull
+  TypeIndex replace(@Nonnull BeanHolder<?> beanHolder) {
+    if (holderArray == null) {
+      throw new IllegalStateException("Only compacted index can be replaced");
+    }
+
+    final int beanId = beanHolder.id;
+    final BeanHolder<?>[] newHolderArray = holderArray.clone();
+    final BeanHolder<?> replacedHolder = newHolderArray[beanId];
+    newHolderArray[beanId] = beanHolder;
+
+    final Set<Class<?>> newTypes = new HashSet<Class<?>>();
+    addTypesToSink(newTypes, beanHolder);
+    final Set<Class<?>> affectedTypes = new HashSet<Class<?>>(newTypes);
+    addTypesToSink(affectedTypes, replacedHolder);
+
+    final Map<Class<?>, Entry> newEntries = new HashMap<Class<?>, Entry>();
+    for (int i = 0; i < tableTypes.length; ++i) {
+      if (tableTypes[i] != null) {
+        newEntries.put(tableTypes[i], tableEntries[i]);
+      }
+    }
+
+    for (final Class<?> type : affectedTypes) {
+      final Entry entry = get(type);
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (int i = 0; entry != null && i < entry.size; ++i) {
+        if (entry.beanIds[i] != beanId) {
+          ids.add(entry.beanIds[i]);
+        }
+      }
+      if (newTypes.contains(type)) {
+        ids.add(beanId);
+      }
+      if (ids.isEmpty()) {
+        newEntries.remove(type);
+        continue;
+      }
+
+      // the order of the compacted entry: by the order annotation and then in the order of registration
+      Collections.sort(ids, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer lhs, Integer rhs) {
+          final int lhsOrder = getOrder(newHolderArray[lhs]);
+          final int rhsOrder = getOrder(newHolderArray[rhs]);
+          return lhsOrder != rhsOrder ? (lhsOrder < rhsOrder ? -1 : 1) : lhs.compareTo(rhs);
+        }
+      });
+      final Entry newEntry = new Entry();
+      newEntry.beanIds = new int[ids.size()];
+      for (final Integer id : ids) {
+        newEntry.add(id);
+      }
+      newEntries.put(type, newEntry);
+    }
+
+    return new TypeIndex(newHolderArray, newEntries, tableNames, tableNameIds, version + 1);
+  }
+
+  /**
+   * Estimates the number of bytes retained by this index, not including the beans themselves.
+   * The entries, that are shared with the other versions of the index, are included.
+   *
+   * @return Approximate size in bytes.
+   */
+  long estimateFootprint() {
+    long footprint = Footprint.shallowSize(TypeIndex.class);
+    final List<BeanHolder<?>> holders = getBeanHolders();
+    for (final BeanHolder<?> beanHolder : holders) {
+      footprint += Footprint.shallowSize(BeanHolder.class);
+      if (beanHolder.assignableTypes != null) {
+        footprint += Footprint.array(beanHolder.assignableTypes.length, Footprint.REFERENCE);
+      }
+    }
+
+    if (holderArray != null) {
+      footprint += Footprint.array(holderArray.length, Footprint.REFERENCE) +
+          2 * Footprint.array(tableTypes.length, Footprint.REFERENCE) +
+          Footprint.array(tableNames.length, Footprint.REFERENCE) + Footprint.array(tableNameIds.length, 4);
+      for (final Entry entry : tableEntries) {
+        footprint += entry != null ? entry.estimateFootprint() : 0L;
+      }
+      return footprint;
+    }
+
+    // the bean ids of the named beans are boxed
+    footprint += Footprint.shallowSize(ArrayList.class) + Footprint.array(beanHolders.size(), Footprint.REFERENCE) +
+        Footprint.hashMap(entries.size()) + Footprint.hashMap(namedBeanIds.size()) +
+        namedBeanIds.size() * Footprint.shallowSize(Integer.class) + Footprint.hashSet(typeSink.size()) +
+        Footprint.array(beanOrders.length, 4);
+    for (final Entry entry : entries.values()) {
+      footprint += entry.estimateFootprint();
+    }
+    return footprint;
+  }
+
+  //
+  // Private
+  //
+
+  // spreads the higher bits of the hash code, as the tables are indexed by the lower bits
+  private static int hash(int hashCode) {
+    final int h = hashCode * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  // capacity of the open-addressing table, that keeps its load factor at most 1/2
+  private static int getTableCapacity(int size) {
+    int capacity = 2;
+    while (capacity < size * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private void setTypeTable(@Nonnull Map<Class<?>, Entry> typeEntries) {
+    final int capacity = getTableCapacity(typeEntries.size());
+    final Class<?>[] types = new Class<?>[capacity];
+    final Entry[] values = new Entry[capacity];
+    for (final Map.Entry<Class<?>, Entry> typeEntry : typeEntries.entrySet()) {
+      int i = hash(System.identityHashCode(typeEntry.getKey())) & (capacity - 1);
+      while (types[i] != null) {
+        i = (i + 1) & (capacity - 1);
+      }
+      types[i] = typeEntry.getKey();
+      values[i] = typeEntry.getValue();
+    }
+
+    tableTypes = types;
+    tableEntries = values;
+  }
+
+  private void setNameTable(@Nonnull Map<String, Integer> nameIds) {
+    final int capacity = getTableCapacity(nameIds.size());
+    final String[] names = new String[capacity];
+    final int[] ids = new int[capacity];
+    for (final Map.Entry<String, Integer> nameId : nameIds.entrySet()) {
+      int i = hash(nameId.getKey().hashCode()) & (capacity - 1);
+      while (names[i] != null) {
+        i = (i + 1) & (capacity - 1);
+      }
+      names[i] = nameId.getKey();
+      ids[i] = nameId.getValue();
+    }
+
+    tableNames = names;
+    tableNameIds = ids;
+  }
+
+  private void sortByOrder(@Nonnull Entry entry) {
+    final Integer[] ids = new Integer[entry.size];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = entry.beanIds[i];
+    }
+
+    // stable, so that the registration order is retained
+    Arrays.sort(ids, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        final int lhsOrder = beanOrders[lhs];
+        final int rhsOrder = beanOrders[rhs];
+        return lhsOrder < rhsOrder ? -1 : (lhsOrder == rhsOrder ? 0 : 1);
+      }
+    });
+
+    for (int i = 0; i < ids.length; ++i) {
+      entry.beanIds[i] = ids[i];
+    }
+  }
+
+  private static int getOrder(@Nonnull BeanHolder<?> beanHolder) {
+    final Order order = beanHolder.bean.getClass().getAnnotation(Order.class);
+    return order != null ? order.value() : Integer.MAX_VALUE;
+  }
+
+  private static void addTypesToSink(@Nonnull Set<Class<?>> typeSink, @Nonnull BeanHolder<?> beanHolder) {
+    final Class<?>[] assignableTypes = beanHolder.assignableTypes;
+    if (assignableTypes != null) {
+      Collections.addAll(typeSink, assignableTypes); // known from the bean index
+    } else {
+      addTypesToSink(typeSink, beanHolder.bean.getClass());
+    }
+  }
+
+  // collects the given class, all of its superclasses and all the implemented interfaces
+  private static void addTypesToSink(@Nonnull Set<Class<?>> typeSink, @Nonnull Class<?> targetClass) {
+    if (!typeSink.add(targetClass)) {
+      return; // already visited
+    }
+
+    final Class<?> superclass = targetClass.getSuperclass();
+    if (superclass != null) {
+      addTypesToSink(typeSink, superclass);
+    }
+
+    for (final Class<?> interfaceClass : targetClass.getInterfaces()) {
+      addTypesToSink(typeSink, interfaceClass);
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.InjectionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Resolved wiring of the beans of the frozen context: how each bean is created, which beans are injected
+ * to its constructor parameters and fields, which methods are invoked once it is injected and when it is destroyed,
+ * and the order, in which the beans are initialized.
+ * Unlike {@link InjectionPlan}, that describes a single bean class, the wiring plan has every injection point
+ * resolved to the ids of the beans, so that the wiring can be reproduced without any lookups.
+ *
+ * @author Alexander Shabanov
+ */
+final class WiringPlan {
+  private static final int[] NO_IDS = new int[0];
+  private static final Reference[] NO_REFERENCES = new Reference[0];
+
+  /**
+   * Resolved value of the constructor parameter or of the field.
+   */
+  static final class Reference {
+    @Nonnull
+    final InjectionPoint.Kind kind;
+
+    /**
+     * Requested type, for the collections - type of the collection elements.
+     */
+    @Nonnull
+    final Class<?> beanType;
+
+    @Nullable
+    final String beanName;
+
+    /**
+     * The injected bean, all the beans of the collection or none for the context itself and for the deferred beans.
+     */
+    @Nonnull
+    final int[] beanIds;
+
+    Reference(@Nonnull InjectionPoint.Kind kind, @Nonnull Class<?> beanType, @Nullable String beanName,
+              @Nonnull int[] beanIds) {
+      this.kind = kind;
+      this.beanType = beanType;
+      this.beanName = beanName;
+      this.beanIds = beanIds;
+    }
+
+    /**
+     * @return True, if the context itself is injected.
+     */
+    boolean isContext() {
+      return kind == InjectionPoint.Kind.BEAN && beanIds.length == 0;
+    }
+  }
+
+  /**
+   * Wiring of a single bean.
+   */
+  static final class BeanWiring {
+    final int id;
+    @Nonnull
+    final Class<?> beanClass;
+    @Nullable
+    final String name;
+
+    /**
+     * True, if the bean has been created by the context, false if it has been registered as an instance.
+     */
+    final boolean constructed;
+
+    /**
+     * Constructor, that creates the bean, or null if the default constructor is used.
+     */
+    @Nullable
+    final Constructor<?> constructor;
+    @Nonnull
+    final Reference[] constructorArguments;
+    @Nonnull
+    final Field[] fields;
+    @Nonnull
+    final Reference[] fieldValues;
+    @Nonnull
+    final Method[] postConstructMethods;
+    @Nonnull
+    final Method[] destroyMethods;
+    @Nonnull
+    final Method[] warmupMethods;
+
+    BeanWiring(int id, @Nonnull Class<?> beanClass, @Nullable String name, boolean constructed,
+               @Nullable Constructor<?> constructor, @Nonnull Reference[] constructorArguments,
+               @Nonnull Field[] fields, @Nonnull Reference[] fieldValues,
+               @Nonnull Method[] postConstructMethods, @Nonnull Method[] destroyMethods,
+               @Nonnull Method[] warmupMethods) {
+      this.id = id;
+      this.beanClass = beanClass;
+      this.name = name;
+      this.constructed = constructed;
+      this.constructor = constructor;
+      this.constructorArguments = constructorArguments;
+      this.fields = fields;
+      this.fieldValues = fieldValues;
+      this.postConstructMethods = postConstructMethods;
+      this.destroyMethods = destroyMethods;
+      this.warmupMethods = warmupMethods;
+    }
+  }
+
+  private final BeanWiring[] beans;
+  private final int[] initializationOrder;
+  private final Map<Class<?>, int[]> assignableBeans;
+
+  private WiringPlan(@Nonnull BeanWiring[] beans, @Nonnull int[] initializationOrder,
+                     @Nonnull Map<Class<?>, int[]> assignableBeans) {
+    this.beans = beans;
+    this.initializationOrder = initializationOrder;
+    this.assignableBeans = assignableBeans;
+  }
+
+  int size() {
+    return beans.length;
+  }
+
+  @Nonnull
+  BeanWiring getBean(int id) {
+    return beans[id];
+  }
+
+  /**
+   * @return Ids of the beans in the order of their initialization, each bean goes after all of its dependencies.
+   */
+  @Nonnull
+  int[] getInitializationOrder() {
+    return initializationOrder.clone();
+  }
+
+  /**
+   * @return Every indexed type, ordered by name, mapped to the ids of the beans assignable to it,
+   * in the order of {@link InjectionContext#getBeans(Class)}.
+   */
+  @Nonnull
+  Map<Class<?>, int[]> getAssignableBeans() {
+    return Collections.unmodifiableMap(assignableBeans);
+  }
+
+  /**
+   * Resolves the wiring of the frozen context.
+   *
+   * @param beanHolders Bean holders of the context.
+   * @param typeIndex Compacted type index of the context.
+   * @param constructedBeanIds Ids of the beans, that have been created by the context.
+   * @return New plan.
+   * @throws InjectionException If any injection point can not be resolved to the unique bean or if there is
+   * a circular dependency between the beans.
+   */
+  @Nonnull
+  static WiringPlan build(@Nonnull List<BeanHolder<?>> beanHolders, @Nonnull TypeIndex typeIndex,
+                          @Nonnull BitSet constructedBeanIds) {
+    final BeanWiring[] beans = new BeanWiring[beanHolders.size()];
+    for (int id = 0; id < beans.length; ++id) {
+      final BeanHolder<?> beanHolder = beanHolders.get(id);
+      final InjectionPlan plan = InjectionPlan.forClass(beanHolder.bean.getClass());
+      final boolean constructed = constructedBeanIds.get(id);
+
+      Reference[] constructorArguments = NO_REFERENCES;
+      if (constructed) {
+        final InjectionPoint[] parameters = plan.getConstructorParameters();
+        constructorArguments = new Reference[parameters.length];
+        for (int i = 0; i < parameters.length; ++i) {
+          constructorArguments[i] = resolve(parameters[i], id, typeIndex);
+        }
+      }
+
+      final Field[] fields = new Field[plan.getFieldCount()];
+      final Reference[] fieldValues = new Reference[fields.length];
+      for (int i = 0; i < fields.length; ++i) {
+        fields[i] = plan.getFieldTarget(i);
+        fieldValues[i] = resolve(plan.getField(i), id, typeIndex);
+      }
+
+      beans[id] = new BeanWiring(id, plan.getBeanClass(), beanHolder.name, constructed,
+          constructed ? plan.getConstructor() : null, constructorArguments, fields, fieldValues,
+          plan.getPostConstructMethods(), plan.getDestroyMethods(), plan.getWarmupMethods());
+    }
+
+    final DependencyGraph graph = DependencyGraph.build(beanHolders, typeIndex, constructedBeanIds);
+    final int[] initializationOrder = graph.getTopologicalOrder();
+    if (initializationOrder.length < beans.length) {
+      throw new InjectionException("Circular dependency between beans: " + getCyclicBeans(beans, initializationOrder));
+    }
+
+    // types are ordered, so that the plans of the same context are identical
+    final List<Class<?>> types = new ArrayList<Class<?>>(typeIndex.getTypes());
+    Collections.sort(types, new Comparator<Class<?>>() {
+      @Override
+      public int compare(Class<?> lhs, Class<?> rhs) {
+        return lhs.getName().compareTo(rhs.getName());
+      }
+    });
+    final Map<Class<?>, int[]> assignableBeans = new LinkedHashMap<Class<?>, int[]>(types.size() * 2);
+    for (final Class<?> type : types) {
+      assignableBeans.put(type, getBeanIds(typeIndex.get(type)));
+    }
+
+    return new WiringPlan(beans, initializationOrder, assignableBeans);
+  }
+
+  //
+  // Private
+  //
+
+  @Nonnull
+  private static Reference resolve(@Nonnull InjectionPoint injectionPoint, int beanId, @Nonnull TypeIndex typeIndex) {
+    final Class<?> beanType = injectionPoint.beanType;
+    if (injectionPoint.kind == InjectionPoint.Kind.POOL) {
+      throw new InjectionException("The requested pool of " + beanType + " has not been found");
+    }
+    if (!injectionPoint.isEager()) {
+      // providers and lazy proxies are resolved on demand
+      return new Reference(injectionPoint.kind, beanType, injectionPoint.beanName, NO_IDS);
+    }
+
+    if (injectionPoint.isCollection()) {
+      final int[] beanIds = getBeanIds(typeIndex.get(beanType));
+      for (final int id : beanIds) {
+        if (id == beanId) {
+          throw new InjectionException("Circular dependency between beans: bean of " + beanType +
+              " is injected to the collection of its own type");
+        }
+      }
+      return new Reference(injectionPoint.kind, beanType, null, beanIds);
+    }
+
+    if (injectionPoint.beanName != null) {
+      final BeanHolder<?> beanHolder = typeIndex.getBeanHolder(injectionPoint.beanName);
+      if (beanHolder == null || !beanType.isInstance(beanHolder.bean)) {
+        throw new InjectionException("The requested bean named " + injectionPoint.beanName + " of class " +
+            beanType + " has not been found");
+      }
+      return new Reference(injectionPoint.kind, beanType, injectionPoint.beanName, new int[] { beanHolder.id });
+    }
+
+    if (beanType.equals(InjectionContext.class)) {
+      return new Reference(injectionPoint.kind, beanType, null, NO_IDS);
+    }
+
+    final TypeIndex.Entry entry = typeIndex.get(beanType);
+    if (entry == null) {
+      throw new InjectionException("The requested bean of class " + beanType + " has not been found");
+    }
+    if (entry.size() > 1) {
+      throw new InjectionException("Ambigous definition for class " + beanType + " conflicting definitions are: " +
+          typeIndex.getBeanHolder(entry, 1).bean + " and " + typeIndex.getBeanHolder(entry, 0).bean);
+    }
+    return new Reference(injectionPoint.kind, beanType, null, new int[] { entry.getBeanId(0) });
+  }
+
+  @Nonnull
+  private static int[] getBeanIds(@Nullable TypeIndex.Entry entry) {
+    if (entry == null) {
+      return NO_IDS;
+    }
+
+    final int[] result = new int[entry.size()];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = entry.getBeanId(i);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static List<String> getCyclicBeans(@Nonnull BeanWiring[] beans, @Nonnull int[] initializationOrder) {
+    final boolean[] ordered = new boolean[beans.length];
+    for (final int id : initializationOrder) {
+      ordered[id] = true;
+    }
+
+    final List<String> result = new ArrayList<String>();
+    for (int id = 0; id < beans.length; ++id) {
+      if (!ordered[id]) {
+        result.add(beans[id].beanClass.getName());
+      }
+    }
+    return result;
+  }
+}
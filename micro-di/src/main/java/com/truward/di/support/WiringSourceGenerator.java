@@ -0,0 +1,664 @@
+/*
+ * Copyright 2012 Alexander Shabanov - http://alexshabanov.com.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.truward.di.support;
+
+import com.truward.di.InjectionContext;
+import com.truward.di.InjectionException;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * Generates the source of the class, that reproduces the wiring of the frozen context with plain Java code:
+ * the beans are created with {@code new}, their fields are assigned and their post-construct methods are invoked
+ * in the order of their dependencies. The beans are exposed through the generated {@link InjectionContext},
+ * that resolves them by switching over the hash codes of the requested class names and bean names.
+ * The generated class neither scans the class hierarchies nor uses reflection, except for the lazy proxies,
+ * so it starts instantly and needs no reflection configuration for the ahead-of-time compilers,
+ * such as GraalVM native-image.
+ * <p>
+ * The generated code accesses the bean classes, their constructors, injected fields and lifecycle methods
+ * directly, so they should be accessible from the package of the generated class, e.g. the injected fields
+ * should not be private. The beans, registered as instances, can not be recreated, so they are passed to the
+ * generated {@code create} method in the order of their registration.
+ * </p>
+ * <p>
+ * The generator can also run at build time, from the build step, that registers the beans with
+ * {@link BeanIndexLoader}, freezes the context and writes the source to the generated sources directory.
+ * </p>
+ *
+ * @author Alexander Shabanov
+ */
+public final class WiringSourceGenerator {
+  /**
+   * Maximum number of the statements in a single generated method, keeps the methods well below the size limit.
+   */
+  private static final int GROUP_SIZE = 256;
+
+  private final WiringPlan plan;
+  private final String packageName;
+  private final String simpleName;
+  private final StringBuilder code = new StringBuilder();
+  private final Set<String> errors = new LinkedHashSet<String>();
+
+  private WiringSourceGenerator(@Nonnull WiringPlan plan, @Nonnull String className) {
+    this.plan = plan;
+    final int dot = className.lastIndexOf('.');
+    this.packageName = dot > 0 ? className.substring(0, dot) : "";
+    this.simpleName = className.substring(dot + 1);
+  }
+
+  /**
+   * Generates the wiring class for the given context.
+   * The generated class has a single public method {@code static InjectionContext create(Object... instances)},
+   * that creates and initializes all the beans and returns the frozen context.
+   *
+   * @param context Frozen context, that is not a child context.
+   * @param className Fully qualified name of the generated class.
+   * @param out Sink for the generated source.
+   * @throws IOException On write error.
+   * @throws InjectionException If the wiring can not be resolved or can not be expressed with the generated code,
+   * the message lists all the members, that are not accessible from the generated class.
+   */
+  public static void generate(@Nonnull DefaultInjectionContext context, @Nonnull String className,
+                              @Nonnull Appendable out) throws IOException {
+    final WiringSourceGenerator generator = new WiringSourceGenerator(context.getWiringPlan(), className);
+    generator.writeClass();
+    if (!generator.errors.isEmpty()) {
+      throw new InjectionException("Unable to generate wiring " + className + ": " + generator.errors);
+    }
+    out.append(generator.code);
+  }
+
+  //
+  // Private
+  //
+
+  private void writeClass() {
+    final int[] initializationOrder = plan.getInitializationOrder();
+    final int[] instanceIndexes = new int[plan.size()];
+    final List<String> instanceClasses = new ArrayList<String>();
+    for (int id = 0; id < plan.size(); ++id) {
+      if (!plan.getBean(id).constructed) {
+        instanceIndexes[id] = instanceClasses.size();
+        instanceClasses.add(plan.getBean(id).beanClass.getName());
+      }
+    }
+
+    if (!packageName.isEmpty()) {
+      line("package " + packageName + ";");
+      line("");
+    }
+    line("/**");
+    line(" * Wiring of " + plan.size() + " beans, generated by " + WiringSourceGenerator.class.getName() + ".");
+    line(" */");
+    line("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+    line("public final class " + simpleName + " {");
+    line("  private static final int BEAN_COUNT = " + plan.size() + ";");
+    line("  private static final int INSTANCE_COUNT = " + instanceClasses.size() + ";");
+    line("  private static final int[] NO_BEANS = new int[0];");
+    line("");
+    line("  private " + simpleName + "() {");
+    line("  }");
+    line("");
+    line("  /**");
+    line("   * Creates and initializes all the beans.");
+    line("   *");
+    line("   * @param instances Beans, registered as instances, in the order of their registration: " +
+        (instanceClasses.isEmpty() ? "none" : escapeComment(instanceClasses.toString())) + ".");
+    line("   * @return Frozen context.");
+    line("   */");
+    line("  public static com.truward.di.InjectionContext create(Object... instances) {");
+    line("    if (instances.length != INSTANCE_COUNT) {");
+    line("      throw new IllegalArgumentException(\"Expected \" + INSTANCE_COUNT + \" bean instances, got \" + " +
+        "instances.length);");
+    line("    }");
+    line("");
+    line("    final Context context = new Context();");
+    line("    try {");
+    for (int group = 0; group * GROUP_SIZE < initializationOrder.length; ++group) {
+      line("      wireGroup" + group + "(context, instances);");
+    }
+    line("    } catch (RuntimeException e) {");
+    line("      throw e;");
+    line("    } catch (Exception e) {");
+    line("      throw new com.truward.di.InjectionException(\"Unable to wire beans\", e);");
+    line("    }");
+    line("    return context;");
+    line("  }");
+
+    // wiring in the order of initialization
+    for (int group = 0; group * GROUP_SIZE < initializationOrder.length; ++group) {
+      line("");
+      line("  private static void wireGroup" + group + "(Context context, Object[] instances) throws Exception {");
+      for (int i = group * GROUP_SIZE; i < Math.min(initializationOrder.length, (group + 1) * GROUP_SIZE); ++i) {
+        line("    wire" + initializationOrder[i] + "(context, instances);");
+      }
+      line("  }");
+    }
+    for (final int id : initializationOrder) {
+      writeWireMethod(plan.getBean(id), instanceIndexes[id]);
+    }
+
+    // destruction in the reverse order of initialization
+    final List<Integer> destroyOrder = new ArrayList<Integer>();
+    for (int i = initializationOrder.length - 1; i >= 0; --i) {
+      if (plan.getBean(initializationOrder[i]).destroyMethods.length > 0) {
+        destroyOrder.add(initializationOrder[i]);
+      }
+    }
+    for (int group = 0; group * GROUP_SIZE < destroyOrder.size(); ++group) {
+      line("");
+      line("  private static void destroyGroup" + group + "(Context context, java.util.List<Throwable> failures) {");
+      for (int i = group * GROUP_SIZE; i < Math.min(destroyOrder.size(), (group + 1) * GROUP_SIZE); ++i) {
+        line("    try {");
+        line("      destroy" + destroyOrder.get(i) + "(context);");
+        line("    } catch (Throwable e) {");
+        line("      failures.add(e);");
+        line("    }");
+      }
+      line("  }");
+    }
+    for (final int id : destroyOrder) {
+      writeDestroyMethod(plan.getBean(id));
+    }
+
+    // warm-up in the order of initialization
+    final List<Integer> warmupOrder = new ArrayList<Integer>();
+    for (final int id : initializationOrder) {
+      if (plan.getBean(id).warmupMethods.length > 0) {
+        warmupOrder.add(id);
+      }
+    }
+    for (int group = 0; group * GROUP_SIZE < warmupOrder.size(); ++group) {
+      line("");
+      line("  private static void warmupGroup" + group + "(Context context) throws Exception {");
+      for (int i = group * GROUP_SIZE; i < Math.min(warmupOrder.size(), (group + 1) * GROUP_SIZE); ++i) {
+        line("    warmup" + warmupOrder.get(i) + "(context);");
+      }
+      line("  }");
+    }
+    for (final int id : warmupOrder) {
+      writeWarmupMethod(plan.getBean(id));
+    }
+
+    // lookups
+    final Map<String, String> typeBeans = new LinkedHashMap<String, String>();
+    for (final Map.Entry<Class<?>, int[]> entry : plan.getAssignableBeans().entrySet()) {
+      typeBeans.put(entry.getKey().getName(), "new int[] " + Arrays.toString(entry.getValue())
+          .replace('[', '{').replace(']', '}'));
+    }
+    writeLookup("int[]", "typeBeans", "typeName", typeBeans, "NO_BEANS");
+
+    final Map<String, String> namedBeans = new LinkedHashMap<String, String>();
+    for (int id = 0; id < plan.size(); ++id) {
+      if (plan.getBean(id).name != null) {
+        namedBeans.put(plan.getBean(id).name, Integer.toString(id));
+      }
+    }
+    writeLookup("int", "namedBean", "name", namedBeans, "-1");
+
+    writeContext((destroyOrder.size() + GROUP_SIZE - 1) / GROUP_SIZE,
+        (warmupOrder.size() + GROUP_SIZE - 1) / GROUP_SIZE);
+    line("}");
+  }
+
+  private void writeWireMethod(@Nonnull WiringPlan.BeanWiring bean, int instanceIndex) {
+    final String beanType = getTypeName(bean.beanClass, bean.beanClass);
+    line("");
+    line("  // " + escapeComment(bean.beanClass.getName()));
+    line("  private static void wire" + bean.id + "(Context context, Object[] instances) throws Exception {");
+    if (!bean.constructed) {
+      line("    final " + beanType + " bean = (" + beanType + ") instances[" + instanceIndex + "];");
+    } else {
+      checkConstructor(bean);
+      final StringBuilder arguments = new StringBuilder();
+      final Class<?>[] parameterTypes = bean.constructor != null ? bean.constructor.getParameterTypes() :
+          new Class<?>[0];
+      for (int i = 0; i < parameterTypes.length; ++i) {
+        arguments.append(i > 0 ? ", " : "").append(getValue(bean.constructorArguments[i], parameterTypes[i],
+            bean.constructor));
+      }
+      line("    final " + beanType + " bean = new " + beanType + "(" + arguments + ");");
+    }
+
+    for (int i = 0; i < bean.fields.length; ++i) {
+      final Field field = bean.fields[i];
+      if (!isAccessible(field) || Modifier.isFinal(field.getModifiers())) {
+        errors.add("field " + field);
+      }
+      line("    bean." + field.getName() + " = " + getValue(bean.fieldValues[i], field.getType(), field) + ";");
+    }
+
+    for (final Method method : bean.postConstructMethods) {
+      // asynchronous initialization is awaited before the dependent beans are wired
+      line("    bean." + method.getName() + "()" +
+          (Future.class.isAssignableFrom(method.getReturnType()) ? ".get()" : "") + ";");
+    }
+    line("    context.publish(" + bean.id + ", " + quote(bean.name != null ? bean.name : bean.beanClass.getName()) +
+        ", bean);");
+    line("  }");
+  }
+
+  private void writeDestroyMethod(@Nonnull WiringPlan.BeanWiring bean) {
+    final String beanType = getTypeName(bean.beanClass, bean.beanClass);
+    line("");
+    line("  private static void destroy" + bean.id + "(Context context) throws Exception {");
+    line("    final " + beanType + " bean = (" + beanType + ") context.bean(" + bean.id + ");");
+    for (final Method method : bean.destroyMethods) {
+      line("    bean." + method.getName() + "();");
+    }
+    line("  }");
+  }
+
+  private void writeWarmupMethod(@Nonnull WiringPlan.BeanWiring bean) {
+    final String beanType = getTypeName(bean.beanClass, bean.beanClass);
+    line("");
+    line("  private static void warmup" + bean.id + "(Context context) throws Exception {");
+    line("    final " + beanType + " bean = (" + beanType + ") context.bean(" + bean.id + ");");
+    for (final Method method : bean.warmupMethods) {
+      line("    bean." + method.getName() + "();");
+    }
+    line("  }");
+  }
+
+  // lookup by the hash code, that is split into the groups, so that each generated method remains small
+  private void writeLookup(@Nonnull String resultType, @Nonnull String methodName, @Nonnull String keyName,
+                           @Nonnull Map<String, String> values, @Nonnull String defaultValue) {
+    final int groupCount = Math.max(1, (values.size() + GROUP_SIZE - 1) / GROUP_SIZE);
+    final List<SortedMap<Integer, List<String>>> groups = new ArrayList<SortedMap<Integer, List<String>>>();
+    for (int i = 0; i < groupCount; ++i) {
+      groups.add(new TreeMap<Integer, List<String>>());
+    }
+    for (final String key : values.keySet()) {
+      final SortedMap<Integer, List<String>> group = groups.get((key.hashCode() & 0x7fffffff) % groupCount);
+      List<String> keys = group.get(key.hashCode());
+      if (keys == null) {
+        keys = new ArrayList<String>(1);
+        group.put(key.hashCode(), keys);
+      }
+      keys.add(key);
+    }
+
+    line("");
+    line("  private static " + resultType + " " + methodName + "(String " + keyName + ") {");
+    line("    switch ((" + keyName + ".hashCode() & 0x7fffffff) % " + groupCount + ") {");
+    for (int i = 0; i < groupCount; ++i) {
+      line("      case " + i + ":");
+      line("        return " + methodName + i + "(" + keyName + ");");
+    }
+    line("      default:");
+    line("        return " + defaultValue + ";");
+    line("    }");
+    line("  }");
+
+    for (int i = 0; i < groupCount; ++i) {
+      line("");
+      line("  private static " + resultType + " " + methodName + i + "(String " + keyName + ") {");
+      line("    switch (" + keyName + ".hashCode()) {");
+      for (final Map.Entry<Integer, List<String>> entry : groups.get(i).entrySet()) {
+        line("      case " + entry.getKey() + ":");
+        for (final String key : entry.getValue()) {
+          line("        if (" + keyName + ".equals(" + quote(key) + ")) {");
+          line("          return " + values.get(key) + ";");
+          line("        }");
+        }
+        line("        break;");
+      }
+      line("    }");
+      line("    return " + defaultValue + ";");
+      line("  }");
+    }
+  }
+
+  private void writeContext(int destroyGroupCount, int warmupGroupCount) {
+    line("");
+    line("  private static final class Context implements com.truward.di.InjectionContext {");
+    line("    private final Object[] beans = new Object[BEAN_COUNT];");
+    line("    private final String[] names = new String[BEAN_COUNT];");
+    line("    private final java.util.concurrent.ConcurrentMap<String, java.util.List> lists =");
+    line("        new java.util.concurrent.ConcurrentHashMap<String, java.util.List>();");
+    line("    private volatile boolean closed;");
+    line("    private boolean warmedUp;");
+    line("");
+    line("    Object bean(int id) {");
+    line("      final Object bean = beans[id];");
+    line("      if (bean == null) {");
+    line("        throw new com.truward.di.InjectionException(\"Bean \" + id + \" is requested before it is wired\");");
+    line("      }");
+    line("      return bean;");
+    line("    }");
+    line("");
+    line("    void publish(int id, String name, Object bean) {");
+    line("      names[id] = name;");
+    line("      beans[id] = bean;");
+    line("    }");
+    line("");
+    line("    java.util.List list(String typeName) {");
+    line("      java.util.List result = lists.get(typeName);");
+    line("      if (result == null) {");
+    line("        final int[] ids = typeBeans(typeName);");
+    line("        final Object[] elements = new Object[ids.length];");
+    line("        for (int i = 0; i < ids.length; ++i) {");
+    line("          elements[i] = bean(ids[i]);");
+    line("        }");
+    line("        result = java.util.Collections.unmodifiableList(java.util.Arrays.asList(elements));");
+    line("        lists.put(typeName, result);");
+    line("      }");
+    line("      return result;");
+    line("    }");
+    line("");
+    line("    java.util.Set set(String typeName) {");
+    line("      return java.util.Collections.unmodifiableSet(new java.util.LinkedHashSet(list(typeName)));");
+    line("    }");
+    line("");
+    line("    java.util.Map map(String typeName) {");
+    line("      final java.util.Map result = new java.util.LinkedHashMap();");
+    line("      for (final int id : typeBeans(typeName)) {");
+    line("        if (!result.containsKey(names[id])) {");
+    line("          result.put(names[id], bean(id));");
+    line("        }");
+    line("      }");
+    line("      return java.util.Collections.unmodifiableMap(result);");
+    line("    }");
+    line("");
+    line("    com.truward.di.Provider provider(final Class type, final String name) {");
+    line("      return new com.truward.di.Provider() {");
+    line("        public Object get() {");
+    line("          return name != null ? getBean(name, type) : getBean(type);");
+    line("        }");
+    line("      };");
+    line("    }");
+    line("");
+    line("    Object proxy(Class type, String name) {");
+    line("      final com.truward.di.Provider provider = provider(type, name);");
+    line("      return java.lang.reflect.Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type },");
+    line("          new java.lang.reflect.InvocationHandler() {");
+    line("            public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args)");
+    line("                throws Throwable {");
+    line("              try {");
+    line("                return method.invoke(provider.get(), args);");
+    line("              } catch (java.lang.reflect.InvocationTargetException e) {");
+    line("                throw e.getTargetException();");
+    line("              }");
+    line("            }");
+    line("          });");
+    line("    }");
+    line("");
+    line("    public <T> void registerBean(T bean) {");
+    line("      shouldNotBeClosed();");
+    line("      throw modificationError();");
+    line("    }");
+    line("");
+    line("    public <T> void registerBean(Class<T> beanClass) {");
+    line("      shouldNotBeClosed();");
+    line("      throw modificationError();");
+    line("    }");
+    line("");
+    line("    public <T> void registerBean(String name, T bean) {");
+    line("      shouldNotBeClosed();");
+    line("      throw modificationError();");
+    line("    }");
+    line("");
+    line("    public <T> void registerBean(Class<T> beanClass, com.truward.di.Scope scope) {");
+    line("      shouldNotBeClosed();");
+    line("      throw modificationError();");
+    line("    }");
+    line("");
+    line("    public void registerBeans(Iterable<?> beans) {");
+    line("      shouldNotBeClosed();");
+    line("      throw modificationError();");
+    line("    }");
+    line("");
+    line("    public void registerBeanClasses(Iterable<Class<?>> beanClasses) {");
+    line("      shouldNotBeClosed();");
+    line("      throw modificationError();");
+    line("    }");
+    line("");
+    line("    public <T> T getBean(Class<T> beanClass) {");
+    line("      shouldNotBeClosed();");
+    line("      if (beanClass == com.truward.di.InjectionContext.class) {");
+    line("        return beanClass.cast(this);");
+    line("      }");
+    line("");
+    line("      final java.util.List candidates = list(beanClass.getName());");
+    line("      if (candidates.isEmpty()) {");
+    line("        throw new com.truward.di.InjectionException(\"The requested bean of class \" + beanClass +");
+    line("            \" has not been found\");");
+    line("      }");
+    line("      if (candidates.size() > 1) {");
+    line("        throw new com.truward.di.InjectionException(\"Ambigous definition for class \" + beanClass +");
+    line("            \" conflicting definitions are: \" + candidates.get(1) + \" and \" + candidates.get(0));");
+    line("      }");
+    line("      return beanClass.cast(candidates.get(0));");
+    line("    }");
+    line("");
+    line("    public <T> T getBean(String name, Class<T> beanClass) {");
+    line("      shouldNotBeClosed();");
+    line("      final int id = namedBean(name);");
+    line("      if (id < 0) {");
+    line("        throw new com.truward.di.InjectionException(\"The requested bean named \" + name +");
+    line("            \" has not been found\");");
+    line("      }");
+    line("      final Object bean = bean(id);");
+    line("      if (!beanClass.isInstance(bean)) {");
+    line("        throw new com.truward.di.InjectionException(\"The bean named \" + name + \" is not an instance of \" +");
+    line("            beanClass + \", bean: \" + bean);");
+    line("      }");
+    line("      return beanClass.cast(bean);");
+    line("    }");
+    line("");
+    line("    public <T> java.util.List<T> getBeans(Class<T> beanClass) {");
+    line("      shouldNotBeClosed();");
+    line("      return list(beanClass.getName());");
+    line("    }");
+    line("");
+    line("    public void freeze() {");
+    line("      shouldNotBeClosed();");
+    line("    }");
+    line("");
+    line("    public void freeze(java.util.concurrent.Executor executor) {");
+    line("      shouldNotBeClosed();");
+    line("    }");
+    line("");
+    line("    public synchronized void freeze(com.truward.di.FreezeOptions options) {");
+    line("      shouldNotBeClosed();");
+    line("      if (!options.isWarmup() || warmedUp) {");
+    line("        return;");
+    line("      }");
+    line("");
+    line("      warmedUp = true;");
+    if (warmupGroupCount > 0) {
+      line("      try {");
+      for (int group = 0; group < warmupGroupCount; ++group) {
+        line("        warmupGroup" + group + "(this);");
+      }
+      line("      } catch (RuntimeException e) {");
+      line("        throw e;");
+      line("      } catch (Exception e) {");
+      line("        throw new com.truward.di.InjectionException(\"Unable to warm up beans\", e);");
+      line("      }");
+    }
+    line("    }");
+    line("");
+    line("    public com.truward.di.InjectionContext createChild() {");
+    line("      return new ChildContext(this);");
+    line("    }");
+    line("");
+    line("    public void close() {");
+    line("      if (closed) {");
+    line("        return;");
+    line("      }");
+    line("");
+    line("      closed = true;");
+    line("      final java.util.List<Throwable> failures = new java.util.ArrayList<Throwable>();");
+    for (int group = 0; group < destroyGroupCount; ++group) {
+      line("      destroyGroup" + group + "(this, failures);");
+    }
+    line("      if (!failures.isEmpty()) {");
+    line("        throw new com.truward.di.InjectionException(\"Unable to destroy beans: \" + failures, failures.get(0));");
+    line("      }");
+    line("    }");
+    line("");
+    line("    public void close(java.util.concurrent.Executor executor, long timeout, " +
+        "java.util.concurrent.TimeUnit unit) {");
+    line("      close();");
+    line("    }");
+    line("");
+    line("    public boolean isFrozen() {");
+    line("      return true;");
+    line("    }");
+    line("");
+    line("    private void shouldNotBeClosed() {");
+    line("      if (closed) {");
+    line("        throw new IllegalStateException(\"Injection context is closed\");");
+    line("      }");
+    line("    }");
+    line("");
+    line("    private static IllegalStateException modificationError() {");
+    line("      return new IllegalStateException(\"Modifications are not allowed for frozen injection context\");");
+    line("    }");
+    line("  }");
+    line("");
+    line("  private static final class ChildContext extends " + DefaultInjectionContext.class.getName() + " {");
+    line("    ChildContext(com.truward.di.InjectionContext parent) {");
+    line("      super(parent);");
+    line("    }");
+    line("  }");
+  }
+
+  // expression, that evaluates to the injected value of the given type
+  @Nonnull
+  private String getValue(@Nonnull WiringPlan.Reference reference, @Nonnull Class<?> targetType,
+                          @Nonnull Object location) {
+    if (reference.isContext()) {
+      return "context";
+    }
+
+    final String typeName = quote(reference.beanType.getName());
+    switch (reference.kind) {
+      case PROVIDER:
+        return "context.provider(" + getTypeName(reference.beanType, location) + ".class, " +
+            quote(reference.beanName) + ")";
+      case LAZY:
+        return "(" + getTypeName(targetType, location) + ") context.proxy(" +
+            getTypeName(reference.beanType, location) + ".class, " + quote(reference.beanName) + ")";
+      case LIST:
+        return "context.list(" + typeName + ")";
+      case SET:
+        return "context.set(" + typeName + ")";
+      case MAP:
+        return "context.map(" + typeName + ")";
+      default:
+        return "(" + getTypeName(targetType, location) + ") context.bean(" + reference.beanIds[0] + ")";
+    }
+  }
+
+  private void checkConstructor(@Nonnull WiringPlan.BeanWiring bean) {
+    if (bean.constructor != null) {
+      if (!isAccessible(bean.constructor)) {
+        errors.add("constructor " + bean.constructor);
+      }
+      return;
+    }
+
+    try {
+      final Constructor<?> defaultConstructor = bean.beanClass.getDeclaredConstructor();
+      if (!isAccessible(defaultConstructor)) {
+        errors.add("constructor " + defaultConstructor);
+      }
+    } catch (NoSuchMethodException e) {
+      errors.add("default constructor of " + bean.beanClass);
+    }
+  }
+
+  @Nonnull
+  private String getTypeName(@Nonnull Class<?> type, @Nonnull Object location) {
+    if (!isAccessible(type)) {
+      errors.add(type + " used by " + location);
+      return type.getName();
+    }
+    return type.getCanonicalName();
+  }
+
+  private boolean isAccessible(@Nonnull Class<?> type) {
+    if (type.isPrimitive()) {
+      return true;
+    }
+    if (type.isArray()) {
+      return isAccessible(type.getComponentType());
+    }
+    if (type.getCanonicalName() == null) {
+      return false; // local or anonymous class
+    }
+
+    for (Class<?> c = type; c != null; c = c.getDeclaringClass()) {
+      final int modifiers = c.getModifiers();
+      if (Modifier.isPrivate(modifiers) || (!Modifier.isPublic(modifiers) && !isInGeneratedPackage(c))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isAccessible(@Nonnull Member member) {
+    final int modifiers = member.getModifiers();
+    return isAccessible(member.getDeclaringClass()) && !Modifier.isStatic(modifiers) &&
+        (Modifier.isPublic(modifiers) || (!Modifier.isPrivate(modifiers) &&
+            isInGeneratedPackage(member.getDeclaringClass())));
+  }
+
+  private boolean isInGeneratedPackage(@Nonnull Class<?> type) {
+    final int dot = type.getName().lastIndexOf('.');
+    return packageName.equals(dot > 0 ? type.getName().substring(0, dot) : "");
+  }
+
+  private void line(@Nonnull String line) {
+    code.append(line).append('\n');
+  }
+
+  // java string literal or null
+  @Nonnull
+  private static String quote(String value) {
+    if (value == null) {
+      return "null";
+    }
+
+    final StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char ch = value.charAt(i);
+      if (ch == '"' || ch == '\\') {
+        result.append('\\').append(ch);
+      } else if (ch < ' ' || ch > '~') {
+        result.append(String.format("\\u%04x", (int) ch));
+      } else {
+        result.append(ch);
+      }
+    }
+    return result.append('"').toString();
+  }
+
+  @Nonnull
+  private static String escapeComment(@Nonnull String value) {
+    return value.replace("*/", "*\\/");
+  }
+}
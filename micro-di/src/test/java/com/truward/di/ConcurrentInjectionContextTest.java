@@ -0,0 +1,74 @@
+package com.truward.di;
+
+import com.truward.di.support.ConcurrentInjectionContext;
+import org.junit.Test;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ConcurrentInjectionContext}, runs all the {@link DefaultInjectionContextTest} tests as well.
+ */
+public class ConcurrentInjectionContextTest extends DefaultInjectionContextTest {
+
+  @Override
+  protected InjectionContext createContext() {
+    return new ConcurrentInjectionContext();
+  }
+
+  public static final class CountingBean {
+    static final AtomicInteger POST_CONSTRUCT_COUNT = new AtomicInteger();
+
+    @Resource
+    InjectionContext context;
+
+    volatile boolean ready;
+
+    @PostConstruct
+    public void postConstruct() throws InterruptedException {
+      POST_CONSTRUCT_COUNT.incrementAndGet();
+      Thread.sleep(20L); // widen the race window
+      ready = true;
+    }
+  }
+
+  @Test
+  public void shouldInitializeBeanExactlyOnceWhenAccessedConcurrently() throws Exception {
+    final InjectionContext context = createContext();
+    context.registerBean(new CountingBean());
+    context.freeze();
+
+    final int threadCount = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    try {
+      final List<Future<CountingBean>> results = new ArrayList<Future<CountingBean>>();
+      for (int i = 0; i < threadCount; ++i) {
+        results.add(executor.submit(new Callable<CountingBean>() {
+          @Override
+          public CountingBean call() throws Exception {
+            startLatch.await();
+            return context.getBean(CountingBean.class);
+          }
+        }));
+      }
+      startLatch.countDown();
+
+      for (final Future<CountingBean> result : results) {
+        final CountingBean bean = result.get(10L, TimeUnit.SECONDS);
+        assertTrue("Bean should be fully initialized when returned", bean.ready);
+        assertSame(context, bean.context);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(1, CountingBean.POST_CONSTRUCT_COUNT.get());
+  }
+}
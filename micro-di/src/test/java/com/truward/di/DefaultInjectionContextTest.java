@@ -1,13 +1,48 @@
 package com.truward.di;
 
 import com.truward.di.support.DefaultInjectionContext;
+import com.truward.di.support.DependencyReport;
+import com.truward.di.support.InjectionStatistics;
+import com.truward.di.support.StartupSnapshot;
+import com.truward.di.support.WiringSourceGenerator;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.Serializable;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
@@ -21,7 +56,11 @@ public class DefaultInjectionContextTest {
 
   @Before
   public void initContext() {
-    context = new DefaultInjectionContext();
+    context = createContext();
+  }
+
+  protected InjectionContext createContext() {
+    return new DefaultInjectionContext();
   }
 
   public interface Inferior {
@@ -232,4 +271,1620 @@ public class DefaultInjectionContextTest {
     assertEquals(2, context.getBeans(Cloneable.class).size());
     assertEquals(1, context.getBeans(Serializable.class).size());
   }
+
+  @Test
+  public void shouldGetBeanBySuperclassFromFrozenContext() {
+    context.registerBean(new InferiorImpl());
+    context.registerBean(new Inferior2Impl());
+    context.registerBean(new Superior2Impl());
+    context.freeze();
+
+    assertEquals(11011, context.getBean(SuperiorImpl.class).bar());
+    assertEquals(1, context.getBeans(SuperiorImpl.class).size());
+    assertSame(context.getBean(Superior.class), context.getBean(Superior2Impl.class));
+  }
+
+  @Test
+  public void shouldReportAmbiguousAndAbsentBeansInFrozenContext() {
+    context.registerBean(BaseBean.class);
+    context.registerBean(NestedBean.class);
+    context.freeze();
+
+    assertEquals(2, context.getBeans(BaseBean.class).size());
+    assertTrue(context.getBeans(Bar.class).isEmpty());
+
+    try {
+      context.getBean(BaseBean.class);
+      fail("Should get exception on attempt to get ambiguous bean");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains(NestedBean.class.getSimpleName()));
+    }
+
+    try {
+      context.getBean(Bar.class);
+      fail("Should get exception on attempt to get absent bean");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains(Bar.class.getSimpleName()));
+    }
+  }
+
+  @Test
+  public void shouldIndexBeansIncrementallyBeforeFreeze() {
+    context.registerBean(BaseBean.class);
+    assertSame(context.getBean(BaseBean.class), context.getBean(Cloneable.class));
+    assertEquals(1, context.getBeans(Object.class).size());
+
+    context.registerBean(NestedBean.class);
+    assertSame(context.getBean(NestedBean.class), context.getBean(Serializable.class));
+    assertEquals(2, context.getBeans(BaseBean.class).size());
+    assertEquals(2, context.getBeans(Cloneable.class).size());
+
+    try {
+      context.getBean(BaseBean.class);
+      fail("Should get exception on attempt to get ambiguous bean");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains(NestedBean.class.getSimpleName()));
+    }
+  }
+
+  public static final class ShardInferior implements Inferior {
+    final int shard;
+
+    public ShardInferior(int shard) {
+      this.shard = shard;
+    }
+
+    @Override
+    public int foo() {
+      return shard;
+    }
+  }
+
+  public static final class ShardClient {
+    @Resource(name = "shard2")
+    Inferior inferior;
+
+    @Resource(mappedName = "shard1")
+    Provider<Inferior> inferiorProvider;
+  }
+
+  @Test
+  public void shouldInjectNamedBeans() {
+    context.registerBean("shard1", new ShardInferior(1));
+    context.registerBean("shard2", new ShardInferior(2));
+    context.registerBean(ShardClient.class);
+    context.freeze();
+
+    final ShardClient client = context.getBean(ShardClient.class);
+    assertEquals(2, client.inferior.foo());
+    assertEquals(1, client.inferiorProvider.get().foo());
+    assertSame(client.inferior, context.getBean("shard2", Inferior.class));
+    assertEquals(2, context.getBeans(Inferior.class).size());
+
+    try {
+      context.getBean(Inferior.class);
+      fail("Should get exception on attempt to get ambiguous bean");
+    } catch (InjectionException ignored) {
+      // expected
+    }
+
+    try {
+      context.getBean("shard1", Superior.class);
+      fail("Should get exception on attempt to get named bean of the other class");
+    } catch (InjectionException ignored) {
+      // expected
+    }
+
+    try {
+      context.getBean("shard3", Inferior.class);
+      fail("Should get exception on attempt to get absent bean");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains("shard3"));
+    }
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldRejectDuplicateBeanName() {
+    context.registerBean("shard", new ShardInferior(1));
+    context.registerBean("shard", new ShardInferior(2));
+  }
+
+  public static final class SlowInferior implements Inferior {
+    volatile boolean ready;
+
+    @Override
+    public int foo() {
+      assertTrue("Dependency should be initialized", ready);
+      return 1;
+    }
+
+    @PostConstruct
+    public void warmUp() throws InterruptedException {
+      Thread.sleep(50L);
+      ready = true;
+    }
+  }
+
+  public static final class SlowInferior2 implements Inferior2 {
+    volatile boolean ready;
+
+    @Override
+    public int baz() {
+      assertTrue("Dependency should be initialized", ready);
+      return 1000;
+    }
+
+    @PostConstruct
+    public void warmUp() throws InterruptedException {
+      Thread.sleep(50L);
+      ready = true;
+    }
+  }
+
+  public static final class DependentSuperior extends SuperiorImpl {
+    @Resource
+    private Inferior2 inferior2;
+
+    int initialValue;
+
+    @PostConstruct
+    public void postConstruct() {
+      initialValue = bar() + inferior2.baz();
+    }
+  }
+
+  @Test
+  public void shouldInitializeBeansInParallelOnFreeze() throws InterruptedException {
+    context.registerBean(new DependentSuperior());
+    context.registerBean(new SlowInferior());
+    context.registerBean(new SlowInferior2());
+
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      context.freeze(executor);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertTrue(context.isFrozen());
+    assertEquals(1011, context.getBean(DependentSuperior.class).initialValue);
+  }
+
+  public static final class CyclicBean1 {
+    @Resource
+    CyclicBean2 bean2;
+  }
+
+  public static final class CyclicBean2 {
+    @Resource
+    CyclicBean1 bean1;
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldReportCycleWhenInitializingBeansInParallel() {
+    context.registerBean(CyclicBean1.class);
+    context.registerBean(CyclicBean2.class);
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      context.freeze(executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public static final class WarmupLog {
+    final List<String> entries = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  public static final class WarmedInferior implements Inferior {
+    @Resource
+    WarmupLog log;
+
+    @Override
+    public int foo() {
+      return 1;
+    }
+
+    @Warmup
+    public void warmup() {
+      log.entries.add("inferior");
+    }
+  }
+
+  public static final class WarmedSuperior {
+    @Resource
+    WarmupLog log;
+
+    @Resource
+    Inferior inferior;
+
+    boolean initialized;
+
+    @PostConstruct
+    public void init() {
+      initialized = true;
+    }
+
+    @Warmup
+    public void warmup() {
+      assertTrue("Warm-up should follow initialization", initialized);
+      log.entries.add("superior:" + inferior.foo());
+    }
+  }
+
+  public static final class FailingWarmupBean {
+    @Warmup
+    public void warmup() {
+      throw new IllegalStateException("cold");
+    }
+  }
+
+  @Test
+  public void shouldInitializeAndWarmUpBeansOnEagerFreeze() {
+    final WarmupLog log = new WarmupLog();
+    final WarmedSuperior superior = new WarmedSuperior();
+    context.registerBean(superior);
+    context.registerBean(new WarmedInferior());
+    context.registerBean(log);
+
+    context.freeze(FreezeOptions.eager().withWarmup());
+
+    assertTrue(context.isFrozen());
+    assertTrue(superior.initialized);
+    assertEquals(Arrays.asList("inferior", "superior:1"), log.entries);
+  }
+
+  @Test
+  public void shouldWarmUpBeansInParallelOnEagerFreeze() {
+    final WarmupLog log = new WarmupLog();
+    context.registerBean(new WarmedSuperior());
+    context.registerBean(new WarmedInferior());
+    context.registerBean(log);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      context.freeze(FreezeOptions.eager().withWarmup().withExecutor(executor));
+    } finally {
+      executor.shutdown();
+    }
+
+    assertTrue(context.getBean(WarmedSuperior.class).initialized);
+    assertEquals(Arrays.asList("inferior", "superior:1"), log.entries);
+  }
+
+  @Test
+  public void shouldNotWarmUpBeansOnEagerFreezeWithoutWarmup() {
+    final WarmupLog log = new WarmupLog();
+    final WarmedSuperior superior = new WarmedSuperior();
+    context.registerBean(superior);
+    context.registerBean(new WarmedInferior());
+    context.registerBean(log);
+
+    context.freeze(FreezeOptions.eager());
+
+    assertTrue(superior.initialized);
+    assertTrue(log.entries.isEmpty());
+  }
+
+  @Test
+  public void shouldFailIfWarmupFails() {
+    context.registerBean(new FailingWarmupBean());
+
+    try {
+      context.freeze(FreezeOptions.eager().withWarmup());
+      fail("Warm-up failure should be reported");
+    } catch (InjectionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  public interface Codec {
+    String encode(String value);
+  }
+
+  public static final class CodecStatistics {
+    final AtomicInteger createdCount = new AtomicInteger();
+    final AtomicInteger destroyedCount = new AtomicInteger();
+  }
+
+  // not thread safe
+  public static final class CodecImpl implements Codec {
+    @Resource
+    CodecStatistics statistics;
+
+    final AtomicBoolean inUse = new AtomicBoolean();
+
+    @PostConstruct
+    public void init() {
+      statistics.createdCount.incrementAndGet();
+    }
+
+    @Override
+    public String encode(String value) {
+      assertTrue("Codec should not be shared", inUse.compareAndSet(false, true));
+      try {
+        return "[" + value + "]";
+      } finally {
+        inUse.set(false);
+      }
+    }
+
+    @PreDestroy
+    public void destroy() {
+      statistics.destroyedCount.incrementAndGet();
+    }
+  }
+
+  public static final class CodecClient {
+    @Resource
+    Codec codec;
+  }
+
+  public static final class CodecProviderClient {
+    @Resource
+    Provider<Codec> codecProvider;
+
+    @Resource
+    @Lazy
+    Codec lazyCodec;
+  }
+
+  public static final class CodecPoolClient {
+    @Resource
+    Pool<CodecImpl> codecPool;
+  }
+
+  @Test
+  public void shouldCreatePrototypeBeanForEachInjection() {
+    final CodecStatistics statistics = new CodecStatistics();
+    context.registerBean(statistics);
+    context.registerBean(CodecImpl.class, Scope.PROTOTYPE);
+    context.registerBean("first", new CodecClient());
+    context.registerBean("second", new CodecClient());
+    context.freeze();
+
+    final Codec codec = context.getBean("first", CodecClient.class).codec;
+    assertNotSame(codec, context.getBean("second", CodecClient.class).codec);
+    assertNotSame(context.getBean(Codec.class), context.getBean(Codec.class));
+    assertEquals("[a]", codec.encode("a"));
+    assertEquals(4, statistics.createdCount.get());
+    assertTrue(context.getBeans(Codec.class).isEmpty());
+  }
+
+  @Test
+  public void shouldProvideThreadLocalBeans() throws Exception {
+    final CodecStatistics statistics = new CodecStatistics();
+    context.registerBean(statistics);
+    context.registerBean(CodecImpl.class, Scope.THREAD);
+    context.registerBean(new CodecProviderClient());
+    context.freeze();
+
+    final CodecProviderClient client = context.getBean(CodecProviderClient.class);
+    final Codec codec = client.codecProvider.get();
+    assertSame(codec, client.codecProvider.get());
+    assertSame(codec, context.getBean(Codec.class));
+    assertEquals("[a]", client.lazyCodec.encode("a"));
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Codec otherCodec = executor.submit(new Callable<Codec>() {
+        @Override
+        public Codec call() {
+          return client.codecProvider.get();
+        }
+      }).get();
+      assertNotSame(codec, otherCodec);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(2, statistics.createdCount.get());
+    context.close();
+    assertEquals(2, statistics.destroyedCount.get());
+  }
+
+  @Test
+  public void shouldDestroyThreadLocalBeansOfTerminatedThreads() throws InterruptedException {
+    final CodecStatistics statistics = new CodecStatistics();
+    context.registerBean(statistics);
+    context.registerBean(CodecImpl.class, Scope.THREAD);
+    context.registerBean(new CodecProviderClient());
+    context.freeze();
+
+    final CodecProviderClient client = context.getBean(CodecProviderClient.class);
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        client.codecProvider.get();
+      }
+    });
+    thread.start();
+    thread.join();
+    assertEquals(0, statistics.destroyedCount.get());
+
+    client.codecProvider.get(); // bean of the current thread is created after the bean of terminated one is destroyed
+    assertEquals(2, statistics.createdCount.get());
+    assertEquals(1, statistics.destroyedCount.get());
+
+    context.close();
+    assertEquals(2, statistics.destroyedCount.get());
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldNotInjectThreadLocalBeanDirectly() {
+    context.registerBean(new CodecStatistics());
+    context.registerBean(CodecImpl.class, Scope.THREAD);
+    context.registerBean(CodecClient.class);
+    context.freeze();
+
+    context.getBean(CodecClient.class);
+  }
+
+  @Test
+  public void shouldBorrowAndReleasePooledBeans() throws Exception {
+    final CodecStatistics statistics = new CodecStatistics();
+    context.registerBean(statistics);
+    context.registerBean(CodecImpl.class, Scope.pooled(2));
+    context.registerBean(new CodecPoolClient());
+    context.freeze();
+
+    final Pool<CodecImpl> pool = context.getBean(CodecPoolClient.class).codecPool;
+    final CodecImpl first = pool.borrow();
+    final CodecImpl second = pool.borrow();
+    assertNotSame(first, second);
+    assertNull("Pool should be exhausted", pool.borrow(10L, TimeUnit.MILLISECONDS));
+    pool.release(first);
+    assertSame(first, pool.borrow(10L, TimeUnit.MILLISECONDS));
+    pool.release(first);
+    pool.release(second);
+
+    // each borrowed codec is used exclusively
+    final int threadCount = 4;
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < threadCount; ++i) {
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            int length = 0;
+            for (int j = 0; j < 1000; ++j) {
+              final CodecImpl codec = pool.borrow();
+              try {
+                length += codec.encode("a").length();
+              } finally {
+                pool.release(codec);
+              }
+            }
+            return length;
+          }
+        }));
+      }
+      for (final Future<Integer> result : results) {
+        assertEquals(Integer.valueOf(3000), result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(2, statistics.createdCount.get());
+    context.close();
+    assertEquals(2, statistics.destroyedCount.get());
+  }
+
+  @Test
+  public void shouldRejectReleaseOfBeanThatIsNotBorrowed() {
+    context.registerBean(new CodecStatistics());
+    context.registerBean(CodecImpl.class, Scope.pooled(2));
+    context.registerBean(new CodecPoolClient());
+    context.freeze();
+
+    final Pool<CodecImpl> pool = context.getBean(CodecPoolClient.class).codecPool;
+    final CodecImpl codec = pool.borrow();
+    pool.release(codec);
+    try {
+      pool.release(codec);
+      fail("Codec has been released twice");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("not borrowed"));
+    }
+    try {
+      pool.release(new CodecImpl());
+      fail("Codec has not been created by the pool");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("does not belong"));
+    }
+
+    // the pool still lends each bean to a single borrower
+    final CodecImpl first = pool.borrow();
+    final CodecImpl second = pool.borrow();
+    assertNotSame(first, second);
+    assertNull("Pool should be exhausted", pool.borrow(10L, TimeUnit.MILLISECONDS));
+  }
+
+  public static final class FlakyCodecControl {
+    final AtomicInteger attempts = new AtomicInteger();
+    final CountDownLatch firstAttemptStarted = new CountDownLatch(1);
+    final CountDownLatch firstAttemptFailure = new CountDownLatch(1);
+  }
+
+  public static final class FlakyCodec {
+    @Resource
+    FlakyCodecControl control;
+
+    @PostConstruct
+    public void init() throws InterruptedException {
+      if (control.attempts.getAndIncrement() == 0) {
+        control.firstAttemptStarted.countDown();
+        control.firstAttemptFailure.await();
+        throw new AssertionError("First codec can not be created");
+      }
+    }
+  }
+
+  public static final class FlakyCodecPoolClient {
+    @Resource
+    Pool<FlakyCodec> codecPool;
+  }
+
+  @Test
+  public void shouldWakeUpBorrowerWhenPooledBeanCreationFails() throws Exception {
+    final FlakyCodecControl control = new FlakyCodecControl();
+    context.registerBean(control);
+    context.registerBean(FlakyCodec.class, Scope.pooled(1));
+    context.registerBean(new FlakyCodecPoolClient());
+    context.freeze();
+
+    final Pool<FlakyCodec> pool = context.getBean(FlakyCodecPoolClient.class).codecPool;
+    final Callable<FlakyCodec> borrower = new Callable<FlakyCodec>() {
+      @Override
+      public FlakyCodec call() {
+        return pool.borrow();
+      }
+    };
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final Future<FlakyCodec> failed = executor.submit(borrower);
+      control.firstAttemptStarted.await();
+      final Future<FlakyCodec> waiting = executor.submit(borrower);
+      Thread.sleep(50L); // let the second borrower find the pool exhausted
+      control.firstAttemptFailure.countDown();
+
+      try {
+        failed.get();
+        fail("First codec can not be created");
+      } catch (ExecutionException e) {
+        // expected
+      }
+      assertNotNull("Waiting borrower should create the codec", waiting.get(5L, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldNotProvidePooledBeanWithoutPool() {
+    context.registerBean(new CodecStatistics());
+    context.registerBean(CodecImpl.class, Scope.pooled(1));
+    context.freeze();
+
+    context.getBean(Codec.class);
+  }
+
+  public static final class MultiCtorBean {
+    public MultiCtorBean() {}
+    public MultiCtorBean(Inferior inferior) {}
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldRejectBeanClassWithMultipleConstructors() {
+    context.registerBean(new InferiorImpl());
+    context.registerBean(MultiCtorBean.class);
+  }
+
+  @Test
+  public void shouldReuseInjectionDataAcrossContexts() {
+    for (int i = 0; i < 3; ++i) {
+      final InjectionContext other = createContext();
+      other.registerBean(new InferiorImpl());
+      other.registerBean(SuperiorWithCtor.class);
+      other.registerBean(new InitializingSuperiorImpl());
+      other.freeze();
+
+      assertEquals(1, other.getBean(SuperiorWithCtor.class).savedFoo);
+      assertTrue(other.getBean(InitializingSuperiorImpl.class).postConstructInvoked);
+    }
+  }
+
+  @Test
+  public void shouldRegisterBeansInBulk() {
+    context.registerBeans(Arrays.asList(new InferiorImpl(), new Inferior2Impl()));
+    context.registerBeanClasses(Arrays.<Class<?>>asList(SuperiorWithCtor.class, Superior2Impl.class));
+
+    assertEquals(1, context.getBean(SuperiorWithCtor.class).savedFoo);
+    assertEquals(11011, context.getBean(Superior.class).bar());
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldRejectDuplicateBeanInstance() {
+    final InferiorImpl inferior = new InferiorImpl();
+    context.registerBeans(Arrays.asList(inferior, new Inferior2Impl(), inferior));
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldRejectBeansOfTheSameClass() {
+    context.registerBean(new InferiorImpl());
+    context.registerBeanClasses(Arrays.<Class<?>>asList(Inferior2Impl.class, InferiorImpl.class));
+  }
+
+  public interface Handler {}
+
+  @Order(2)
+  public static final class LowPriorityHandler implements Handler {}
+
+  public static final class DefaultHandler implements Handler {}
+
+  @Order(1)
+  public static final class HighPriorityHandler implements Handler {}
+
+  @Test
+  public void shouldReturnSharedOrderedBeanListFromFrozenContext() {
+    context.registerBean(DefaultHandler.class);
+    context.registerBean(LowPriorityHandler.class);
+    context.registerBean(HighPriorityHandler.class);
+    context.freeze();
+
+    final List<Handler> handlers = context.getBeans(Handler.class);
+    assertEquals(3, handlers.size());
+    assertTrue(handlers.get(0) instanceof HighPriorityHandler);
+    assertTrue(handlers.get(1) instanceof LowPriorityHandler);
+    assertTrue(handlers.get(2) instanceof DefaultHandler);
+    assertSame(handlers, context.getBeans(Handler.class));
+  }
+
+  public static final class HandlerRegistry {
+    final List<Handler> constructorHandlers;
+
+    @Resource
+    List<Handler> handlerList;
+
+    @Resource
+    Set<? extends Handler> handlerSet;
+
+    @Resource
+    Map<String, Handler> handlerMap;
+
+    public HandlerRegistry(List<Handler> constructorHandlers) {
+      this.constructorHandlers = constructorHandlers;
+    }
+  }
+
+  @Test
+  public void shouldInjectCollectionsOfBeans() {
+    final DefaultHandler customHandler = new DefaultHandler();
+    context.registerBean(DefaultHandler.class);
+    context.registerBean(HighPriorityHandler.class);
+    context.registerBean("custom", customHandler);
+    context.freeze();
+
+    final InjectionContext child = context.createChild();
+    child.registerBean(LowPriorityHandler.class);
+    child.registerBean(HandlerRegistry.class);
+    child.freeze();
+
+    final HandlerRegistry registry = child.getBean(HandlerRegistry.class);
+    assertEquals(4, registry.handlerList.size());
+    assertTrue(registry.handlerList.get(0) instanceof LowPriorityHandler);
+    assertTrue(registry.handlerList.get(1) instanceof HighPriorityHandler);
+    assertEquals(registry.handlerList, registry.constructorHandlers);
+    assertEquals(4, registry.handlerSet.size());
+    assertEquals(Arrays.asList(LowPriorityHandler.class.getName(), HighPriorityHandler.class.getName(),
+        DefaultHandler.class.getName(), "custom"), new ArrayList<String>(registry.handlerMap.keySet()));
+    assertSame(customHandler, registry.handlerMap.get("custom"));
+
+    try {
+      registry.handlerList.add(new DefaultHandler());
+      fail("Injected collections should be immutable");
+    } catch (UnsupportedOperationException ignored) {
+      // expected
+    }
+  }
+
+  public static final class TrackingInferior implements Inferior {
+    boolean initialized;
+
+    @PostConstruct
+    public void init() {
+      initialized = true;
+    }
+
+    @Override
+    public int foo() {
+      return 2;
+    }
+  }
+
+  public static final class ProviderConsumer {
+    @Resource
+    Provider<Inferior> inferiorProvider;
+
+    @Resource
+    @Lazy
+    Inferior lazyInferior;
+  }
+
+  @Test
+  public void shouldInjectProvidersAndLazyProxies() {
+    final TrackingInferior inferior = new TrackingInferior();
+    context.registerBean(inferior);
+    context.registerBean(ProviderConsumer.class);
+    context.freeze();
+
+    final ProviderConsumer consumer = context.getBean(ProviderConsumer.class);
+    assertFalse("Provided bean should not be initialized eagerly", inferior.initialized);
+
+    assertEquals(2, consumer.lazyInferior.foo());
+    assertTrue(inferior.initialized);
+    assertSame(inferior, consumer.inferiorProvider.get());
+  }
+
+  public static final class ProviderCtorConsumer {
+    final Provider<Inferior> inferiorProvider;
+
+    public ProviderCtorConsumer(Provider<Inferior> inferiorProvider) {
+      this.inferiorProvider = inferiorProvider;
+    }
+  }
+
+  @Test
+  public void shouldInjectProviderToConstructorBeforeTargetIsRegistered() {
+    context.registerBean(ProviderCtorConsumer.class);
+    context.registerBean(new InferiorImpl());
+    context.freeze();
+
+    assertEquals(1, context.getBean(ProviderCtorConsumer.class).inferiorProvider.get().foo());
+  }
+
+  @Test
+  public void shouldResolveBeansThroughParentContext() {
+    context.registerBean(new InferiorImpl());
+    context.registerBean(new BarImpl());
+    context.freeze();
+
+    final InjectionContext child = context.createChild();
+    child.registerBean(new InitializingSuperiorImpl());
+    child.registerBean(new BarBazImpl());
+    child.freeze();
+
+    final InitializingSuperiorImpl superior = child.getBean(InitializingSuperiorImpl.class);
+    assertEquals(11, superior.bar());
+    assertSame(context.getBean(Inferior.class), child.getBean(Inferior.class));
+    assertSame(child, child.getBean(InjectionContext.class));
+
+    final List<Bar> bars = child.getBeans(Bar.class);
+    assertEquals(2, bars.size());
+    assertTrue(bars.get(0) instanceof BarBazImpl);
+    assertTrue(bars.get(1) instanceof BarImpl);
+    assertTrue(child.getBean(Bar.class) instanceof BarBazImpl);
+    assertEquals(1, context.getBeans(Bar.class).size());
+  }
+
+  @Test
+  public void shouldMemoizeBeansOfFrozenChildContext() {
+    context.registerBean(new BarImpl());
+    context.freeze();
+
+    final InjectionContext child = context.createChild();
+    child.registerBean(new BarBazImpl());
+    child.freeze();
+
+    final List<Bar> bars = child.getBeans(Bar.class);
+    assertEquals(2, bars.size());
+    assertSame(bars, child.getBeans(Bar.class));
+
+    // the memoized beans of the child context follow the replacement in the parent context
+    final BarImpl replacement = new BarImpl();
+    ((DefaultInjectionContext) context).replaceBean(BarImpl.class, replacement);
+    final List<Bar> newBars = child.getBeans(Bar.class);
+    assertEquals(Arrays.asList(bars.get(0), replacement), newBars);
+    assertSame(newBars, child.getBeans(Bar.class));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shouldNotCreateChildOfNonFrozenContext() {
+    context.createChild();
+  }
+
+  @Test
+  public void shouldReportInitializationTimesAndLookups() {
+    final InjectionStatistics statistics = new InjectionStatistics();
+    ((DefaultInjectionContext) context).setInjectionListener(statistics);
+    context.registerBean(new InitializingSuperiorImpl());
+    context.registerBean(InferiorImpl.class);
+    context.freeze();
+
+    assertEquals(11, context.getBean(Superior.class).bar());
+    assertEquals(1, context.getBeans(Inferior.class).size());
+    try {
+      context.getBean(Runnable.class);
+      fail("Runnable bean should not be found");
+    } catch (InjectionException ignored) {
+      // expected
+    }
+
+    final List<InjectionStatistics.BeanTimes> beanTimes = statistics.getBeanTimes();
+    assertEquals(2, beanTimes.size());
+    assertEquals(2, statistics.getLookupCount(Inferior.class)); // resolved field and getBeans
+    assertEquals(0, statistics.getMissCount(Inferior.class));
+    assertEquals(1, statistics.getLookupCount(Superior.class));
+    assertEquals(1, statistics.getMissCount(Runnable.class));
+  }
+
+  @Test
+  public void shouldReportInitializationTimesAndLookupsOfScopedBeans() {
+    final InjectionStatistics statistics = new InjectionStatistics();
+    ((DefaultInjectionContext) context).setInjectionListener(statistics);
+    context.registerBean(new CodecStatistics());
+    context.registerBean(CodecImpl.class, Scope.PROTOTYPE);
+    context.freeze();
+
+    assertNotSame(context.getBean(Codec.class), context.getBean(Codec.class));
+
+    assertEquals(2, statistics.getLookupCount(Codec.class));
+    final InjectionStatistics.BeanTimes codecTimes = statistics.getBeanTimes(CodecImpl.class);
+    assertNotNull(codecTimes);
+    assertTrue(codecTimes.getTotalNanos() > 0);
+  }
+
+  @Test
+  public void shouldReportOwnTimesOfNamedBeansSharingClass() {
+    final InjectionStatistics statistics = new InjectionStatistics();
+    ((DefaultInjectionContext) context).setInjectionListener(statistics);
+    final SlowInferior first = new SlowInferior();
+    context.registerBean("first", first);
+    context.registerBean("second", new SlowInferior());
+    context.freeze();
+    assertEquals(2, context.getBeans(Inferior.class).size());
+
+    final long classNanos = statistics.getBeanTimes(SlowInferior.class).getPostConstructNanos();
+    final DependencyReport report = ((DefaultInjectionContext) context).getDependencyReport(statistics);
+    assertEquals(2, report.getNodes().size());
+    for (final DependencyReport.Node node : report.getNodes()) {
+      assertTrue(node.getDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(50L));
+      assertTrue("Each bean should report its own time", node.getDurationNanos() < classNanos);
+    }
+    assertEquals(statistics.getInstanceTimes(first).getPostConstructNanos(),
+        report.getNodes().get(0).getDurationNanos());
+  }
+
+  @Test
+  public void shouldExportDependencyReport() throws Exception {
+    final InjectionStatistics statistics = new InjectionStatistics();
+    ((DefaultInjectionContext) context).setInjectionListener(statistics);
+    context.registerBean(new Superior2Impl());
+    context.registerBean(new InferiorImpl());
+    context.registerBean(new Inferior2Impl());
+    context.freeze();
+    assertEquals(11011, context.getBean(Superior.class).bar());
+
+    final DependencyReport report = ((DefaultInjectionContext) context).getDependencyReport(statistics);
+    assertEquals(3, report.getNodes().size());
+    final DependencyReport.Node superior = report.getNodes().get(0);
+    assertEquals(Superior2Impl.class, superior.getBeanClass());
+    assertEquals(2, superior.getDependencies().size());
+    assertTrue(superior.isInitialized());
+
+    final List<DependencyReport.Node> criticalPath = report.getCriticalPath();
+    assertEquals(2, criticalPath.size());
+    assertSame(superior, criticalPath.get(1));
+
+    final StringBuilder json = new StringBuilder();
+    report.writeJson(json);
+    assertTrue(json.toString(), json.toString().contains("\"class\":\"" + Superior2Impl.class.getName() +
+        "\",\"durationNanos\":"));
+    assertTrue(json.toString(), json.toString().contains("\"criticalPath\":["));
+
+    final StringBuilder dot = new StringBuilder();
+    report.writeDot(dot);
+    assertTrue(dot.toString(), dot.toString().startsWith("digraph beans {"));
+    assertTrue(dot.toString(), dot.toString().contains("n0 -> n1"));
+  }
+
+  // completes initialization only when the other asynchronous bean has started its initialization
+  public static abstract class AsyncBean {
+    final ExecutorService executor;
+    final CountDownLatch startLatch;
+    volatile boolean ready;
+
+    protected AsyncBean(ExecutorService executor, CountDownLatch startLatch) {
+      this.executor = executor;
+      this.startLatch = startLatch;
+    }
+
+    @PostConstruct
+    public Future<?> init() {
+      return executor.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          startLatch.countDown();
+          if (!startLatch.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Asynchronous initializations are not concurrent");
+          }
+          ready = true;
+          return null;
+        }
+      });
+    }
+  }
+
+  public static final class AsyncInferior extends AsyncBean implements Inferior {
+    public AsyncInferior(ExecutorService executor, CountDownLatch startLatch) {
+      super(executor, startLatch);
+    }
+
+    @Override
+    public int foo() {
+      return ready ? 1 : -1;
+    }
+  }
+
+  public static final class AsyncInferior2 extends AsyncBean implements Inferior2 {
+    public AsyncInferior2(ExecutorService executor, CountDownLatch startLatch) {
+      super(executor, startLatch);
+    }
+
+    @Override
+    public int baz() {
+      return ready ? 1000 : -1000;
+    }
+  }
+
+  public static final class AsyncDependent {
+    @Resource Inferior inferior;
+    @Resource Inferior2 inferior2;
+    int sum;
+
+    @PostConstruct
+    public void init() {
+      sum = inferior.foo() + inferior2.baz();
+    }
+  }
+
+  @Test
+  public void shouldAwaitAsynchronousPostConstructBeforeDependentsStart() {
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final CountDownLatch startLatch = new CountDownLatch(2);
+      context.registerBean(new AsyncDependent());
+      context.registerBean(new AsyncInferior(executor, startLatch));
+      context.registerBean(new AsyncInferior2(executor, startLatch));
+      context.freeze();
+
+      assertEquals(1001, context.getBean(AsyncDependent.class).sum);
+      assertEquals(1, context.getBean(Inferior.class).foo());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public static final class FailingAsyncBean {
+    @PostConstruct
+    public Future<?> init() {
+      final ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        return executor.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception {
+            throw new IllegalStateException("init failed");
+          }
+        });
+      } finally {
+        executor.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void shouldFailIfAsynchronousPostConstructFails() {
+    context.registerBean(new FailingAsyncBean());
+    context.freeze();
+    try {
+      context.getBean(FailingAsyncBean.class);
+      fail("Failed asynchronous initialization should be reported");
+    } catch (InjectionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void shouldReportCycleWithFullPath() {
+    context.registerBean(CyclicBean1.class);
+    context.registerBean(CyclicBean2.class);
+    context.freeze();
+
+    try {
+      context.getBean(CyclicBean1.class);
+      fail("Circular dependency should be reported");
+    } catch (InjectionException e) {
+      assertEquals("Circular dependency between beans: " + CyclicBean1.class.getName() + " -> " +
+          CyclicBean2.class.getName() + " -> " + CyclicBean1.class.getName(), e.getMessage());
+    }
+  }
+
+  @Test
+  public void shouldResolveCycleWithEarlyReferences() {
+    ((DefaultInjectionContext) context).setCircularReferencesAllowed(true);
+    context.registerBean(CyclicBean1.class);
+    context.registerBean(CyclicBean2.class);
+    context.freeze();
+
+    final CyclicBean2 bean2 = context.getBean(CyclicBean2.class);
+    assertSame(bean2, bean2.bean1.bean2);
+    assertSame(bean2.bean1, context.getBean(CyclicBean1.class));
+  }
+
+  @Test
+  public void shouldResolveCycleWithEarlyReferencesInParallel() {
+    ((DefaultInjectionContext) context).setCircularReferencesAllowed(true);
+    context.registerBean(InferiorImpl.class);
+    context.registerBean(SuperiorImpl.class);
+    context.registerBean(CyclicBean1.class);
+    context.registerBean(CyclicBean2.class);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      context.freeze(FreezeOptions.eager().withWarmup().withExecutor(executor));
+    } finally {
+      executor.shutdown();
+    }
+
+    final CyclicBean2 bean2 = context.getBean(CyclicBean2.class);
+    assertSame(bean2, bean2.bean1.bean2);
+    assertSame(bean2.bean1, context.getBean(CyclicBean1.class));
+    assertEquals(11, context.getBean(Superior.class).bar());
+  }
+
+  @Test
+  public void shouldInitializeDeepChainInParallelWithSameThreadExecutor() throws Exception {
+    final int chainLength = 2000;
+    final StringBuilder source = new StringBuilder("package generated;\npublic final class Chain {\n");
+    for (int i = 0; i < chainLength; ++i) {
+      source.append("  public static final class Link").append(i).append(" {\n");
+      if (i + 1 < chainLength) {
+        source.append("    @javax.annotation.Resource public Link").append(i + 1).append(" next;\n");
+      }
+      source.append("  }\n");
+    }
+    final ClassLoader classLoader = compile("generated.Chain", source.append("}\n").toString()).getClassLoader();
+    for (int i = 0; i < chainLength; ++i) {
+      context.registerBean(classLoader.loadClass("generated.Chain$Link" + i));
+    }
+
+    // the executor runs each task on the submitting thread, the small stack makes nested initialization overflow
+    final Executor sameThreadExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final Thread thread = new Thread(null, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          context.freeze(sameThreadExecutor);
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    }, "deep-chain", 256 * 1024);
+    thread.start();
+    thread.join();
+
+    assertNull(failure.get());
+    assertEquals(1, context.getBeans(classLoader.loadClass("generated.Chain$Link0")).size());
+  }
+
+  public static final class InstanceWithCtor {
+    final ReferenceToInstance reference;
+
+    public InstanceWithCtor(ReferenceToInstance reference) {
+      this.reference = reference;
+    }
+  }
+
+  public static final class ReferenceToInstance {
+    @Resource
+    public InstanceWithCtor instance;
+  }
+
+  @Test
+  public void shouldIgnoreConstructorOfRegisteredInstanceWhenInitializingBeansInParallel() throws IOException {
+    final InstanceWithCtor instance = new InstanceWithCtor(null);
+    context.registerBean(instance);
+    context.registerBean(ReferenceToInstance.class);
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      context.freeze(FreezeOptions.eager().withExecutor(executor));
+    } finally {
+      executor.shutdown();
+    }
+
+    assertSame(instance, context.getBean(ReferenceToInstance.class).instance);
+    WiringSourceGenerator.generate((DefaultInjectionContext) context, "generated.InstanceWiring",
+        new StringBuilder());
+  }
+
+  public static final class DestroyedInferior implements Inferior {
+    final List<String> events;
+
+    public DestroyedInferior(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public int foo() {
+      return 1;
+    }
+
+    @PreDestroy
+    public void destroy() {
+      events.add("inferior");
+    }
+  }
+
+  public static final class ClosedSuperior implements Superior, Closeable {
+    @Resource
+    Inferior inferior;
+
+    final List<String> events;
+
+    public ClosedSuperior(List<String> events) {
+      this.events = events;
+    }
+
+    @Override
+    public int bar() {
+      return 10 + inferior.foo();
+    }
+
+    @Override
+    public void close() {
+      events.add("superior");
+    }
+  }
+
+  public static final class UnusedDestroyedBean {
+    @PreDestroy
+    public void destroy() {
+      fail("Bean, that has not been initialized, should not be destroyed");
+    }
+  }
+
+  @Test
+  public void shouldDestroyBeansInReverseOrderOfDependencies() {
+    final List<String> events = new ArrayList<String>();
+    context.registerBean(new DestroyedInferior(events));
+    context.registerBean(new ClosedSuperior(events));
+    context.registerBean(new UnusedDestroyedBean());
+    context.freeze();
+    assertEquals(11, context.getBean(Superior.class).bar());
+
+    context.close();
+    assertEquals(Arrays.asList("superior", "inferior"), events);
+
+    context.close();
+    assertEquals("Repeated close should have no effect", 2, events.size());
+  }
+
+  @Test
+  public void shouldRejectUsageOfClosedContext() {
+    context.registerBean(InferiorImpl.class);
+    context.close();
+
+    try {
+      context.registerBean(SuperiorImpl.class);
+      fail("Closed context should reject registration");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("closed"));
+    }
+    try {
+      context.getBean(Inferior.class);
+      fail("Closed context should reject lookup");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("closed"));
+    }
+    try {
+      context.getBeans(Inferior.class);
+      fail("Closed context should reject lookup");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("closed"));
+    }
+    try {
+      context.freeze();
+      fail("Closed context should not be frozen");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("closed"));
+    }
+  }
+
+  @Test
+  public void shouldDestroyBeansInCurrentThreadWhenExecutorRejectsThem() {
+    final List<String> events = new ArrayList<String>();
+    context.registerBean(new DestroyedInferior(events));
+    context.registerBean(new ClosedSuperior(events));
+    context.freeze();
+    assertEquals(11, context.getBean(Superior.class).bar());
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    context.close(executor, 1L, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList("superior", "inferior"), events);
+  }
+
+  public static final class HangingBean {
+    @Resource
+    Inferior inferior;
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+      Thread.sleep(10000L);
+    }
+  }
+
+  @Test
+  public void shouldDestroyBeansInParallelWithTimeout() {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    context.registerBean(new DestroyedInferior(events));
+    context.registerBean(new ClosedSuperior(events));
+    context.registerBean(new HangingBean());
+    context.freeze();
+    context.getBeans(Object.class);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      context.close(executor, 100L, TimeUnit.MILLISECONDS);
+      fail("Timeout should be reported");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(HangingBean.class.getName()));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // inferior is destroyed after both of its dependents, even though one of them has timed out
+    assertEquals(Arrays.asList("superior", "inferior"), events);
+  }
+
+  public static final class WiredClient {
+    @Resource
+    public Inferior inferior;
+
+    @Resource
+    public List<Handler> handlers;
+
+    @Resource
+    public InjectionContext context;
+
+    @Resource
+    public Provider<SuperiorWithCtor> superiorProvider;
+
+    public int initValue;
+    public int warmupCount;
+    public boolean destroyed;
+
+    @PostConstruct
+    public void init() {
+      initValue = inferior.foo();
+    }
+
+    @Warmup
+    public void warmup() {
+      ++warmupCount;
+    }
+
+    @PreDestroy
+    public void destroy() {
+      destroyed = true;
+    }
+  }
+
+  @Test
+  public void shouldGenerateWiringSource() throws Exception {
+    context.registerBean("shard", new ShardInferior(7));
+    context.registerBean(SuperiorWithCtor.class);
+    context.registerBean(WiredClient.class);
+    context.registerBean(DefaultHandler.class);
+    context.registerBean(HighPriorityHandler.class);
+    context.freeze();
+
+    final StringBuilder source = new StringBuilder();
+    WiringSourceGenerator.generate((DefaultInjectionContext) context, "generated.TestWiring", source);
+    final Class<?> wiringClass = compile("generated.TestWiring", source.toString());
+
+    final ShardInferior shard = new ShardInferior(7);
+    final InjectionContext wired = (InjectionContext) wiringClass.getMethod("create", Object[].class)
+        .invoke(null, (Object) new Object[] { shard });
+    assertTrue(wired.isFrozen());
+
+    final WiredClient client = wired.getBean(WiredClient.class);
+    assertSame(shard, client.inferior);
+    assertSame(wired, client.context);
+    assertEquals(7, client.initValue);
+    assertEquals(2, client.handlers.size());
+    assertTrue(client.handlers.get(0) instanceof HighPriorityHandler);
+    assertSame(client.handlers, wired.getBeans(Handler.class));
+    assertSame(wired.getBean(SuperiorWithCtor.class), client.superiorProvider.get());
+    assertEquals(7, client.superiorProvider.get().savedFoo);
+    assertSame(shard, wired.getBean("shard", Inferior.class));
+    assertTrue(wired.getBeans(Bar.class).isEmpty());
+
+    wired.freeze(FreezeOptions.eager().withWarmup());
+    wired.freeze(FreezeOptions.eager().withWarmup());
+    assertEquals(1, client.warmupCount);
+
+    wired.close();
+    assertTrue(client.destroyed);
+    try {
+      wired.getBean(SuperiorWithCtor.class);
+      fail("Closed context should reject lookup");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("closed"));
+    }
+    try {
+      wired.getBeans(Handler.class);
+      fail("Closed context should reject lookup");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("closed"));
+    }
+    try {
+      wired.freeze(FreezeOptions.eager().withWarmup());
+      fail("Closed context should not be frozen");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("closed"));
+    }
+  }
+
+  @Test
+  public void shouldRestoreContextFromStartupSnapshot() throws IOException {
+    context.registerBean("shard", new ShardInferior(7));
+    context.registerBean(SuperiorWithCtor.class);
+    context.registerBean(WiredClient.class);
+    context.registerBean(DefaultHandler.class);
+    context.registerBean(HighPriorityHandler.class);
+    context.freeze();
+
+    final ClassLoader classLoader = getClass().getClassLoader();
+    final long classpathHash = StartupSnapshot.getClasspathHash(classLoader);
+    assertEquals(classpathHash, StartupSnapshot.getClasspathHash(classLoader));
+    final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    StartupSnapshot.write((DefaultInjectionContext) context, classpathHash, snapshot);
+
+    final DefaultInjectionContext stale = (DefaultInjectionContext) createContext();
+    assertFalse(StartupSnapshot.load(stale, new ByteArrayInputStream(snapshot.toByteArray()), classpathHash + 1,
+        classLoader, FreezeOptions.LAZY, new ShardInferior(7)));
+    assertFalse(stale.isFrozen());
+
+    final ShardInferior shard = new ShardInferior(7);
+    final DefaultInjectionContext restored = (DefaultInjectionContext) createContext();
+    assertTrue(StartupSnapshot.load(restored, new ByteArrayInputStream(snapshot.toByteArray()), classpathHash,
+        classLoader, FreezeOptions.eager().withWarmup(), shard));
+    assertTrue(restored.isFrozen());
+
+    final WiredClient client = restored.getBean(WiredClient.class);
+    assertSame(shard, client.inferior);
+    assertSame(restored, client.context);
+    assertEquals(7, client.initValue);
+    assertEquals(1, client.warmupCount);
+    assertEquals(2, client.handlers.size());
+    assertTrue(client.handlers.get(0) instanceof HighPriorityHandler);
+    assertEquals(7, client.superiorProvider.get().savedFoo);
+    assertSame(shard, restored.getBean("shard", Inferior.class));
+
+    restored.close();
+    assertTrue(client.destroyed);
+  }
+
+  @Test
+  public void shouldChangeClasspathHashWhenNestedClassFileChanges() throws IOException {
+    final File classesDir = File.createTempFile("micro-di-classes", "");
+    assertTrue(classesDir.delete() && new File(classesDir, "com/example").mkdirs());
+    final File classFile = new File(classesDir, "com/example/Foo.class");
+    writeBytes(classFile, new byte[] { 1, 2, 3 });
+    assertTrue(classFile.setLastModified(1000000L));
+
+    final ClassLoader classLoader = new URLClassLoader(new URL[] { classesDir.toURI().toURL() }, null);
+    final long hash = StartupSnapshot.getClasspathHash(classLoader);
+    assertEquals(hash, StartupSnapshot.getClasspathHash(classLoader));
+
+    assertTrue(classFile.setLastModified(2000000L));
+    final long touchedHash = StartupSnapshot.getClasspathHash(classLoader);
+    assertTrue(hash != touchedHash);
+
+    writeBytes(classFile, new byte[] { 1, 2, 3, 4 });
+    assertTrue(classFile.setLastModified(2000000L));
+    assertTrue(touchedHash != StartupSnapshot.getClasspathHash(classLoader));
+  }
+
+  private static void writeBytes(File file, byte[] bytes) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  @Test(expected = InjectionException.class)
+  public void shouldRejectMismatchingInstancesOfStartupSnapshot() throws IOException {
+    context.registerBean(new InferiorImpl());
+    context.freeze();
+
+    final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    StartupSnapshot.write((DefaultInjectionContext) context, 1L, snapshot);
+    StartupSnapshot.load((DefaultInjectionContext) createContext(), new ByteArrayInputStream(snapshot.toByteArray()),
+        1L, getClass().getClassLoader(), FreezeOptions.LAZY, new ShardInferior(1));
+  }
+
+  @Test
+  public void shouldNotGenerateWiringForInaccessibleFields() throws IOException {
+    context.registerBean(InferiorImpl.class);
+    context.registerBean(InitializingSuperiorImpl.class);
+    context.freeze();
+
+    try {
+      WiringSourceGenerator.generate((DefaultInjectionContext) context, "generated.TestWiring", new StringBuilder());
+      fail("Private field can not be assigned by the generated code");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains("inferior"));
+    }
+  }
+
+  @Refreshable
+  public static final class RefreshableSuperior implements Superior {
+    @Resource
+    volatile Inferior inferior;
+
+    @Resource
+    volatile List<Inferior> inferiors;
+
+    @Override
+    public int bar() {
+      return 10 + inferior.foo();
+    }
+  }
+
+  @Test
+  public void shouldReplaceBeanInFrozenContext() {
+    final InferiorImpl inferior = new InferiorImpl();
+    context.registerBean(inferior);
+    context.registerBean(SuperiorImpl.class);
+    context.registerBean(RefreshableSuperior.class);
+    context.registerBean(ProviderConsumer.class);
+    context.freeze(FreezeOptions.eager());
+
+    final ProviderConsumer consumer = context.getBean(ProviderConsumer.class);
+    assertEquals(1, consumer.lazyInferior.foo());
+    final RefreshableSuperior refreshable = context.getBean(RefreshableSuperior.class);
+    assertEquals(11, refreshable.bar());
+
+    final ShardInferior replacement = new ShardInferior(5);
+    assertSame(inferior, ((DefaultInjectionContext) context).replaceBean(Inferior.class, replacement));
+
+    assertSame(replacement, context.getBean(Inferior.class));
+    assertEquals(Collections.<Inferior>singletonList(replacement), context.getBeans(Inferior.class));
+    assertEquals(15, refreshable.bar());
+    assertEquals(Collections.<Inferior>singletonList(replacement), refreshable.inferiors);
+    assertSame(inferior, context.getBean(SuperiorImpl.class).inferior);
+    assertSame(replacement, consumer.inferiorProvider.get());
+    assertEquals(5, consumer.lazyInferior.foo());
+  }
+
+  public static final class DualInferior implements Inferior, Inferior2 {
+    @Override
+    public int foo() {
+      return 1;
+    }
+
+    @Override
+    public int baz() {
+      return 2;
+    }
+  }
+
+  @Test
+  public void shouldRejectReplacementChangingInjectedBeans() {
+    final DualInferior inferior = new DualInferior();
+    context.registerBean(inferior);
+    context.registerBean(SuperiorImpl.class);
+    context.freeze();
+    final SuperiorImpl superior = context.getBean(SuperiorImpl.class);
+
+    try {
+      ((DefaultInjectionContext) context).replaceBean(Inferior2.class, new Inferior2Impl());
+      fail("Replacing bean does not implement injected interface");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains(Inferior.class.getName()));
+    }
+
+    assertSame(inferior, context.getBean(Inferior2.class));
+    assertSame(inferior, superior.inferior);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shouldNotReplaceBeanInContextThatIsNotFrozen() {
+    context.registerBean(new InferiorImpl());
+    ((DefaultInjectionContext) context).replaceBean(Inferior.class, new ShardInferior(1));
+  }
+
+  @Test
+  public void shouldCompactFootprintWhenFrozen() {
+    for (int i = 0; i < 100; ++i) {
+      context.registerBean("shard" + i, new ShardInferior(i));
+    }
+    context.registerBean(SuperiorImpl.class);
+    context.registerBean("shard", new InferiorImpl());
+    final long registrationFootprint = ((DefaultInjectionContext) context).getFootprintEstimate();
+    context.freeze();
+
+    final long frozenFootprint = ((DefaultInjectionContext) context).getFootprintEstimate();
+    assertTrue(frozenFootprint > 0);
+    assertTrue("Footprint " + frozenFootprint + " should be less than " + registrationFootprint,
+        frozenFootprint < registrationFootprint);
+
+    assertEquals(42, context.getBean("shard42", Inferior.class).foo());
+    assertEquals(101, context.getBeans(Inferior.class).size());
+    assertEquals(100, context.getBeans(ShardInferior.class).size());
+    assertTrue(context.getBeans(Inferior2.class).isEmpty());
+    try {
+      context.getBean("shard100", Inferior.class);
+      fail("There is no bean named shard100");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains("shard100"));
+    }
+
+    try {
+      final Inferior registered = context.getBean("shard2", Inferior.class);
+      ((DefaultInjectionContext) context).replaceBean("shard1", Inferior.class, registered);
+      fail("Bean shard2 is already registered");
+    } catch (InjectionException e) {
+      assertTrue(e.getMessage().contains("Duplicate"));
+    }
+  }
+
+  // compiles the given source against the classes of micro-di and of this test
+  private static Class<?> compile(String className, String source) throws Exception {
+    final File workDir = File.createTempFile("micro-di-wiring", "");
+    assertTrue(workDir.delete() && workDir.mkdirs());
+    final File file = new File(workDir, className.replace('.', '/') + ".java");
+    assertTrue(file.getParentFile().mkdirs());
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      writer.write(source);
+    } finally {
+      writer.close();
+    }
+
+    final StringBuilder classPath = new StringBuilder();
+    for (final Class<?> c : Arrays.asList(InjectionContext.class, DefaultInjectionContextTest.class, Resource.class)) {
+      if (c.getProtectionDomain().getCodeSource() != null) {
+        classPath.append(classPath.length() > 0 ? File.pathSeparator : "")
+            .append(c.getProtectionDomain().getCodeSource().getLocation().getPath());
+      }
+    }
+
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+    try {
+      assertTrue("Compilation failed", compiler.getTask(null, fileManager, null,
+          Arrays.asList("-classpath", classPath.toString(), "-d", workDir.getPath()), null,
+          fileManager.getJavaFileObjects(file)).call());
+    } finally {
+      fileManager.close();
+    }
+
+    return new URLClassLoader(new URL[] { workDir.toURI().toURL() }, DefaultInjectionContextTest.class.getClassLoader())
+        .loadClass(className);
+  }
 }